@@ -3,13 +3,10 @@ package org.jetlinks.community.utils;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.ComparatorUtils;
 import org.apache.commons.collections4.MapUtils;
 import org.hswebframework.ezorm.core.param.Sort;
 import org.hswebframework.ezorm.core.param.Term;
 import org.hswebframework.web.api.crud.entity.TermExpressionParser;
-import org.hswebframework.web.bean.FastBeanCopier;
-import org.jetlinks.reactor.ql.utils.CompareUtils;
 import reactor.core.publisher.Flux;
 
 import java.util.*;
@@ -95,21 +92,14 @@ public class ConverterUtils {
         if (CollectionUtils.isEmpty(sorts)) {
             return flux;
         }
-        List<Comparator<T>> comparators = new ArrayList<>(sorts.size());
-        for (Sort sort : sorts) {
-            String column = sort.getName();
-            Comparator<T> comparator = (left, right) -> {
-                Object leftVal = FastBeanCopier.copy(left, new HashMap<>()).get(column);
-                Object rightVal = FastBeanCopier.copy(right, new HashMap<>()).get(column);
-                return CompareUtils.compare(leftVal, rightVal);
-            };
-            if (sort.getOrder().equalsIgnoreCase("desc")) {
-                comparator = comparator.reversed();
-            }
-            comparators.add(comparator);
-
-        }
-        return flux.sort(ComparatorUtils.chainedComparator(comparators));
+        //每条数据只提取一次排序字段,数据量超过阈值时将写入临时文件进行归并排序
+        return Flux.defer(() -> {
+            ExternalSorter<T> sorter = new ExternalSorter<>(sorts, ExternalSorter.DEFAULT_MEMORY_THRESHOLD);
+            return flux
+                .doOnNext(sorter::add)
+                .thenMany(Flux.defer(sorter::sorted))
+                .doFinally(ignore -> sorter.dispose());
+        });
     }
 
     /**
@@ -0,0 +1,208 @@
+package org.jetlinks.community.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.expression.MapAccessor;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * 表达式模版工具类,用于解析类似{@code "设备${deviceName}温度:${temperature + 1}"}的模版.
+ * <p>
+ * 与{@link org.hswebframework.web.utils.ExpressionUtils#analytical(String, Map, String)}不同的是,
+ * 模版只会解析一次并缓存编译后的结果,对于{@code ${deviceId}},{@code ${headers.productId}}这样的属性引用,
+ * 将直接从上下文中获取值而不会使用SpEL执行.
+ * <p>
+ * 与ExpressionUtils保持一致: 属性不存在或者值为null时解析为空字符串,表达式执行失败时记录日志并解析为空字符串.
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Slf4j
+public class ExpressionTemplates {
+
+    private static final SpelExpressionParser PARSER = new SpelExpressionParser();
+
+    private static final MapAccessor MAP_ACCESSOR = new MapAccessor();
+
+    private static final Pattern PROPERTY_PATH = Pattern.compile("[a-zA-Z_$][\\w$]*(\\.[a-zA-Z_$][\\w$]*)*");
+
+    //SpEL关键字,不能作为属性引用处理
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("true", "false", "null", "this", "root"));
+
+    //缓存已经编译的模版
+    private static final Cache<String, Template> CACHE = Caffeine
+        .newBuilder()
+        .maximumSize(Integer.getInteger("jetlinks.expression.template.cache-size", 10_000))
+        .build();
+
+    /**
+     * 解析模版,模版中不包含表达式时直接返回模版本身
+     *
+     * @param template 模版
+     * @param vars     上下文变量
+     * @return 解析结果
+     */
+    public static String analytical(String template, Map<String, Object> vars) {
+        if (template == null || !template.contains("${")) {
+            return template;
+        }
+        return compile(template).render(vars);
+    }
+
+    /**
+     * 编译模版,相同的模版只会编译一次
+     *
+     * @param template 模版
+     * @return 编译后的模版
+     */
+    public static Template compile(String template) {
+        return CACHE.get(template, ExpressionTemplates::doCompile);
+    }
+
+    private static Template doCompile(String template) {
+        List<Part> parts = new ArrayList<>();
+        int len = template.length();
+        int textStart = 0;
+        int i = 0;
+        while (i < len) {
+            if (template.charAt(i) == '$' && i + 1 < len && template.charAt(i + 1) == '{') {
+                int end = findExpressionEnd(template, i + 2);
+                if (end < 0) {
+                    break;
+                }
+                if (i > textStart) {
+                    parts.add(new TextPart(template.substring(textStart, i)));
+                }
+                parts.add(createExpressionPart(template.substring(i + 2, end).trim()));
+                i = textStart = end + 1;
+                continue;
+            }
+            i++;
+        }
+        if (textStart < len) {
+            parts.add(new TextPart(template.substring(textStart)));
+        }
+        return new Template(parts.toArray(new Part[0]));
+    }
+
+    //查找表达式的结束位置,支持表达式中嵌套{}
+    private static int findExpressionEnd(String template, int start) {
+        int depth = 0;
+        for (int i = start, len = template.length(); i < len; i++) {
+            char c = template.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                if (depth == 0) {
+                    return i;
+                }
+                depth--;
+            }
+        }
+        return -1;
+    }
+
+    private static Part createExpressionPart(String expression) {
+        if (expression.isEmpty()) {
+            return new TextPart("");
+        }
+        //属性引用,直接获取值
+        if (PROPERTY_PATH.matcher(expression).matches() && !KEYWORDS.contains(expression.toLowerCase())) {
+            return new PropertyPart(expression.split("[.]"));
+        }
+        try {
+            return new SpelPart(PARSER.parseExpression(expression));
+        } catch (Exception e) {
+            log.warn("解析表达式[{}]失败", expression, e);
+            return new TextPart("");
+        }
+    }
+
+    public static class Template {
+        private final Part[] parts;
+
+        private Template(Part[] parts) {
+            this.parts = parts;
+        }
+
+        public String render(Map<String, Object> vars) {
+            if (parts.length == 1) {
+                return toString(parts[0].apply(vars));
+            }
+            StringBuilder builder = new StringBuilder();
+            for (Part part : parts) {
+                builder.append(toString(part.apply(vars)));
+            }
+            return builder.toString();
+        }
+
+        private static String toString(Object value) {
+            return value == null ? "" : String.valueOf(value);
+        }
+    }
+
+    private interface Part {
+        Object apply(Map<String, Object> vars);
+    }
+
+    private static class TextPart implements Part {
+        private final String text;
+
+        private TextPart(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public Object apply(Map<String, Object> vars) {
+            return text;
+        }
+    }
+
+    private static class PropertyPart implements Part {
+        private final String[] path;
+
+        private PropertyPart(String[] path) {
+            this.path = path;
+        }
+
+        @Override
+        @SuppressWarnings("all")
+        public Object apply(Map<String, Object> vars) {
+            Object value = vars.get(path[0]);
+            for (int i = 1; i < path.length; i++) {
+                if (!(value instanceof Map)) {
+                    return null;
+                }
+                value = ((Map<String, Object>) value).get(path[i]);
+            }
+            return value;
+        }
+    }
+
+    private static class SpelPart implements Part {
+        private final Expression expression;
+
+        private SpelPart(Expression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        public Object apply(Map<String, Object> vars) {
+            StandardEvaluationContext context = new StandardEvaluationContext(vars);
+            context.addPropertyAccessor(MAP_ACCESSOR);
+            context.setVariables(vars);
+            try {
+                return expression.getValue(context);
+            } catch (Exception e) {
+                log.warn("解析表达式[{}]失败", expression.getExpressionString(), e);
+                return null;
+            }
+        }
+    }
+}
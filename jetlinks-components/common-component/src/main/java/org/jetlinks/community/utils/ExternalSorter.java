@@ -0,0 +1,280 @@
+package org.jetlinks.community.utils;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.hswebframework.ezorm.core.param.Sort;
+import org.hswebframework.web.bean.FastBeanCopier;
+import org.jetlinks.community.codec.Serializers;
+import org.jetlinks.reactor.ql.utils.CompareUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SynchronousSink;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * 根据排序参数对数据进行排序,每条数据的排序字段只提取一次.
+ * <p>
+ * 当数据量超过内存阈值时,将已排序的数据写入临时文件,最后进行多路归并.
+ * 数据无法序列化时回退为在内存中排序,临时文件在排序完成,取消或者出错时删除.
+ *
+ * @param <T> 数据类型
+ * @author zhouhao
+ * @see ConverterUtils#convertSortedStream(Flux, Collection)
+ * @since 1.20
+ */
+@Slf4j
+class ExternalSorter<T> {
+
+    //内存中最多保存的数据量,超过后写入临时文件
+    static final int DEFAULT_MEMORY_THRESHOLD = Integer.getInteger("jetlinks.sort.memory-threshold", 100_000);
+
+    private final String[] columns;
+
+    private final Comparator<Entry<T>> comparator;
+
+    private final int memoryThreshold;
+
+    private List<Entry<T>> buffer = new ArrayList<>();
+
+    private final List<File> spills = new ArrayList<>();
+
+    //数据是否支持写入临时文件
+    private boolean spillable = true;
+
+    private volatile Merger merger;
+
+    ExternalSorter(Collection<Sort> sorts, int memoryThreshold) {
+        this.columns = new String[sorts.size()];
+        this.memoryThreshold = memoryThreshold;
+        List<Comparator<Entry<T>>> comparators = new ArrayList<>(sorts.size());
+        int index = 0;
+        for (Sort sort : sorts) {
+            int idx = index;
+            columns[index++] = sort.getName();
+            Comparator<Entry<T>> comparator = (left, right) -> CompareUtils.compare(left.keys[idx], right.keys[idx]);
+            if ("desc".equalsIgnoreCase(sort.getOrder())) {
+                comparator = comparator.reversed();
+            }
+            comparators.add(comparator);
+        }
+        this.comparator = (left, right) -> {
+            for (Comparator<Entry<T>> comparator : comparators) {
+                int result = comparator.compare(left, right);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        };
+    }
+
+    @SuppressWarnings("all")
+    Entry<T> createEntry(T data) {
+        Map<String, Object> map = data instanceof Map
+            ? ((Map<String, Object>) data)
+            : FastBeanCopier.copy(data, new HashMap<>());
+        Object[] keys = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            keys[i] = map.get(columns[i]);
+        }
+        return new Entry<>(keys, data);
+    }
+
+    void add(T data) {
+        Entry<T> entry = createEntry(data);
+        buffer.add(entry);
+        if (spillable && !entry.isSerializable()) {
+            spillable = false;
+        }
+        if (spillable && buffer.size() >= memoryThreshold) {
+            spill();
+        }
+    }
+
+    Flux<T> sorted() {
+        buffer.sort(comparator);
+        if (spills.isEmpty()) {
+            List<Entry<T>> entries = buffer;
+            buffer = null;
+            return Flux
+                .fromIterable(entries)
+                .map(entry -> entry.value);
+        }
+        return Flux.generate(this::openMerger, Merger::next, ignore -> dispose());
+    }
+
+    private void spill() {
+        buffer.sort(comparator);
+        File file = null;
+        try {
+            file = Files.createTempFile("jetlinks-sort-", ".tmp").toFile();
+            try (ObjectOutput output = Serializers
+                .jdk()
+                .createOutput(new BufferedOutputStream(new FileOutputStream(file)))) {
+                output.writeInt(buffer.size());
+                for (Entry<T> entry : buffer) {
+                    output.writeObject(entry.keys);
+                    output.writeObject(entry.value);
+                }
+            }
+        } catch (IOException e) {
+            //嵌套的数据可能无法序列化,如: Map中的值未实现Serializable,此时回退为在内存中排序
+            log.warn("spill sorted records failed, fallback to sort in memory", e);
+            spillable = false;
+            delete(file);
+            return;
+        }
+        log.debug("spill {} sorted records to {}", buffer.size(), file);
+        spills.add(file);
+        buffer = new ArrayList<>();
+    }
+
+    List<File> getSpills() {
+        return spills;
+    }
+
+    /**
+     * 释放资源,删除临时文件.在排序完成,取消或者出错时调用
+     */
+    void dispose() {
+        Merger merger = this.merger;
+        if (merger != null) {
+            merger.close();
+        }
+        for (File spill : spills) {
+            delete(spill);
+        }
+        spills.clear();
+    }
+
+    private static void delete(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            log.warn("delete sort temp file {} failed", file);
+        }
+    }
+
+    private Merger openMerger() {
+        return merger = new Merger();
+    }
+
+    private static class Entry<T> {
+        private final Object[] keys;
+        private final T value;
+
+        private Entry(Object[] keys, T value) {
+            this.keys = keys;
+            this.value = value;
+        }
+
+        boolean isSerializable() {
+            if (!(value instanceof Serializable)) {
+                return false;
+            }
+            for (Object key : keys) {
+                if (key != null && !(key instanceof Serializable)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    //多路归并
+    private class Merger {
+        private final List<Cursor> cursors = new ArrayList<>();
+        private final PriorityQueue<Cursor> queue = new PriorityQueue<>((l, r) -> comparator.compare(l.current, r.current));
+
+        @SneakyThrows
+        private Merger() {
+            for (File spill : spills) {
+                cursors.add(new FileCursor(spill));
+            }
+            cursors.add(new MemoryCursor(buffer.iterator()));
+            for (Cursor cursor : cursors) {
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        }
+
+        @SneakyThrows
+        private Merger next(SynchronousSink<T> sink) {
+            Cursor cursor = queue.poll();
+            if (cursor == null) {
+                sink.complete();
+                return this;
+            }
+            sink.next(cursor.current.value);
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+            return this;
+        }
+
+        private void close() {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private abstract class Cursor {
+        Entry<T> current;
+
+        abstract boolean advance() throws Exception;
+
+        void close() {
+        }
+    }
+
+    private class MemoryCursor extends Cursor {
+        private final Iterator<Entry<T>> iterator;
+
+        private MemoryCursor(Iterator<Entry<T>> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        boolean advance() {
+            if (iterator.hasNext()) {
+                current = iterator.next();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private class FileCursor extends Cursor {
+        private final ObjectInput input;
+        private int remaining;
+
+        private FileCursor(File file) throws IOException {
+            this.input = Serializers
+                .jdk()
+                .createInput(new BufferedInputStream(new FileInputStream(file)));
+            this.remaining = input.readInt();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        boolean advance() throws Exception {
+            if (remaining <= 0) {
+                return false;
+            }
+            remaining--;
+            Object[] keys = (Object[]) input.readObject();
+            current = new Entry<>(keys, (T) input.readObject());
+            return true;
+        }
+
+        @Override
+        void close() {
+            try {
+                input.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
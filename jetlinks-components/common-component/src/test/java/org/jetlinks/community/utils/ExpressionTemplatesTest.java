@@ -0,0 +1,64 @@
+package org.jetlinks.community.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ExpressionTemplatesTest {
+
+    @Test
+    void testProperty() {
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("deviceName", "test");
+        vars.put("headers", Collections.singletonMap("productId", "demo"));
+
+        assertEquals("设备test", ExpressionTemplates.analytical("设备${deviceName}", vars));
+        assertEquals("demo", ExpressionTemplates.analytical("${headers.productId}", vars));
+    }
+
+    @Test
+    void testExpression() {
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("temperature", 10);
+
+        assertEquals("温度:11", ExpressionTemplates.analytical("温度:${temperature + 1}", vars));
+        assertEquals("{a}", ExpressionTemplates.analytical("${'{a}'}", vars));
+    }
+
+    @Test
+    void testNullAndMissing() {
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("value", null);
+
+        assertEquals("", ExpressionTemplates.analytical("${value}", vars));
+        assertEquals("a:", ExpressionTemplates.analytical("a:${missing}", vars));
+        assertEquals("", ExpressionTemplates.analytical("${headers.productId}", vars));
+    }
+
+    @Test
+    void testError() {
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("value", 1);
+
+        //执行失败
+        assertEquals("a:", ExpressionTemplates.analytical("a:${value.unknownMethod()}", vars));
+        //语法错误
+        assertEquals("b:", ExpressionTemplates.analytical("b:${value +}", vars));
+    }
+
+    @Test
+    void testNoExpression() {
+        String template = "no expression";
+        assertSame(template, ExpressionTemplates.analytical(template, Collections.emptyMap()));
+    }
+
+    @Test
+    void testCompileOnce() {
+        assertSame(ExpressionTemplates.compile("${a}-${b}"), ExpressionTemplates.compile("${a}-${b}"));
+    }
+}
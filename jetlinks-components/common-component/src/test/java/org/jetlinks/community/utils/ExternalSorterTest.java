@@ -0,0 +1,131 @@
+package org.jetlinks.community.utils;
+
+import org.hswebframework.ezorm.core.param.Sort;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.File;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExternalSorterTest {
+
+    static Sort sort(String name, String order) {
+        Sort sort = new Sort();
+        sort.setName(name);
+        sort.setOrder(order);
+        return sort;
+    }
+
+    static Map<String, Object> record(int group, int value, Object extra) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("group", group);
+        map.put("value", value);
+        map.put("extra", extra);
+        return map;
+    }
+
+    static List<Map<String, Object>> createRecords(int size, Object extra) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            values.add(i);
+        }
+        Collections.shuffle(values, new Random(0));
+        return values
+            .stream()
+            .map(i -> record(i % 3, i, extra))
+            .collect(Collectors.toList());
+    }
+
+    static List<Map<String, Object>> expected(List<Map<String, Object>> records) {
+        List<Map<String, Object>> expected = new ArrayList<>(records);
+        expected.sort(Comparator
+                          .<Map<String, Object>, Integer>comparing(map -> (Integer) map.get("group"))
+                          .thenComparing(map -> (Integer) map.get("value"), Comparator.reverseOrder()));
+        return expected;
+    }
+
+    @Test
+    void testSpillAndMerge() {
+        List<Map<String, Object>> records = createRecords(1000, "extra");
+
+        ExternalSorter<Map<String, Object>> sorter = new ExternalSorter<>(
+            Arrays.asList(sort("group", "asc"), sort("value", "desc")), 100);
+        records.forEach(sorter::add);
+
+        List<File> spills = new ArrayList<>(sorter.getSpills());
+        assertFalse(spills.isEmpty());
+
+        sorter.sorted()
+              .collectList()
+              .as(StepVerifier::create)
+              .expectNext(expected(records))
+              .verifyComplete();
+
+        for (File spill : spills) {
+            assertFalse(spill.exists());
+        }
+    }
+
+    @Test
+    void testNotSerializableFallback() {
+        //Map本身可以序列化,但是其中的值无法序列化
+        List<Map<String, Object>> records = createRecords(500, new Object());
+
+        ExternalSorter<Map<String, Object>> sorter = new ExternalSorter<>(
+            Arrays.asList(sort("group", "asc"), sort("value", "desc")), 100);
+        records.forEach(sorter::add);
+
+        assertTrue(sorter.getSpills().isEmpty());
+
+        sorter.sorted()
+              .collectList()
+              .as(StepVerifier::create)
+              .expectNext(expected(records))
+              .verifyComplete();
+    }
+
+    @Test
+    void testDisposeOnCancel() {
+        List<Map<String, Object>> records = createRecords(1000, "extra");
+
+        ExternalSorter<Map<String, Object>> sorter = new ExternalSorter<>(
+            Collections.singletonList(sort("value", "asc")), 100);
+        records.forEach(sorter::add);
+        List<File> spills = new ArrayList<>(sorter.getSpills());
+        assertFalse(spills.isEmpty());
+
+        sorter.sorted()
+              .take(10)
+              .as(StepVerifier::create)
+              .expectNextCount(10)
+              .verifyComplete();
+
+        for (File spill : spills) {
+            assertFalse(spill.exists());
+        }
+    }
+
+    @Test
+    void testConvertSortedStream() {
+        List<Map<String, Object>> records = createRecords(100, "extra");
+
+        ConverterUtils
+            .convertSortedStream(Flux.fromIterable(records), sort("group", "asc"), sort("value", "desc"))
+            .collectList()
+            .as(StepVerifier::create)
+            .expectNext(expected(records))
+            .verifyComplete();
+    }
+
+    @Test
+    void testConvertSortedStreamError() {
+        ConverterUtils
+            .convertSortedStream(Flux.<Map<String, Object>>error(new IllegalStateException()), sort("value", "asc"))
+            .as(StepVerifier::create)
+            .verifyError(IllegalStateException.class);
+    }
+}
@@ -1,6 +1,7 @@
 package org.jetlinks.community.configure.cluster;
 
 import io.scalecube.cluster.ClusterConfig;
+import io.scalecube.cluster.transport.api.MessageCodec;
 import io.scalecube.net.Address;
 import io.scalecube.services.Microservices;
 import io.scalecube.services.ServiceInfo;
@@ -32,6 +33,7 @@ import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Configuration(proxyBeanMethods = false)
@@ -42,14 +44,18 @@ public class ClusterConfiguration {
     @Bean
     public ExtendedClusterImpl cluster(ClusterProperties properties, ResourceLoader resourceLoader) {
 
-        FSTMessageCodec codec = new FSTMessageCodec(() -> {
+        Supplier<FSTConfiguration> fstConfiguration = () -> {
             FSTConfiguration configuration = FSTConfiguration
                 .createDefaultConfiguration()
                 .setForceSerializable(true);
 
             configuration.setClassLoader(resourceLoader.getClassLoader());
             return configuration;
-        });
+        };
+
+        MessageCodec codec = properties.getCodec() == ClusterProperties.Codec.fst
+            ? new FSTMessageCodec(fstConfiguration)
+            : new CompactMessageCodec(fstConfiguration);
 
         ExtendedClusterImpl impl = new ExtendedClusterImpl(
             new ClusterConfig()
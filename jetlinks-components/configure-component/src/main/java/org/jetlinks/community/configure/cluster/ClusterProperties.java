@@ -39,6 +39,10 @@ public class ClusterProperties {
 
     private List<String> seeds = new ArrayList<>();
 
+    //集群消息编解码器,集群中所有节点必须一致.
+    //默认使用fst兼容旧版本节点,所有节点升级完成后可以设置为compact
+    private Codec codec = Codec.fst;
+
     public void setId(String id) {
         this.id = id;
         Cluster.ID = id;
@@ -54,5 +58,12 @@ public class ClusterProperties {
         return NAME;
     }
 
+    public enum Codec {
+        //全部使用FST,兼容旧版本节点
+        fst,
+        //紧凑的二进制格式,只有复杂的消息体才使用FST,与fst不兼容
+        compact
+    }
+
 
 }
@@ -0,0 +1,166 @@
+package org.jetlinks.community.configure.cluster;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import io.scalecube.cluster.transport.api.Message;
+import io.scalecube.cluster.transport.api.MessageCodec;
+import org.nustaq.serialization.FSTConfiguration;
+import org.nustaq.serialization.FSTObjectInput;
+import org.nustaq.serialization.FSTObjectOutput;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * 紧凑的集群消息编解码器.
+ * <p>
+ * 消息头以长度前缀的字符串直接写出,常见的消息体类型(字符串,字节数组)直接以二进制写出,
+ * 只有其他类型的消息体才使用FST进行序列化,相比{@link FSTMessageCodec}减少了序列化开销和消息大小.
+ * <p>
+ * 注意: 集群中所有节点必须使用相同的编解码器,与{@link FSTMessageCodec}不兼容,
+ * 滚动升级时需要先使用默认的fst,所有节点升级完成后再配置{@code jetlinks.cluster.codec=compact}.
+ *
+ * @author zhouhao
+ * @see ClusterProperties#getCodec()
+ * @since 1.20
+ */
+public class CompactMessageCodec implements MessageCodec {
+
+    private static final byte VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BYTES = 1;
+    private static final byte TYPE_STRING = 2;
+    private static final byte TYPE_OBJECT = 3;
+
+    private final FastThreadLocal<FSTConfiguration> configuration;
+
+    public CompactMessageCodec(Supplier<FSTConfiguration> supplier) {
+        this.configuration = new FastThreadLocal<FSTConfiguration>() {
+            @Override
+            protected FSTConfiguration initialValue() {
+                return supplier.get();
+            }
+        };
+    }
+
+    @Override
+    public Message deserialize(InputStream stream) throws Exception {
+        DataInputStream input = new DataInputStream(stream);
+        byte version = input.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported cluster message codec version:" + version);
+        }
+        int headerSize = readVarInt(input);
+        Map<String, String> headers = new HashMap<>(Math.max(4, headerSize * 2));
+        for (int i = 0; i < headerSize; i++) {
+            headers.put(readString(input), readString(input));
+        }
+        Object data;
+        byte type = input.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                data = null;
+                break;
+            case TYPE_BYTES:
+                byte[] bytes = new byte[readVarInt(input)];
+                input.readFully(bytes);
+                data = bytes;
+                break;
+            case TYPE_STRING:
+                data = readString(input);
+                break;
+            case TYPE_OBJECT:
+                try (FSTObjectInput objectInput = configuration.get().getObjectInput(input)) {
+                    data = objectInput.readObject();
+                }
+                break;
+            default:
+                throw new IOException("unsupported cluster message data type:" + type);
+        }
+        return Message
+            .builder()
+            .headers(headers)
+            .data(data)
+            .build();
+    }
+
+    @Override
+    public void serialize(Message message, OutputStream stream) throws Exception {
+        DataOutputStream output = new DataOutputStream(stream);
+        output.writeByte(VERSION);
+
+        Map<String, String> headers = message.headers();
+        writeVarInt(output, headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writeString(output, header.getKey());
+            writeString(output, header.getValue());
+        }
+
+        Object data = message.data();
+        if (data == null) {
+            output.writeByte(TYPE_NULL);
+        } else if (data instanceof byte[]) {
+            byte[] bytes = (byte[]) data;
+            output.writeByte(TYPE_BYTES);
+            writeVarInt(output, bytes.length);
+            output.write(bytes);
+        } else if (data instanceof String) {
+            output.writeByte(TYPE_STRING);
+            writeString(output, (String) data);
+        } else {
+            output.writeByte(TYPE_OBJECT);
+            try (FSTObjectOutput objectOutput = configuration.get().getObjectOutput(output)) {
+                objectOutput.writeObject(data);
+            }
+            return;
+        }
+        output.flush();
+    }
+
+    private static void writeString(DataOutput output, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(output, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        //长度+1,0表示null
+        writeVarInt(output, bytes.length + 1);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        int len = readVarInt(input);
+        if (len == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len - 1];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(DataOutput output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput input) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 28) {
+                throw new IOException("malformed varint");
+            }
+            b = input.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,84 @@
+package org.jetlinks.community.configure.cluster;
+
+import io.scalecube.cluster.transport.api.Message;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import org.junit.jupiter.api.Test;
+import org.nustaq.serialization.FSTConfiguration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactMessageCodecTest {
+
+    private final CompactMessageCodec codec = new CompactMessageCodec(
+        () -> FSTConfiguration
+            .createDefaultConfiguration()
+            .setForceSerializable(true));
+
+    private Message roundTrip(Object data) throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("q", "/device/test");
+        headers.put("cid", "1");
+        headers.put("中文", "值");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        codec.serialize(Message.builder().headers(headers).data(data).build(), output);
+        Message message = codec.deserialize(new ByteArrayInputStream(output.toByteArray()));
+
+        assertEquals(headers, message.headers());
+        return message;
+    }
+
+    @Test
+    void testNull() throws Exception {
+        assertNull(roundTrip(null).data());
+    }
+
+    @Test
+    void testBytes() throws Exception {
+        byte[] data = new byte[1024];
+        Arrays.fill(data, (byte) 1);
+        assertArrayEquals(data, roundTrip(data).data());
+        assertArrayEquals(new byte[0], roundTrip(new byte[0]).data());
+    }
+
+    @Test
+    void testString() throws Exception {
+        assertEquals("hello,集群", roundTrip("hello,集群").data());
+        assertEquals("", roundTrip("").data());
+    }
+
+    @Test
+    void testObject() throws Exception {
+        Map<String, Object> map = new HashMap<>();
+        map.put("deviceId", "test");
+        map.put("value", 1.5D);
+        assertEquals(map, roundTrip(map).data());
+
+        TestData data = new TestData("test", 100);
+        assertEquals(data, roundTrip(data).data());
+    }
+
+    @Test
+    void testUnsupportedVersion() {
+        assertThrows(IOException.class,
+                     () -> codec.deserialize(new ByteArrayInputStream(new byte[]{99, 0, 0})));
+    }
+
+    @AllArgsConstructor
+    @NoArgsConstructor
+    @EqualsAndHashCode
+    static class TestData implements Serializable {
+        private String id;
+        private long time;
+    }
+}
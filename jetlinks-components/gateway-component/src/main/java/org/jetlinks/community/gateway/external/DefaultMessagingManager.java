@@ -3,35 +3,28 @@ package org.jetlinks.community.gateway.external;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.stereotype.Component;
-import org.springframework.util.AntPathMatcher;
-import org.springframework.util.PathMatcher;
 import reactor.core.publisher.Flux;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 @Component
 public class DefaultMessagingManager implements MessagingManager, BeanPostProcessor {
 
-    private final Map<String, SubscriptionProvider> subProvider = new ConcurrentHashMap<>();
-
-    private final static PathMatcher matcher = new AntPathMatcher();
+    //按topic模版索引的订阅提供商,订阅时无需遍历所有模版
+    private final TopicPatternIndex<SubscriptionProvider> subProvider = new TopicPatternIndex<>();
 
     @Override
     public Flux<Message> subscribe(SubscribeRequest request) {
 
         return Flux.defer(() -> {
-            for (Map.Entry<String, SubscriptionProvider> entry : subProvider.entrySet()) {
-                if (matcher.match(entry.getKey(), request.getTopic())) {
-                    return entry.getValue()
-                        .subscribe(request)
-                        .map(v -> {
-                            if (v instanceof Message) {
-                                return ((Message) v);
-                            }
-                            return Message.success(request.getId(), request.getTopic(), v);
-                        });
-                }
+            SubscriptionProvider provider = subProvider.match(request.getTopic());
+            if (provider != null) {
+                return provider
+                    .subscribe(request)
+                    .map(v -> {
+                        if (v instanceof Message) {
+                            return ((Message) v);
+                        }
+                        return Message.success(request.getId(), request.getTopic(), v);
+                    });
             }
 
             return Flux.error(new UnsupportedOperationException("不支持的topic"));
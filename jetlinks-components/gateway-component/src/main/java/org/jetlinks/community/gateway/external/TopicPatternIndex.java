@@ -0,0 +1,118 @@
+package org.jetlinks.community.gateway.external;
+
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于前缀树的topic模版索引,支持{@code *}(匹配一层)和{@code **}(匹配零层或多层).
+ * <p>
+ * 匹配时每一层按 固定值,{@code *},{@code **} 的优先级查找,返回最先匹配到的模版,
+ * 因此多个模版同时匹配时结果是确定的,如: {@code /device/a/b}同时匹配{@code /device/a/*}和{@code /device/**}时,
+ * 返回{@code /device/a/*}对应的值.
+ * <p>
+ * 包含其他通配符(如: {@code /device/a*}, {@code /device/{id}})的模版无法放入前缀树,将在前缀树未匹配时使用{@link AntPathMatcher}依次匹配.
+ *
+ * @param <T> 值类型
+ * @author zhouhao
+ * @since 1.20
+ */
+class TopicPatternIndex<T> {
+
+    private static final PathMatcher matcher = new AntPathMatcher();
+
+    private final Node<T> root = new Node<>();
+
+    private final Map<String, T> complexPatterns = new ConcurrentHashMap<>();
+
+    void put(String pattern, T value) {
+        String[] parts = split(pattern);
+        for (String part : parts) {
+            if (!part.equals("*") && !part.equals("**") && matcher.isPattern(part)) {
+                complexPatterns.put(pattern, value);
+                return;
+            }
+        }
+        Node<T> node = root;
+        for (String part : parts) {
+            node = node.child(part);
+        }
+        node.value = value;
+    }
+
+    T match(String topic) {
+        T value = match(root, split(topic), 0);
+        if (value != null || complexPatterns.isEmpty()) {
+            return value;
+        }
+        for (Map.Entry<String, T> entry : complexPatterns.entrySet()) {
+            if (matcher.match(entry.getKey(), topic)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static <T> T match(Node<T> node, String[] parts, int index) {
+        if (index == parts.length) {
+            if (node.value != null) {
+                return node.value;
+            }
+            // ** 可以匹配零层
+            Node<T> multi = node.multi;
+            return multi == null ? null : match(multi, parts, index);
+        }
+        T value;
+        Node<T> child = node.children.get(parts[index]);
+        if (child != null && (value = match(child, parts, index + 1)) != null) {
+            return value;
+        }
+        Node<T> single = node.single;
+        if (single != null && (value = match(single, parts, index + 1)) != null) {
+            return value;
+        }
+        Node<T> multi = node.multi;
+        if (multi != null) {
+            // ** 依次尝试匹配零层到剩余的所有层
+            for (int i = index; i <= parts.length; i++) {
+                if ((value = match(multi, parts, i)) != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String[] split(String topic) {
+        int start = 0, end = topic.length();
+        while (start < end && topic.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && topic.charAt(end - 1) == '/') {
+            end--;
+        }
+        if (start == end) {
+            return new String[0];
+        }
+        return topic.substring(start, end).split("/+");
+    }
+
+    private static class Node<T> {
+        private final Map<String, Node<T>> children = new ConcurrentHashMap<>();
+        private volatile Node<T> single;
+        private volatile Node<T> multi;
+        private volatile T value;
+
+        private synchronized Node<T> child(String part) {
+            if (part.equals("*")) {
+                return single == null ? single = new Node<>() : single;
+            }
+            if (part.equals("**")) {
+                return multi == null ? multi = new Node<>() : multi;
+            }
+            return children.computeIfAbsent(part, ignore -> new Node<>());
+        }
+    }
+}
@@ -11,7 +11,6 @@ import org.hswebframework.web.logger.ReactiveLogger;
 import org.jetlinks.community.gateway.external.Message;
 import org.jetlinks.community.gateway.external.MessagingManager;
 import org.jetlinks.community.gateway.external.SubscribeRequest;
-import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.util.StringUtils;
 import org.springframework.web.reactive.socket.CloseStatus;
 import org.springframework.web.reactive.socket.WebSocketHandler;
@@ -37,6 +36,8 @@ public class WebSocketMessagingHandler implements WebSocketHandler {
 
     private final ReactiveAuthenticationManager authenticationManager;
 
+    private final WebSocketMessagingProperties properties;
+
     // /messaging/{token}
     @Override
     @Nonnull
@@ -49,8 +50,6 @@ public class WebSocketMessagingHandler implements WebSocketHandler {
         }
         String token = path[path.length - 1];
 
-        Map<String, Disposable> subs = new ConcurrentHashMap<>();
-
         return userTokenManager.getByToken(token)
             .map(UserToken::getUserId)
             .flatMap(authenticationManager::getByUserId)
@@ -60,90 +59,108 @@ public class WebSocketMessagingHandler implements WebSocketHandler {
                 ))))
                 .then(session.close(CloseStatus.BAD_DATA))
                 .then(Mono.empty()))
-            .flatMap(auth -> session
-                .receive()
-                .doOnNext(message -> {
-                    try {
-                        if (message.getType() == WebSocketMessage.Type.PONG) {
-                            return;
-                        }
-                        if (message.getType() == WebSocketMessage.Type.PING) {
-                            session
-                                .send(Mono.just(session.pongMessage(DataBufferFactory::allocateBuffer)))
-                                .subscribe();
-                            return;
-                        }
-                        MessagingRequest request = JSON.parseObject(message.getPayloadAsText(), MessagingRequest.class);
-                        if (request == null) {
-                            return;
-                        }
-                        if (request.getType() == MessagingRequest.Type.ping) {
-                            session
-                                .send(Mono.just(session.textMessage(JSON.toJSONString(
-                                    Message.pong(request.getId())
-                                ))))
-                                .subscribe();
-                            return;
-                        }
-                        if (StringUtils.isEmpty(request.getId())) {
-                            session
-                                .send(Mono.just(session.textMessage(JSON.toJSONString(
-                                    Message.error(request.getType().name(), null, "id不能为空")
-                                )))).subscribe();
-                            return;
-                        }
-                        if (request.getType() == MessagingRequest.Type.sub) {
-                            //重复订阅
-                            Disposable old = subs.get(request.getId());
-                            if (old != null && !old.isDisposed()) {
-                                return;
-                            }
-                            Map<String, String> context = new HashMap<>();
-                            context.put("userId", auth.getUser().getId());
-                            context.put("userName", auth.getUser().getName());
-                            Disposable sub = messagingManager
-                                .subscribe(SubscribeRequest.of(request, auth))
-                                .doOnEach(ReactiveLogger.onError(err -> log.error("{}", err.getMessage(), err)))
-                                .onErrorResume(err -> Mono.just(Message.error(request.getId(), request.getTopic(), err)))
-                                .map(msg -> session.textMessage(JSON.toJSONString(msg)))
-                                .doOnComplete(() -> {
-                                    log.debug("complete subscription:{}", request.getTopic());
-                                    subs.remove(request.getId());
-                                    Mono.just(session.textMessage(JSON.toJSONString(Message.complete(request.getId()))))
-                                        .as(session::send)
-                                        .subscribe();
-                                })
-                                .doOnCancel(() -> {
-                                    log.debug("cancel subscription:{}", request.getTopic());
-                                    subs.remove(request.getId());
-                                })
-                                .transform(session::send)
-                                .subscriberContext(ReactiveLogger.start(context))
-                                .subscriberContext(Context.of(Authentication.class, auth))
-                                .subscribe();
-                            if (!sub.isDisposed()) {
-                                subs.put(request.getId(), sub);
-                            }
-                        } else if (request.getType() == MessagingRequest.Type.unsub) {
-                            Optional.ofNullable(subs.remove(request.getId()))
-                                    .ifPresent(Disposable::dispose);
-                        } else {
-                            session.send(Mono.just(session.textMessage(JSON.toJSONString(
-                                Message.error(request.getId(), request.getTopic(), "不支持的类型:" + request.getType())
-                            )))).subscribe();
-                        }
-                    } catch (Exception e) {
-                        log.warn(e.getMessage(), e);
-                        session.send(Mono.just(session.textMessage(JSON.toJSONString(
-                            Message.error("illegal_argument", null, "消息格式错误")
-                        )))).subscribe();
-                    }
-                })
-                .then())
-            .doFinally(r -> {
-                subs.values().forEach(Disposable::dispose);
-                subs.clear();
+            .flatMap(auth -> {
+                //所有订阅共用一个发送队列
+                WebSocketOutbound outbound = new WebSocketOutbound(session, properties);
+                Map<String, Disposable> subs = new ConcurrentHashMap<>();
+                Mono<Void> receive = session
+                    .receive()
+                    .doOnNext(message -> handleMessage(session, auth, outbound, subs, message))
+                    .doFinally(r -> outbound.dispose())
+                    .then();
+                return Mono
+                    .when(session.send(outbound.messages()), receive)
+                    .doFinally(r -> {
+                        subs.values().forEach(Disposable::dispose);
+                        subs.clear();
+                        outbound.dispose();
+                    });
             });
 
     }
+
+    private void handleMessage(WebSocketSession session,
+                               Authentication auth,
+                               WebSocketOutbound outbound,
+                               Map<String, Disposable> subs,
+                               WebSocketMessage message) {
+        try {
+            if (message.getType() == WebSocketMessage.Type.PONG) {
+                return;
+            }
+            if (message.getType() == WebSocketMessage.Type.PING) {
+                outbound.pong();
+                return;
+            }
+            MessagingRequest request = JSON.parseObject(message.getPayloadAsText(), MessagingRequest.class);
+            if (request == null) {
+                return;
+            }
+            if (request.getType() == MessagingRequest.Type.ping) {
+                send(session, outbound, Message.pong(request.getId()));
+                return;
+            }
+            if (StringUtils.isEmpty(request.getId())) {
+                send(session, outbound, Message.error(request.getType().name(), null, "id不能为空"));
+                return;
+            }
+            if (request.getType() == MessagingRequest.Type.sub) {
+                //重复订阅
+                Disposable old = subs.get(request.getId());
+                if (old != null && !old.isDisposed()) {
+                    return;
+                }
+                Map<String, String> context = new HashMap<>();
+                context.put("userId", auth.getUser().getId());
+                context.put("userName", auth.getUser().getName());
+                Disposable sub = messagingManager
+                    .subscribe(SubscribeRequest.of(request, auth))
+                    .doOnEach(ReactiveLogger.onError(err -> log.error("{}", err.getMessage(), err)))
+                    .onErrorResume(err -> Mono.just(Message.error(request.getId(), request.getTopic(), err)))
+                    .doOnComplete(() -> {
+                        log.debug("complete subscription:{}", request.getTopic());
+                        subs.remove(request.getId());
+                        send(session, outbound, Message.complete(request.getId()));
+                    })
+                    .doOnCancel(() -> {
+                        log.debug("cancel subscription:{}", request.getTopic());
+                        subs.remove(request.getId());
+                    })
+                    .subscriberContext(ReactiveLogger.start(context))
+                    .subscriberContext(Context.of(Authentication.class, auth))
+                    .subscribe(msg -> send(session, outbound, createConflateKey(request, msg), msg));
+                if (!sub.isDisposed()) {
+                    subs.put(request.getId(), sub);
+                }
+            } else if (request.getType() == MessagingRequest.Type.unsub) {
+                Optional.ofNullable(subs.remove(request.getId()))
+                        .ifPresent(Disposable::dispose);
+            } else {
+                send(session, outbound, Message.error(request.getId(), request.getTopic(), "不支持的类型:" + request.getType()));
+            }
+        } catch (Exception e) {
+            log.warn(e.getMessage(), e);
+            send(session, outbound, Message.error("illegal_argument", null, "消息格式错误"));
+        }
+    }
+
+    private String createConflateKey(MessagingRequest request, Message message) {
+        return message.getTopic() == null
+            ? request.getId()
+            : request.getId() + ":" + message.getTopic();
+    }
+
+    private void send(WebSocketSession session, WebSocketOutbound outbound, Message message) {
+        send(session, outbound, null, message);
+    }
+
+    private void send(WebSocketSession session, WebSocketOutbound outbound, String key, Message message) {
+        if (!outbound.send(key, message) && !outbound.isDisposed()) {
+            //发送队列已满,断开连接
+            outbound.dispose();
+            session
+                .close(CloseStatus.POLICY_VIOLATION)
+                .subscribe();
+        }
+    }
 }
@@ -4,6 +4,7 @@ import org.hswebframework.web.authorization.ReactiveAuthenticationManager;
 import org.hswebframework.web.authorization.token.UserTokenManager;
 import org.jetlinks.community.gateway.external.MessagingManager;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.Ordered;
@@ -20,19 +21,22 @@ import java.util.Map;
 //    ReactiveAuthenticationManager.class,
 //    UserTokenManager.class
 //})
+@EnableConfigurationProperties(WebSocketMessagingProperties.class)
 public class WebSocketMessagingHandlerConfiguration {
 
 
     @Bean
     public HandlerMapping webSocketMessagingHandlerMapping(MessagingManager messagingManager,
                                            UserTokenManager userTokenManager,
-                                           ReactiveAuthenticationManager authenticationManager) {
+                                           ReactiveAuthenticationManager authenticationManager,
+                                           WebSocketMessagingProperties properties) {
 
 
         WebSocketMessagingHandler messagingHandler=new WebSocketMessagingHandler(
             messagingManager,
             userTokenManager,
-            authenticationManager
+            authenticationManager,
+            properties
         );
         final Map<String, WebSocketHandler> map = new HashMap<>(1);
         map.put("/messaging/**", messagingHandler);
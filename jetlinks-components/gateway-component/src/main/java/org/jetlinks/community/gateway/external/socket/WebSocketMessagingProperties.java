@@ -0,0 +1,32 @@
+package org.jetlinks.community.gateway.external.socket;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * WebSocket消息网关配置
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "jetlinks.messaging.websocket")
+public class WebSocketMessagingProperties {
+
+    //每个连接最多等待发送的消息数量
+    private int maxPendingMessages = 1024;
+
+    //等待发送的消息数量达到上限时的处理方式
+    private OverflowPolicy overflow = OverflowPolicy.dropOldest;
+
+    public enum OverflowPolicy {
+        //丢弃最早的消息
+        dropOldest,
+        //同一个订阅的相同topic只保留最新的消息,仍然超过上限时丢弃最早的消息
+        conflate,
+        //断开连接
+        disconnect
+    }
+}
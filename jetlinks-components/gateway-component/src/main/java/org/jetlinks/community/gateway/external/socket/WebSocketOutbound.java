@@ -0,0 +1,320 @@
+package org.jetlinks.community.gateway.external.socket;
+
+import com.alibaba.fastjson.JSON;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.jetlinks.community.gateway.external.Message;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebSocket连接的发送队列,连接上的所有订阅共用一个有界队列,并通过一个流发送到客户端.
+ * <p>
+ * 消息在真正发送时才进行序列化,被丢弃或者被合并的消息不会产生序列化开销.
+ * <p>
+ * 监控指标为所有连接的汇总,不区分连接,避免每个连接都注册指标.
+ * 每个连接的延迟记录到分布统计中,连接在消息溢出和断开时会在日志中输出连接ID和延迟,用于定位较慢的连接.
+ *
+ * @author zhouhao
+ * @see WebSocketMessagingProperties
+ * @since 1.20
+ */
+@Slf4j
+class WebSocketOutbound implements Disposable {
+
+    //当前所有的连接,用于汇总监控指标
+    private static final Set<WebSocketOutbound> OUTBOUNDS = ConcurrentHashMap.newKeySet();
+
+    private static final Counter DROPPED = Counter
+        .builder("jetlinks.websocket.outbound.dropped")
+        .description("websocket dropped messages")
+        .register(Metrics.globalRegistry);
+
+    private static final Counter CONFLATED = Counter
+        .builder("jetlinks.websocket.outbound.conflated")
+        .description("websocket conflated messages")
+        .register(Metrics.globalRegistry);
+
+    //每个连接断开时的最大延迟
+    private static final DistributionSummary SESSION_LAG = DistributionSummary
+        .builder("jetlinks.websocket.outbound.session.lag")
+        .description("websocket max pending message age of each session in milliseconds")
+        .baseUnit("milliseconds")
+        .publishPercentiles(0.5, 0.95, 0.99)
+        .register(Metrics.globalRegistry);
+
+    static {
+        Gauge
+            .builder("jetlinks.websocket.outbound.pending",
+                     OUTBOUNDS,
+                     set -> set.stream().mapToInt(WebSocketOutbound::size).sum())
+            .description("websocket pending messages")
+            .register(Metrics.globalRegistry);
+        Gauge
+            .builder("jetlinks.websocket.outbound.lag",
+                     OUTBOUNDS,
+                     set -> set.stream().mapToLong(WebSocketOutbound::lag).max().orElse(0))
+            .description("websocket oldest pending message age in milliseconds")
+            .register(Metrics.globalRegistry);
+    }
+
+    private final WebSocketSession session;
+
+    private final int maxPending;
+
+    private final WebSocketMessagingProperties.OverflowPolicy policy;
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+    //合并模式下,key对应的还未发送的消息
+    private final Map<String, Entry> conflating = new HashMap<>();
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong conflated = new AtomicLong();
+
+    //队列中是否已经有pong帧
+    private boolean pendingPong;
+
+    //消息发送时的最大延迟
+    private volatile long maxLag;
+
+    private volatile FluxSink<WebSocketMessage> sink;
+
+    private volatile boolean disposed;
+
+    WebSocketOutbound(WebSocketSession session, WebSocketMessagingProperties properties) {
+        this.session = session;
+        this.maxPending = Math.max(1, properties.getMaxPendingMessages());
+        this.policy = properties.getOverflow();
+
+        OUTBOUNDS.add(this);
+    }
+
+    /**
+     * @return 发送到客户端的消息流, 通过{@link WebSocketSession#send(org.reactivestreams.Publisher)}订阅
+     */
+    Flux<WebSocketMessage> messages() {
+        return Flux.create(sink -> {
+            this.sink = sink;
+            sink.onRequest(n -> drain());
+            sink.onDispose(this);
+            drain();
+        });
+    }
+
+    /**
+     * 发送控制消息,如: 错误,完成等. 控制消息不会被合并.
+     *
+     * @param message 消息
+     * @return 是否成功放入队列, 返回false时应当断开连接
+     */
+    boolean send(Message message) {
+        return send(null, message);
+    }
+
+    /**
+     * 发送订阅的消息
+     *
+     * @param key     合并消息使用的key,为null时不合并
+     * @param message 消息
+     * @return 是否成功放入队列, 返回false时应当断开连接
+     */
+    boolean send(String key, Message message) {
+        synchronized (this) {
+            if (disposed) {
+                return false;
+            }
+            if (key != null && policy == WebSocketMessagingProperties.OverflowPolicy.conflate) {
+                Entry pending = conflating.get(key);
+                if (pending != null) {
+                    //保留原来的排队时间,用于计算延迟
+                    pending.message = message;
+                    conflated.incrementAndGet();
+                    CONFLATED.increment();
+                    return true;
+                }
+            }
+            if (queue.size() >= maxPending) {
+                if (policy == WebSocketMessagingProperties.OverflowPolicy.disconnect) {
+                    log.warn("websocket [{}] pending messages exceed {},lag {}ms,disconnect", session.getId(), maxPending, lagNow());
+                    return false;
+                }
+                dropOldest();
+            }
+            Entry entry = new Entry(key, message, System.currentTimeMillis());
+            queue.add(entry);
+            if (key != null && policy == WebSocketMessagingProperties.OverflowPolicy.conflate) {
+                conflating.put(key, entry);
+            }
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * 发送pong帧,pong帧同样受最大等待发送数量限制,队列中已经有pong帧时不再重复放入.
+     */
+    void pong() {
+        synchronized (this) {
+            if (disposed || pendingPong) {
+                return;
+            }
+            if (queue.size() >= maxPending) {
+                //队列已满时忽略pong,不影响待发送的消息
+                dropped.incrementAndGet();
+                DROPPED.increment();
+                return;
+            }
+            pendingPong = true;
+            queue.add(new Entry(null, null, System.currentTimeMillis()));
+        }
+        drain();
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    //最早等待发送的消息的等待时间
+    synchronized long lag() {
+        return lagNow();
+    }
+
+    private long lagNow() {
+        Entry entry = queue.peek();
+        return entry == null ? 0 : System.currentTimeMillis() - entry.time;
+    }
+
+    private void dropOldest() {
+        //优先丢弃订阅的数据消息,保留控制消息
+        Iterator<Entry> iterator = queue.iterator();
+        Entry drop = null;
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.key != null) {
+                drop = entry;
+                iterator.remove();
+                break;
+            }
+        }
+        if (drop == null) {
+            drop = queue.poll();
+        }
+        if (drop != null) {
+            if (drop.key != null) {
+                conflating.remove(drop.key, drop);
+            } else if (drop.message == null) {
+                pendingPong = false;
+            }
+        }
+        DROPPED.increment();
+        long total = dropped.incrementAndGet();
+        if (total == 1 || total % 1000 == 0) {
+            log.warn("websocket [{}] pending messages exceed {},lag {}ms,{} messages dropped",
+                     session.getId(), maxPending, lagNow(), total);
+        }
+    }
+
+    private Entry poll() {
+        synchronized (this) {
+            Entry entry = queue.poll();
+            if (entry != null) {
+                if (entry.key != null) {
+                    conflating.remove(entry.key, entry);
+                } else if (entry.message == null) {
+                    pendingPong = false;
+                }
+            }
+            return entry;
+        }
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            FluxSink<WebSocketMessage> sink = this.sink;
+            if (sink != null && !disposed) {
+                while (sink.requestedFromDownstream() > 0) {
+                    Entry entry = poll();
+                    if (entry == null) {
+                        break;
+                    }
+                    long lag = System.currentTimeMillis() - entry.time;
+                    if (lag > maxLag) {
+                        maxLag = lag;
+                    }
+                    sink.next(convert(entry));
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private WebSocketMessage convert(Entry entry) {
+        if (entry.message == null) {
+            return session.pongMessage(DataBufferFactory::allocateBuffer);
+        }
+        //直接序列化为字节,避免创建中间字符串
+        return new WebSocketMessage(WebSocketMessage.Type.TEXT,
+                                    session.bufferFactory().wrap(JSON.toJSONBytes(entry.message)));
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            if (disposed) {
+                return;
+            }
+            disposed = true;
+            queue.clear();
+            conflating.clear();
+        }
+        OUTBOUNDS.remove(this);
+        SESSION_LAG.record(maxLag);
+        if (dropped.get() > 0 || conflated.get() > 0) {
+            log.info("websocket [{}] closed,max lag:{}ms,dropped:{},conflated:{}",
+                     session.getId(), maxLag, dropped.get(), conflated.get());
+        } else {
+            log.debug("websocket [{}] closed,max lag:{}ms", session.getId(), maxLag);
+        }
+        FluxSink<WebSocketMessage> sink = this.sink;
+        if (sink != null) {
+            sink.complete();
+        }
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    private static class Entry {
+        private final String key;
+        private Message message;
+        private final long time;
+
+        private Entry(String key, Message message, long time) {
+            this.key = key;
+            this.message = message;
+            this.time = time;
+        }
+    }
+}
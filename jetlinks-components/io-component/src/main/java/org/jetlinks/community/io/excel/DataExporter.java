@@ -0,0 +1,199 @@
+package org.jetlinks.community.io.excel;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.hswebframework.ezorm.core.param.Sort;
+import org.hswebframework.web.api.crud.entity.QueryParamEntity;
+import org.hswebframework.web.exception.BusinessException;
+import org.hswebframework.web.exception.ValidationException;
+import org.jetlinks.community.io.file.FileInfo;
+import org.jetlinks.community.io.file.FileManager;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * 数据导出,限制导出时的内存占用以及单个节点同时进行的导出数量.
+ * <p>
+ * 使用方式:
+ * <pre>{@code
+ * ReactorExcel
+ *   .<T>writer(format)
+ *   .headers(headers)
+ *   .converter(converter)
+ *   .writeBuffer(exporter.source(param, service::query, format, offset), 512 * 1024)
+ *   .map(bufferFactory::wrap)
+ *   .transform(DataExporter.skipHeader(offset))
+ *   .as(exporter::export)
+ *   .as(response::writeWith);
+ * }</pre>
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Component
+@ConfigurationProperties(prefix = "jetlinks.export")
+public class DataExporter {
+
+    private final FileManager fileManager;
+
+    //单个节点同时进行的最大导出数量
+    @Getter
+    private int maxConcurrency = 4;
+
+    //从数据源预取的最大数据量
+    @Getter
+    @Setter
+    private int prefetch = 256;
+
+    //续传时分页查询的每页数据量
+    @Getter
+    @Setter
+    private int pageSize = 1000;
+
+    private Semaphore permits = new Semaphore(maxConcurrency);
+
+    public DataExporter(FileManager fileManager) {
+        this.fileManager = fileManager;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(Math.max(1, maxConcurrency));
+    }
+
+    /**
+     * 查询导出的数据,按{@link #getPrefetch()}限制从数据源预取的数据量,并从指定位置开始导出.
+     * <p>
+     * 查询会追加按id排序,保证多次导出的顺序一致.offset大于0时按{@link #getPageSize()}分页查询,
+     * 跳过的数据由数据库处理.续传的数据需要由调用方追加到已下载的文件末尾,
+     * 续传时写出的内容需要使用{@link #skipHeader(long)}去掉表头.
+     * xlsx格式每次导出都是一个完整的文件,无法拼接,因此只有csv格式支持续传.
+     * <p>
+     * offset为已下载的数据行数,不包含表头行,即已下载文件中完整的行数减1,末尾不完整的行需要由调用方丢弃.
+     * 导出过程中新增或删除的数据可能导致续传的数据重复或者遗漏.
+     *
+     * @param param  查询条件
+     * @param query  查询函数
+     * @param format 导出的文件格式
+     * @param offset 跳过的数据行数(不包含表头行),用于从中断的位置继续导出
+     * @param <T>    数据类型
+     * @return 数据源
+     */
+    public <T> Flux<T> source(QueryParamEntity param,
+                              Function<QueryParamEntity, Flux<T>> query,
+                              String format,
+                              long offset) {
+        if (offset > 0 && !"csv".equalsIgnoreCase(format)) {
+            return Flux.error(new ValidationException("offset", "只有csv格式支持续传"));
+        }
+        applySortById(param);
+        if (offset <= 0) {
+            param.setPaging(false);
+            return query
+                .apply(param)
+                .limitRate(Math.max(1, prefetch));
+        }
+        int pageSize = Math.max(1, this.pageSize);
+        long firstPage = offset / pageSize;
+        if (firstPage >= Integer.MAX_VALUE) {
+            return Flux.empty();
+        }
+        param.setPaging(true);
+        param.setPageSize(pageSize);
+        return Flux
+            .range((int) firstPage, Integer.MAX_VALUE - (int) firstPage)
+            //逐页查询,上一页写出后再查询下一页
+            .concatMap(pageIndex -> Flux
+                .defer(() -> {
+                    param.setPageIndex(pageIndex);
+                    return query.apply(param);
+                })
+                .collectList(), 1)
+            .takeUntil(page -> page.size() < pageSize)
+            .flatMapIterable(Function.identity())
+            //第一页中offset之前的数据
+            .skip(offset % pageSize);
+    }
+
+    /**
+     * 续传时去掉csv写出的表头行(第一个换行符及之前的内容),避免表头出现在续传文件的中间.
+     * offset小于等于0时不做处理.
+     *
+     * @param offset 跳过的数据行数
+     * @return 转换函数
+     * @see Flux#transform(Function)
+     */
+    public static Function<Flux<DataBuffer>, Flux<DataBuffer>> skipHeader(long offset) {
+        if (offset <= 0) {
+            return Function.identity();
+        }
+        return output -> Flux.defer(() -> {
+            boolean[] skipped = new boolean[1];
+            return output.<DataBuffer>handle((buffer, sink) -> {
+                if (skipped[0]) {
+                    sink.next(buffer);
+                    return;
+                }
+                int index = buffer.indexOf(b -> b == '\n', buffer.readPosition());
+                if (index >= 0) {
+                    skipped[0] = true;
+                    buffer.readPosition(index + 1);
+                    if (buffer.readableByteCount() > 0) {
+                        sink.next(buffer);
+                        return;
+                    }
+                }
+                //表头可能跨越多个缓冲区
+                DataBufferUtils.release(buffer);
+            });
+        });
+    }
+
+    private static void applySortById(QueryParamEntity param) {
+        List<Sort> sorts = param.getSorts();
+        if (sorts.stream().anyMatch(sort -> "id".equals(sort.getName()))) {
+            return;
+        }
+        Sort sort = new Sort();
+        sort.setName("id");
+        sort.setOrder("asc");
+        sorts.add(sort);
+    }
+
+    /**
+     * 导出数据,超过{@link #getMaxConcurrency()}时返回{@link BusinessException}.
+     *
+     * @param output 写出的文件内容
+     * @return 文件内容
+     */
+    public Flux<DataBuffer> export(Flux<DataBuffer> output) {
+        return Flux.using(this::acquire, ignore -> output, Semaphore::release);
+    }
+
+    /**
+     * 导出数据到文件管理器,可通过文件ID下载.
+     *
+     * @param fileName 文件名
+     * @param output   写出的文件内容
+     * @return 文件信息
+     */
+    public Mono<FileInfo> exportToFile(String fileName, Flux<DataBuffer> output) {
+        return Mono.using(this::acquire, ignore -> fileManager.saveFile(fileName, output), Semaphore::release);
+    }
+
+    private Semaphore acquire() {
+        Semaphore permits = this.permits;
+        if (!permits.tryAcquire()) {
+            throw new BusinessException("导出任务过多,请稍后重试");
+        }
+        return permits;
+    }
+}
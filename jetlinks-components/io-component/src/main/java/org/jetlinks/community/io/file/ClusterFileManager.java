@@ -9,6 +9,7 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.hswebframework.ezorm.rdb.mapping.ReactiveRepository;
 import org.hswebframework.web.exception.BusinessException;
@@ -20,21 +21,32 @@ import org.springframework.core.io.buffer.*;
 import org.springframework.http.codec.multipart.FilePart;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.File;
-import java.nio.file.NoSuchFileException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.io.IOException;
+import java.nio.file.*;
 import java.security.MessageDigest;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
 
+/**
+ * 集群文件管理器.
+ * <p>
+ * 文件按sha256存储,内容相同的文件共用同一份文件.上传后异步复制到{@link FileProperties#getReplicas()}个节点,
+ * 读取时优先读取本地的文件或者副本,本地不存在时依次从保存了文件的节点读取.
+ */
+@Slf4j
 public class ClusterFileManager implements FileManager {
 
+    static final String OTHER_REPLICAS = "replicas";
+
+    private static final String CONTENT_DIR = "content";
+
+    private static final String TEMP_DIR = ".tmp";
+
     private final FileProperties properties;
 
     private final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(ByteBufAllocator.DEFAULT);
@@ -43,6 +55,8 @@ public class ClusterFileManager implements FileManager {
 
     private final RpcManager rpcManager;
 
+    private final LocalFileCache cache;
+
     public ClusterFileManager(RpcManager rpcManager,
                               FileProperties properties,
                               ReactiveRepository<FileEntity, String> repository) {
@@ -50,6 +64,7 @@ public class ClusterFileManager implements FileManager {
         this.properties = properties;
         this.rpcManager = rpcManager;
         this.repository = repository;
+        this.cache = new LocalFileCache(properties, bufferFactory);
         rpcManager.registerService(new ServiceImpl());
     }
 
@@ -66,43 +81,117 @@ public class ClusterFileManager implements FileManager {
     }
 
     public Mono<FileInfo> doSaveFile(String name, Flux<DataBuffer> stream, FileOption... options) {
-        LocalDate now = LocalDate.now();
         FileInfo fileInfo = new FileInfo();
         fileInfo.setId(IDGenerator.MD5.generate());
         fileInfo.withFileName(name);
 
-        String storagePath = now.format(DateTimeFormatter.BASIC_ISO_DATE)
-            + "/" + fileInfo.getId() + "." + fileInfo.getExtension();
-
         MessageDigest md5 = DigestUtils.getMd5Digest();
         MessageDigest sha256 = DigestUtils.getSha256Digest();
         String storageBasePath = properties.getStorageBasePath();
         String serverNodeId = rpcManager.currentServerId();
-        Path path = Paths.get(storageBasePath, storagePath);
-        path.toFile().getParentFile().mkdirs();
+        //先写入临时文件,计算出摘要后再移动到按摘要存储的位置
+        Path temp = Paths.get(storageBasePath, TEMP_DIR, fileInfo.getId() + ".tmp");
+        temp.toFile().getParentFile().mkdirs();
         return stream
             .map(buffer -> updateDigest(md5, updateDigest(sha256, buffer)))
             .as(buf -> DataBufferUtils
-                .write(buf, path,
+                .write(buf, temp,
                        StandardOpenOption.WRITE,
                        StandardOpenOption.CREATE_NEW,
                        StandardOpenOption.TRUNCATE_EXISTING))
             .then(Mono.defer(() -> {
-                File savedFile = Paths.get(storageBasePath, storagePath).toFile();
-                if (!savedFile.exists()) {
+                File tempFile = temp.toFile();
+                if (!tempFile.exists()) {
                     return Mono.error(new BusinessException("error.file_storage_failed"));
                 }
                 fileInfo.withAccessKey(IDGenerator.MD5.generate());
                 fileInfo.setMd5(ByteBufUtil.hexDump(md5.digest()));
                 fileInfo.setSha256(ByteBufUtil.hexDump(sha256.digest()));
-                fileInfo.setLength(savedFile.length());
+                fileInfo.setLength(tempFile.length());
                 fileInfo.setCreateTime(System.currentTimeMillis());
                 fileInfo.setOptions(options);
-                FileEntity entity = FileEntity.of(fileInfo, storagePath, serverNodeId);
+
+                String storagePath = createStoragePath(fileInfo.getSha256());
+                return Mono
+                    .fromCallable(() -> {
+                        moveToStoragePath(temp, storagePath, fileInfo.getLength());
+                        return FileEntity.of(fileInfo, storagePath, serverNodeId);
+                    })
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .flatMap(entity -> repository
+                        .insert(entity)
+                        .then(Mono.fromSupplier(entity::toInfo))
+                        .doOnNext(ignore -> replicate(entity)));
+            }))
+            .doFinally(ignore -> FileDigestUtils.deleteQuietly(temp));
+    }
+
+    //按sha256存储文件,如: content/ab/abxxxx
+    private static String createStoragePath(String sha256) {
+        return CONTENT_DIR + "/" + sha256.substring(0, 2) + "/" + sha256;
+    }
+
+    private void moveToStoragePath(Path temp, String storagePath, long length) throws IOException {
+        Path path = Paths.get(properties.getStorageBasePath(), storagePath);
+        File file = path.toFile();
+        //内容相同的文件已经存在,共用同一份文件
+        if (file.exists() && file.length() == length) {
+            Files.delete(temp);
+            return;
+        }
+        file.getParentFile().mkdirs();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //异步将文件复制到其他节点
+    private void replicate(FileEntity entity) {
+        int replicas = properties.getReplicas();
+        if (replicas <= 1) {
+            return;
+        }
+        String currentServerId = rpcManager.currentServerId();
+        rpcManager
+            .getServices(Service.class)
+            .filter(service -> !Objects.equals(currentServerId, service.serverNodeId()))
+            .take(replicas - 1)
+            .flatMap(service -> service
+                .service()
+                .replicate(new ReplicateRequest(entity.getId()))
+                .filter(Boolean::booleanValue)
+                .map(ignore -> service.serverNodeId())
+                .onErrorResume(err -> {
+                    log.warn("replicate file [{}] to [{}] error", entity.getId(), service.serverNodeId(), err);
+                    return Mono.empty();
+                }))
+            .collectList()
+            .filter(nodes -> !nodes.isEmpty())
+            .flatMap(nodes -> {
+                Map<String, Object> others = entity.getOthers() == null
+                    ? new HashMap<>()
+                    : new HashMap<>(entity.getOthers());
+                others.put(OTHER_REPLICAS, nodes);
                 return repository
-                    .insert(entity)
-                    .then(Mono.fromSupplier(entity::toInfo));
-            }));
+                    .createUpdate()
+                    .set(FileEntity::getOthers, others)
+                    .where(FileEntity::getId, entity.getId())
+                    .execute();
+            })
+            .subscribe(
+                ignore -> {
+                },
+                err -> log.warn("replicate file [{}] error", entity.getId(), err));
+    }
+
+    //从其他节点复制文件到本地
+    private Mono<Boolean> storeReplica(FileEntity file) {
+        Path path = Paths.get(properties.getStorageBasePath(), file.getStoragePath());
+        if (isLocalFile(file)) {
+            return Mono.just(true);
+        }
+        Path temp = Paths.get(properties.getStorageBasePath(), TEMP_DIR, IDGenerator.MD5.generate() + ".tmp");
+        return FileDigestUtils
+            .writeVerified(readFromAnotherServer(file, 0), file.getSha256(), temp, path)
+            .thenReturn(true);
     }
 
     @Override
@@ -145,20 +234,68 @@ public class ClusterFileManager implements FileManager {
     }
 
     private Flux<DataBuffer> readFile(FileEntity file, long position) {
-        if (Objects.equals(file.getServerNodeId(), rpcManager.currentServerId())) {
+        //优先读取本地的文件或者副本
+        if (isLocalFile(file)) {
             return readFile(file.getStoragePath(), position);
         }
+        //其他节点的文件先缓存到本地,避免每次都从其他节点读取
+        if (cache.isCacheable(file)) {
+            return cache.read(file, position, _position -> readFromAnotherServer(file, _position));
+        }
         return readFromAnotherServer(file, position);
     }
 
+    private boolean isLocalFile(FileEntity file) {
+        if (Objects.equals(file.getServerNodeId(), rpcManager.currentServerId())) {
+            return true;
+        }
+        File local = Paths.get(properties.getStorageBasePath(), file.getStoragePath()).toFile();
+        return local.exists() && file.getLength() != null && local.length() == file.getLength();
+    }
+
+    //保存了文件的节点,第一个为上传文件的节点
+    @SuppressWarnings("all")
+    private List<String> getServerNodes(FileEntity file) {
+        List<String> nodes = new ArrayList<>();
+        nodes.add(file.getServerNodeId());
+        Object replicas = file.getOthers() == null ? null : file.getOthers().get(OTHER_REPLICAS);
+        if (replicas instanceof Collection) {
+            for (Object replica : ((Collection<Object>) replicas)) {
+                String node = String.valueOf(replica);
+                if (!nodes.contains(node)) {
+                    nodes.add(node);
+                }
+            }
+        }
+        nodes.remove(rpcManager.currentServerId());
+        return nodes;
+    }
+
     protected Flux<DataBuffer> readFromAnotherServer(FileEntity file, long position) {
+        return readFromAnotherServer(getServerNodes(file), 0, file, position);
+    }
 
-        return rpcManager
-            .getService(file.getServerNodeId(), Service.class)
-            .switchIfEmpty(Mono.error(NotFoundException::new))
-            .flatMapMany(service -> service.read(new ReadRequest(file.getId(), position)))
-            .<DataBuffer>map(bufferFactory::wrap)
-            .doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+    //依次从保存了文件的节点读取,节点不可用时尝试下一个节点
+    private Flux<DataBuffer> readFromAnotherServer(List<String> nodes, int index, FileEntity file, long position) {
+        if (index >= nodes.size()) {
+            return Flux.error(NotFoundException::new);
+        }
+        return Flux.defer(() -> {
+            AtomicBoolean received = new AtomicBoolean();
+            return rpcManager
+                .getService(nodes.get(index), Service.class)
+                .switchIfEmpty(Mono.error(NotFoundException::new))
+                .flatMapMany(service -> service.read(new ReadRequest(file.getId(), position)))
+                .<DataBuffer>map(bufferFactory::wrap)
+                .doOnNext(ignore -> received.set(true))
+                //已经读取了部分数据时无法切换节点
+                .onErrorResume(err -> !received.get(), err -> {
+                    if (index + 1 < nodes.size()) {
+                        log.warn("read file [{}] from [{}] error,try next server", file.getId(), nodes.get(index), err);
+                    }
+                    return readFromAnotherServer(nodes, index + 1, file, position);
+                });
+        }).doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
     }
 
     @Override
@@ -212,20 +349,34 @@ public class ClusterFileManager implements FileManager {
         private long position;
     }
 
+    @Getter
+    @Setter
+    @AllArgsConstructor
+    @NoArgsConstructor
+    public static class ReplicateRequest {
+        private String id;
+    }
+
     @io.scalecube.services.annotations.Service
     public interface Service {
 
         @ServiceMethod
         Flux<ByteBuf> read(ReadRequest request);
+
+        @ServiceMethod
+        Mono<Boolean> replicate(ReplicateRequest request);
     }
 
 
     public class ServiceImpl implements Service {
         @Override
         public Flux<ByteBuf> read(ReadRequest request) {
-            return ClusterFileManager
-                .this
-                .read(request.id, request.position)
+            //只读取本节点的文件,避免在节点之间循环读取
+            return repository
+                .findById(request.id)
+                .filter(ClusterFileManager.this::isLocalFile)
+                .switchIfEmpty(Mono.error(NotFoundException::new))
+                .flatMapMany(file -> readFile(file.getStoragePath(), request.position))
                 .map(buf -> {
                     if (buf instanceof NettyDataBuffer) {
                         return ((NettyDataBuffer) buf).getNativeBuffer();
@@ -233,5 +384,13 @@ public class ClusterFileManager implements FileManager {
                     return Unpooled.wrappedBuffer(buf.asByteBuffer());
                 });
         }
+
+        @Override
+        public Mono<Boolean> replicate(ReplicateRequest request) {
+            return repository
+                .findById(request.id)
+                .flatMap(ClusterFileManager.this::storeReplica)
+                .defaultIfEmpty(false);
+        }
     }
 }
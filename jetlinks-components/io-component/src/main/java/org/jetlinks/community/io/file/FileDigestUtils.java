@@ -0,0 +1,75 @@
+package org.jetlinks.community.io.file;
+
+import io.netty.buffer.ByteBufUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * 文件校验相关工具类
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Slf4j
+final class FileDigestUtils {
+
+    private FileDigestUtils() {
+    }
+
+    /**
+     * 将数据写入临时文件,校验sha256通过后原子移动到目标文件,目标文件已存在时会被替换.
+     * 无论成功与否,临时文件都会被删除.
+     *
+     * @param source 数据源
+     * @param sha256 期望的sha256
+     * @param temp   临时文件
+     * @param target 目标文件
+     * @return 目标文件大小的变化量, 即新文件大小减去被替换的文件大小
+     */
+    static Mono<Long> writeVerified(Flux<DataBuffer> source, String sha256, Path temp, Path target) {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        return Mono
+            .defer(() -> {
+                temp.toFile().getParentFile().mkdirs();
+                return DataBufferUtils
+                    .write(source.doOnNext(buffer -> digest.update(buffer.asByteBuffer())),
+                           temp,
+                           StandardOpenOption.CREATE,
+                           StandardOpenOption.WRITE,
+                           StandardOpenOption.TRUNCATE_EXISTING);
+            })
+            .then(Mono.fromCallable(() -> {
+                String hex = ByteBufUtil.hexDump(digest.digest());
+                if (!hex.equalsIgnoreCase(sha256)) {
+                    throw new IllegalStateException("file sha256 mismatch,expect " + sha256 + " but " + hex);
+                }
+                File targetFile = target.toFile();
+                targetFile.getParentFile().mkdirs();
+                long replaced = targetFile.exists() ? targetFile.length() : 0;
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return Files.size(target) - replaced;
+            }).subscribeOn(Schedulers.boundedElastic()))
+            .doFinally(ignore -> deleteQuietly(temp));
+    }
+
+    static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("delete file [{}] error", path, e);
+        }
+    }
+}
@@ -14,4 +14,23 @@ public class FileProperties {
 
     private DataSize readBufferSize = DataSize.ofKilobytes(64);
 
+    //文件副本数量,包含上传文件的节点,大于1时将文件异步复制到其他节点
+    private int replicas = 1;
+
+    //其他节点文件的本地缓存
+    private Cache cache = new Cache();
+
+    @Getter
+    @Setter
+    public static class Cache {
+        //缓存目录
+        private String path = "./data/files-cache";
+
+        //缓存的最大总大小,为0时不缓存
+        private DataSize maxSize = DataSize.ofGigabytes(1);
+
+        //超过此大小的文件不缓存
+        private DataSize maxFileSize = DataSize.ofMegabytes(256);
+    }
+
 }
@@ -0,0 +1,154 @@
+package org.jetlinks.community.io.file;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 其他节点文件的本地磁盘缓存,按文件的sha256缓存,相同内容的文件只缓存一份.
+ * <p>
+ * 同一个文件同时只会从其他节点下载一次,下载完成后校验sha256,校验通过才放入缓存.
+ * 缓存总大小超过{@link FileProperties.Cache#getMaxSize()}时按最近访问时间淘汰.
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Slf4j
+class LocalFileCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    private final long maxFileSize;
+
+    private final int readBufferSize;
+
+    private final DataBufferFactory bufferFactory;
+
+    private final AtomicLong size = new AtomicLong();
+
+    private final Map<String, Mono<Path>> downloading = new ConcurrentHashMap<>();
+
+    LocalFileCache(FileProperties properties, DataBufferFactory bufferFactory) {
+        FileProperties.Cache cache = properties.getCache();
+        this.directory = Paths.get(cache.getPath());
+        this.maxSize = cache.getMaxSize().toBytes();
+        this.maxFileSize = cache.getMaxFileSize().toBytes();
+        this.readBufferSize = (int) properties.getReadBufferSize().toBytes();
+        this.bufferFactory = bufferFactory;
+        init();
+    }
+
+    private void init() {
+        File dir = directory.toFile();
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            //删除上次未下载完成的文件
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else {
+                size.addAndGet(file.length());
+            }
+        }
+    }
+
+    boolean isCacheable(FileEntity file) {
+        return maxSize > 0
+            && file.getLength() != null
+            && file.getLength() <= maxFileSize
+            && StringUtils.hasText(file.getSha256());
+    }
+
+    /**
+     * 从缓存中读取文件,缓存不存在时下载整个文件到缓存中再读取,下载失败时直接从数据源读取.
+     *
+     * @param file     文件信息
+     * @param position 读取位置
+     * @param source   从其他节点读取文件,参数为读取位置
+     * @return 文件内容
+     */
+    Flux<DataBuffer> read(FileEntity file, long position, Function<Long, Flux<DataBuffer>> source) {
+        return getOrDownload(file, () -> source.apply(0L))
+            .onErrorResume(err -> {
+                log.warn("cache file [{}] error", file.getId(), err);
+                return Mono.empty();
+            })
+            .flatMapMany(path -> DataBufferUtils.read(new FileSystemResource(path), position, bufferFactory, readBufferSize))
+            .switchIfEmpty(Flux.defer(() -> source.apply(position)));
+    }
+
+    private Mono<Path> getOrDownload(FileEntity file, Supplier<Flux<DataBuffer>> source) {
+        String key = file.getSha256().toLowerCase();
+        Path path = directory.resolve(key);
+        return Mono.defer(() -> {
+            File cached = path.toFile();
+            if (cached.exists() && cached.length() == file.getLength()) {
+                //记录访问时间,用于淘汰缓存
+                cached.setLastModified(System.currentTimeMillis());
+                return Mono.just(path);
+            }
+            return downloading.computeIfAbsent(key, ignore -> download(key, path, source));
+        });
+    }
+
+    private Mono<Path> download(String key, Path path, Supplier<Flux<DataBuffer>> source) {
+        Path temp = directory.resolve(key + "." + System.nanoTime() + TEMP_SUFFIX);
+        return FileDigestUtils
+            .writeVerified(Flux.defer(source), key, temp, path)
+            .map(changed -> {
+                //替换长度不一致的旧文件时,只增加变化的大小
+                size.addAndGet(changed);
+                evict();
+                return path;
+            })
+            .doFinally(signal -> downloading.remove(key))
+            .cache();
+    }
+
+    long getSize() {
+        return size.get();
+    }
+
+    private synchronized void evict() {
+        if (size.get() <= maxSize) {
+            return;
+        }
+        File[] files = directory.toFile().listFiles(file -> !file.getName().endsWith(TEMP_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (size.get() <= maxSize) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size.addAndGet(-length);
+            }
+        }
+    }
+}
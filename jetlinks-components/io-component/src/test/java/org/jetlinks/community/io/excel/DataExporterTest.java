@@ -0,0 +1,160 @@
+package org.jetlinks.community.io.excel;
+
+import org.hswebframework.reactor.excel.CellDataType;
+import org.hswebframework.reactor.excel.ExcelHeader;
+import org.hswebframework.reactor.excel.ReactorExcel;
+import org.hswebframework.web.api.crud.entity.QueryParamEntity;
+import org.hswebframework.web.exception.ValidationException;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataExporterTest {
+
+    static final int TOTAL = 25;
+
+    //模拟数据库分页查询
+    static Flux<Integer> query(QueryParamEntity param, AtomicInteger queries) {
+        queries.incrementAndGet();
+        assertEquals("id", param.getSorts().get(param.getSorts().size() - 1).getName());
+        if (!param.isPaging()) {
+            return Flux.range(0, TOTAL);
+        }
+        int from = param.getPageIndex() * param.getPageSize();
+        return Flux.range(from, Math.max(0, Math.min(param.getPageSize(), TOTAL - from)));
+    }
+
+    static List<Integer> range(int from, int to) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    @Test
+    void testNoOffset() {
+        DataExporter exporter = new DataExporter(null);
+        AtomicInteger queries = new AtomicInteger();
+        exporter
+            .source(new QueryParamEntity(), param -> query(param, queries), "xlsx", 0)
+            .collectList()
+            .as(StepVerifier::create)
+            .expectNext(range(0, TOTAL))
+            .verifyComplete();
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    void testOffset() {
+        DataExporter exporter = new DataExporter(null);
+        exporter.setPageSize(10);
+        AtomicInteger queries = new AtomicInteger();
+        //从第2页开始查询,跳过第2页的前3条
+        exporter
+            .source(new QueryParamEntity(), param -> query(param, queries), "csv", 13)
+            .collectList()
+            .as(StepVerifier::create)
+            .expectNext(range(13, TOTAL))
+            .verifyComplete();
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    void testOffsetExactPage() {
+        DataExporter exporter = new DataExporter(null);
+        exporter.setPageSize(5);
+        AtomicInteger queries = new AtomicInteger();
+        //最后一页是满的,需要再查询一次空页才能结束
+        exporter
+            .source(new QueryParamEntity(), param -> query(param, queries), "csv", 20)
+            .collectList()
+            .as(StepVerifier::create)
+            .expectNext(range(20, TOTAL))
+            .verifyComplete();
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    void testOffsetNotSupported() {
+        DataExporter exporter = new DataExporter(null);
+        exporter
+            .source(new QueryParamEntity(), param -> query(param, new AtomicInteger()), "xlsx", 10)
+            .as(StepVerifier::create)
+            .verifyError(ValidationException.class);
+    }
+
+    static String join(Flux<DataBuffer> output) {
+        return DataBufferUtils
+            .join(output)
+            .map(buf -> {
+                String str = buf.toString(StandardCharsets.UTF_8);
+                DataBufferUtils.release(buf);
+                return str;
+            })
+            .defaultIfEmpty("")
+            .block();
+    }
+
+    //导出csv,bufferSize较小,表头和数据会分布在多个缓冲区中
+    static Flux<DataBuffer> writeCsv(DataExporter exporter, long offset) {
+        DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+        return ReactorExcel
+            .<Integer>writer("csv")
+            .headers(Arrays.asList(new ExcelHeader("id", "ID", CellDataType.STRING),
+                                   new ExcelHeader("name", "名称", CellDataType.STRING)))
+            .converter(id -> {
+                Map<String, Object> row = new HashMap<>();
+                row.put("id", String.valueOf(id));
+                row.put("name", "test" + id);
+                return row;
+            })
+            .writeBuffer(exporter.source(new QueryParamEntity(), param -> query(param, new AtomicInteger()), "csv", offset), 4)
+            .map(bufferFactory::wrap)
+            .transform(DataExporter.skipHeader(offset));
+    }
+
+    @Test
+    void testResumeCsv() {
+        DataExporter exporter = new DataExporter(null);
+        exporter.setPageSize(10);
+
+        String full = join(writeCsv(exporter, 0));
+        String[] lines = full.split("\n");
+        //表头+数据行
+        assertEquals(TOTAL + 1, lines.length);
+
+        //下载了表头和前13行后中断,末尾不完整的行已丢弃
+        int downloaded = 13;
+        StringBuilder first = new StringBuilder();
+        for (int i = 0; i <= downloaded; i++) {
+            first.append(lines[i]).append('\n');
+        }
+        //offset不包含表头行
+        String second = join(writeCsv(exporter, downloaded));
+        assertFalse(second.contains("ID"));
+        assertTrue(second.startsWith("13") || second.startsWith("\"13"), second);
+
+        assertEquals(full, first + second);
+    }
+
+    @Test
+    void testSkipHeader() {
+        DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+        Flux<DataBuffer> output = Flux
+            .just("I", "D\r", "\n1", "\n2\n")
+            .map(str -> bufferFactory.wrap(str.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("ID\r\n1\n2\n", join(output.transform(DataExporter.skipHeader(0))));
+        assertEquals("1\n2\n", join(output.transform(DataExporter.skipHeader(1))));
+    }
+}
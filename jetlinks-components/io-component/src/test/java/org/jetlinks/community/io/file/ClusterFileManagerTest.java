@@ -0,0 +1,142 @@
+package org.jetlinks.community.io.file;
+
+import io.netty.buffer.Unpooled;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hswebframework.ezorm.rdb.mapping.ReactiveRepository;
+import org.jetlinks.core.rpc.RpcManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class ClusterFileManagerTest {
+
+    static final byte[] CONTENT = "hello,world".getBytes();
+
+    @TempDir
+    Path dir;
+
+    private RpcManager rpcManager;
+
+    private ReactiveRepository<FileEntity, String> repository;
+
+    private ClusterFileManager.Service nodeA;
+
+    private ClusterFileManager.Service nodeB;
+
+    private FileEntity file;
+
+    private ClusterFileManager manager;
+
+    @BeforeEach
+    @SuppressWarnings("all")
+    void init() {
+        FileProperties properties = new FileProperties();
+        properties.setStorageBasePath(dir.resolve("files").toString());
+        properties.getCache().setMaxSize(DataSize.ofBytes(0));
+
+        nodeA = mock(ClusterFileManager.Service.class);
+        nodeB = mock(ClusterFileManager.Service.class);
+
+        rpcManager = mock(RpcManager.class);
+        when(rpcManager.currentServerId()).thenReturn("node-c");
+        when(rpcManager.getService("node-a", ClusterFileManager.Service.class)).thenReturn(Mono.just(nodeA));
+        when(rpcManager.getService("node-b", ClusterFileManager.Service.class)).thenReturn(Mono.just(nodeB));
+
+        String sha256 = DigestUtils.sha256Hex(CONTENT);
+        file = new FileEntity();
+        file.setId("test");
+        file.setLength((long) CONTENT.length);
+        file.setSha256(sha256);
+        file.setServerNodeId("node-a");
+        file.setStoragePath("content/" + sha256.substring(0, 2) + "/" + sha256);
+        file.setOthers(Collections.singletonMap(ClusterFileManager.OTHER_REPLICAS, Arrays.asList("node-a", "node-b")));
+
+        repository = mock(ReactiveRepository.class);
+        when(repository.findById("test")).thenReturn(Mono.just(file));
+
+        manager = new ClusterFileManager(rpcManager, properties, repository);
+    }
+
+    private File storageFile() {
+        return dir.resolve("files").resolve(file.getStoragePath()).toFile();
+    }
+
+    @Test
+    void testReadFailover() {
+        when(nodeA.read(any())).thenReturn(Flux.error(new IllegalStateException("node-a down")));
+        when(nodeB.read(any())).thenReturn(Flux.just(Unpooled.wrappedBuffer(CONTENT)));
+
+        DataBufferUtils
+            .join(manager.readFromAnotherServer(file, 0))
+            .map(buf -> {
+                String str = buf.toString(StandardCharsets.UTF_8);
+                DataBufferUtils.release(buf);
+                return str;
+            })
+            .as(StepVerifier::create)
+            .expectNext("hello,world")
+            .verifyComplete();
+        verify(nodeA).read(any());
+        verify(nodeB).read(any());
+    }
+
+    @Test
+    void testNoFailoverAfterReceived() {
+        when(nodeA.read(any())).thenReturn(Flux.concat(Flux.just(Unpooled.wrappedBuffer(CONTENT, 0, 5)),
+                                                       Flux.error(new IllegalStateException("node-a down"))));
+        when(nodeB.read(any())).thenReturn(Flux.just(Unpooled.wrappedBuffer(CONTENT)));
+
+        //已经读取了部分数据,不能切换到其他节点,否则数据会重复
+        manager.readFromAnotherServer(file, 0)
+               .doOnNext(DataBufferUtils::release)
+               .as(StepVerifier::create)
+               .expectNextCount(1)
+               .verifyError(IllegalStateException.class);
+        verify(nodeB, never()).read(any());
+    }
+
+    @Test
+    void testReplicate() throws Exception {
+        when(nodeA.read(any())).thenReturn(Flux.error(new IllegalStateException("node-a down")));
+        when(nodeB.read(any())).thenReturn(Flux.just(Unpooled.wrappedBuffer(CONTENT)));
+
+        manager.new ServiceImpl()
+            .replicate(new ClusterFileManager.ReplicateRequest("test"))
+            .as(StepVerifier::create)
+            .expectNext(true)
+            .verifyComplete();
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(storageFile().toPath()));
+    }
+
+    @Test
+    void testReplicateSha256Mismatch() {
+        when(nodeA.read(any())).thenReturn(Flux.just(Unpooled.wrappedBuffer("hello,jetlinks".getBytes())));
+
+        manager.new ServiceImpl()
+            .replicate(new ClusterFileManager.ReplicateRequest("test"))
+            .as(StepVerifier::create)
+            .verifyError(IllegalStateException.class);
+
+        assertFalse(storageFile().exists());
+        //临时文件已删除
+        File[] temps = dir.resolve("files").resolve(".tmp").toFile().listFiles();
+        assertTrue(temps == null || temps.length == 0);
+    }
+}
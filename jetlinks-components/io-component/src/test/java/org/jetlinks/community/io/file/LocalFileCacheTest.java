@@ -0,0 +1,152 @@
+package org.jetlinks.community.io.file;
+
+import io.netty.buffer.ByteBufAllocator;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalFileCacheTest {
+
+    private final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(ByteBufAllocator.DEFAULT);
+
+    @TempDir
+    Path dir;
+
+    private FileProperties properties;
+
+    @BeforeEach
+    void init() {
+        properties = new FileProperties();
+        properties.getCache().setPath(dir.toString());
+        properties.getCache().setMaxSize(DataSize.ofBytes(1024));
+    }
+
+    static FileEntity file(String id, byte[] content) {
+        FileEntity file = new FileEntity();
+        file.setId(id);
+        file.setLength((long) content.length);
+        file.setSha256(DigestUtils.sha256Hex(content));
+        return file;
+    }
+
+    static byte[] content(char c, int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) c;
+        }
+        return content;
+    }
+
+    Flux<DataBuffer> source(byte[] content, long position, AtomicInteger reads) {
+        return Flux.defer(() -> {
+            reads.incrementAndGet();
+            return Flux.just(bufferFactory.wrap(content))
+                       .map(buf -> buf.readPosition((int) position));
+        });
+    }
+
+    String read(LocalFileCache cache, FileEntity file, long position, byte[] source, AtomicInteger reads) {
+        return DataBufferUtils
+            .join(cache.read(file, position, _position -> source(source, _position, reads)))
+            .map(buf -> {
+                String str = buf.toString(StandardCharsets.UTF_8);
+                DataBufferUtils.release(buf);
+                return str;
+            })
+            .block();
+    }
+
+    @Test
+    void testCached() {
+        LocalFileCache cache = new LocalFileCache(properties, bufferFactory);
+        byte[] content = "hello,world".getBytes();
+        FileEntity file = file("test", content);
+        AtomicInteger reads = new AtomicInteger();
+
+        assertEquals("hello,world", read(cache, file, 0, content, reads));
+        assertEquals("world", read(cache, file, 6, content, reads));
+        //第二次读取使用缓存
+        assertEquals(1, reads.get());
+        assertEquals(content.length, cache.getSize());
+        assertTrue(dir.resolve(file.getSha256()).toFile().exists());
+    }
+
+    @Test
+    void testSha256Mismatch() {
+        LocalFileCache cache = new LocalFileCache(properties, bufferFactory);
+        FileEntity file = file("test", "hello,world".getBytes());
+        byte[] broken = "hello,jetlinks".getBytes();
+        AtomicInteger reads = new AtomicInteger();
+
+        //校验失败时直接从数据源读取,不放入缓存
+        assertEquals("hello,jetlinks", read(cache, file, 0, broken, reads));
+        assertEquals(2, reads.get());
+        assertEquals(0, cache.getSize());
+        File[] files = dir.toFile().listFiles();
+        assertNotNull(files);
+        assertEquals(0, files.length);
+    }
+
+    @Test
+    void testReplaceBrokenFile() throws Exception {
+        byte[] content = "hello,world".getBytes();
+        FileEntity file = file("test", content);
+        //长度不一致的旧缓存文件
+        Files.write(dir.resolve(file.getSha256()), "hello".getBytes());
+
+        LocalFileCache cache = new LocalFileCache(properties, bufferFactory);
+        assertEquals(5, cache.getSize());
+
+        assertEquals("hello,world", read(cache, file, 0, content, new AtomicInteger()));
+        assertEquals(content.length, cache.getSize());
+    }
+
+    @Test
+    void testEvict() {
+        LocalFileCache cache = new LocalFileCache(properties, bufferFactory);
+        FileEntity[] files = new FileEntity[3];
+        for (int i = 0; i < files.length; i++) {
+            byte[] content = content((char) ('a' + i), 400);
+            files[i] = file("test" + i, content);
+            read(cache, files[i], 0, content, new AtomicInteger());
+            //保证最后修改时间不同
+            dir.resolve(files[i].getSha256()).toFile().setLastModified(System.currentTimeMillis() - (files.length - i) * 10_000L);
+        }
+        //超过1024字节,淘汰最早访问的文件
+        assertEquals(800, cache.getSize());
+        assertFalse(dir.resolve(files[0].getSha256()).toFile().exists());
+        assertTrue(dir.resolve(files[1].getSha256()).toFile().exists());
+        assertTrue(dir.resolve(files[2].getSha256()).toFile().exists());
+    }
+
+    @Test
+    void testConcurrentDownload() {
+        LocalFileCache cache = new LocalFileCache(properties, bufferFactory);
+        byte[] content = "hello,world".getBytes();
+        FileEntity file = file("test", content);
+        AtomicInteger reads = new AtomicInteger();
+
+        Flux.range(0, 10)
+            .flatMap(ignore -> DataBufferUtils.join(cache.read(file, 0, _position -> source(content, _position, reads)))
+                                              .doOnNext(DataBufferUtils::release))
+            .as(StepVerifier::create)
+            .expectNextCount(10)
+            .verifyComplete();
+        assertEquals(1, reads.get());
+    }
+}
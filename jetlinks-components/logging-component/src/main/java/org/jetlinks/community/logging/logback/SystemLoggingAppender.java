@@ -6,42 +6,209 @@ import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 import ch.qos.logback.core.CoreConstants;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
-import lombok.extern.slf4j.Slf4j;
+import lombok.Getter;
+import lombok.Setter;
 import org.hswebframework.web.id.IDGenerator;
 import org.hswebframework.web.utils.ModuleUtils;
 import org.jetlinks.community.logging.system.SerializableSystemLog;
-import org.slf4j.MDC;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.util.ClassUtils;
 import org.springframework.util.StringUtils;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-@Slf4j
+/**
+ * 系统日志收集,将日志转换为{@link SerializableSystemLog}并通过{@link ApplicationEventPublisher}推送.
+ * <p>
+ * 日志线程只做限流判断并将日志放入有界队列,异常栈格式化,模块查找以及事件推送都在后台线程中执行.
+ * 队列已满或者超过限流的日志将被丢弃,不会阻塞产生日志的线程.
+ * <p>
+ * 可在logback配置中修改以下参数:
+ * <pre>{@code
+ * <appender name="LOGEventPublisher" class="org.jetlinks.community.logging.logback.SystemLoggingAppender">
+ *     <queueSize>8192</queueSize>
+ *     <maxEventsPerSecond>100</maxEventsPerSecond>
+ *     <includeCallerData>true</includeCallerData>
+ * </appender>
+ * }</pre>
+ */
 public class SystemLoggingAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 
     public static ApplicationEventPublisher publisher;
 
     public static final Map<String, String> staticContext = new ConcurrentHashMap<>();
 
+    //按类名缓存模块信息
+    private static final Map<String, ModuleLocation> modules = new ConcurrentHashMap<>();
+
+    //队列大小
+    @Getter
+    @Setter
+    private int queueSize = 8192;
+
+    //每个logger每个日志级别每秒最多收集的日志数量,小于等于0时不限制
+    @Getter
+    @Setter
+    private int maxEventsPerSecond = 100;
+
+    //是否获取调用者信息(方法名,行号,代码地址),获取调用者信息需要在日志线程中获取线程栈,日志量大时可关闭
+    @Getter
+    @Setter
+    private boolean includeCallerData = true;
+
+    //每次批量处理的最大数量
+    @Getter
+    @Setter
+    private int batchSize = 256;
+
+    private BlockingQueue<Entry> queue;
+
+    private final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Thread worker;
+
+    @Override
+    public void start() {
+        queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        super.start();
+        worker = new Thread(this::work, "system-logging-" + getName());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        Thread worker = this.worker;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Override
     protected void append(ILoggingEvent event) {
 
+        if (publisher == null || isOverLimit(event)) {
+            return;
+        }
+        //在日志线程中准备好格式化的消息,MDC等信息
+        event.prepareForDeferredProcessing();
+        StackTraceElement caller = null;
+        if (includeCallerData) {
+            StackTraceElement[] callerData = event.getCallerData();
+            caller = callerData.length > 0 ? callerData[0] : null;
+        }
+        if (!queue.offer(new Entry(event, caller, Thread.currentThread().getId()))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private boolean isOverLimit(ILoggingEvent event) {
+        if (maxEventsPerSecond <= 0) {
+            return false;
+        }
+        String key = event.getLoggerName() + ":" + event.getLevel().levelStr;
+        if (!limiters
+            .computeIfAbsent(key, ignore -> new RateLimiter())
+            .tryAcquire(event.getTimeStamp(), maxEventsPerSecond)) {
+            dropped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void work() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        while (isStarted() || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                for (Entry entry : batch) {
+                    publish(entry);
+                }
+                long droppedCount = dropped.getAndSet(0);
+                if (droppedCount > 0) {
+                    addWarn(droppedCount + " system log events dropped");
+                }
+            } catch (InterruptedException e) {
+                if (!isStarted()) {
+                    queue.drainTo(batch);
+                    batch.forEach(this::publish);
+                    return;
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void publish(Entry entry) {
+        ApplicationEventPublisher publisher = SystemLoggingAppender.publisher;
         if (publisher == null) {
             return;
         }
+        try {
+            publisher.publishEvent(convert(entry));
+        } catch (Throwable e) {
+            addError("publish system log error", e);
+        }
+    }
 
-        StackTraceElement element = event.getCallerData()[0];
-        IThrowableProxy proxies = event.getThrowableProxy();
+    private SerializableSystemLog convert(Entry entry) {
+        ILoggingEvent event = entry.event;
         String message = event.getFormattedMessage();
-        String stack;
+
+        StackTraceElement caller = entry.caller;
+        String className = caller == null ? event.getLoggerName() : caller.getClassName();
+        ModuleLocation module = modules.computeIfAbsent(className, ModuleLocation::of);
+
+        Map<String, String> context = new HashMap<>(staticContext);
+        Map<String, String> mdc = event.getMDCPropertyMap();
+        if (mdc != null) {
+            context.putAll(mdc);
+        }
+        return SerializableSystemLog
+            .builder()
+            .id(IDGenerator.SNOW_FLAKE_STRING.generate())
+            .mavenModule(module.artifactId)
+            .context(context)
+            .name(event.getLoggerName())
+            .level(event.getLevel().levelStr)
+            .className(className)
+            .methodName(caller == null ? null : caller.getMethodName())
+            .lineNumber(caller == null ? 0 : caller.getLineNumber())
+            .exceptionStack(createStack(message, event.getThrowableProxy()))
+            .java(module.createGitLocation(caller))
+            .threadName(event.getThreadName())
+            .createTime(event.getTimeStamp())
+            .message(message)
+            .threadId(String.valueOf(entry.threadId))
+            .build();
+    }
+
+    private static String createStack(String message, IThrowableProxy proxies) {
         StringJoiner joiner = new StringJoiner("\n", message + "\n[", "]");
         Queue<IThrowableProxy> queue = new LinkedList<>();
         queue.add(proxies);
         while (queue.size() > 0) {
             IThrowableProxy proxy = queue.poll();
-            if(proxy==null){
+            if (proxy == null) {
                 break;
             }
             int commonFrames = proxy.getCommonFrames();
@@ -58,57 +225,76 @@ public class SystemLoggingAppender extends UnsynchronizedAppenderBase<ILoggingEv
             }
             queue.addAll(Arrays.asList(proxy.getSuppressed()));
         }
-        stack = joiner.toString();
+        return joiner.toString();
+    }
 
-        try {
-            String gitLocation = null;
-            String mavenModule = null;
+    private static class Entry {
+        private final ILoggingEvent event;
+        private final StackTraceElement caller;
+        private final long threadId;
+
+        private Entry(ILoggingEvent event, StackTraceElement caller, long threadId) {
+            this.event = event;
+            this.caller = caller;
+            this.threadId = threadId;
+        }
+    }
+
+    //固定窗口限流,每秒重置
+    private static class RateLimiter {
+        private volatile long window;
+        private final AtomicLong count = new AtomicLong();
+
+        private boolean tryAcquire(long timestamp, int max) {
+            long current = timestamp / 1000;
+            if (current != window) {
+                synchronized (this) {
+                    if (current != window) {
+                        window = current;
+                        count.set(0);
+                    }
+                }
+            }
+            return count.incrementAndGet() <= max;
+        }
+    }
+
+    private static class ModuleLocation {
+        private static final ModuleLocation UNKNOWN = new ModuleLocation(null, null);
+
+        private final String artifactId;
+        //代码地址前缀,如: https://github.com/jetlinks/jetlinks-community/blob/master/jetlinks-components/xxx/src/main/java/org/jetlinks/Xxx.java
+        private final String javaLocation;
+
+        private ModuleLocation(String artifactId, String javaLocation) {
+            this.artifactId = artifactId;
+            this.javaLocation = javaLocation;
+        }
+
+        static ModuleLocation of(String className) {
             try {
-                Class<?> clazz = Class.forName(element.getClassName());
+                Class<?> clazz = Class.forName(className);
                 ModuleUtils.ModuleInfo moduleInfo = ModuleUtils.getModuleByClass(clazz);
+                String javaLocation = null;
                 if (!StringUtils.isEmpty(moduleInfo.getGitRepository())) {
-                    StringBuilder javaSb = new StringBuilder();
-                    javaSb.append(moduleInfo.getGitLocation());
-                    javaSb.append("src/main/java/");
-                    javaSb.append((ClassUtils.getPackageName(Class.forName(element.getClassName())).replace(".", "/")));
-                    javaSb.append("/");
-                    javaSb.append(Class.forName(element.getClassName()).getSimpleName());
-                    javaSb.append(".java#L");
-                    javaSb.append(element.getLineNumber());
-                    gitLocation = javaSb.toString();
+                    javaLocation = moduleInfo.getGitLocation() +
+                        "src/main/java/" +
+                        ClassUtils.getPackageName(clazz).replace(".", "/") +
+                        "/" +
+                        clazz.getSimpleName() +
+                        ".java";
                 }
-                mavenModule = moduleInfo.getArtifactId();
-            } catch (Exception ignore) {
-
-            }
-            Map<String, String> context = new HashMap<>(staticContext);
-            Map<String, String> mdc = MDC.getCopyOfContextMap();
-            if (mdc != null) {
-                context.putAll(mdc);
+                return new ModuleLocation(moduleInfo.getArtifactId(), javaLocation);
+            } catch (Throwable ignore) {
+                return UNKNOWN;
             }
-            SerializableSystemLog info = SerializableSystemLog.builder()
-                .id(IDGenerator.SNOW_FLAKE_STRING.generate())
-                .mavenModule(mavenModule)
-                .context(context)
-                .name(event.getLoggerName())
-                .level(event.getLevel().levelStr)
-                .className(element.getClassName())
-                .methodName(element.getMethodName())
-                .lineNumber(element.getLineNumber())
-                .exceptionStack(stack)
-                .java(gitLocation)
-                .threadName(event.getThreadName())
-                .createTime(event.getTimeStamp())
-                .message(message)
-                .threadId(String.valueOf(Thread.currentThread().getId()))
-                .build();
-            try {
-                publisher.publishEvent(info);
-            } catch (Exception ignore) {
-            }
-        } catch (Exception e) {
-            log.error("组装系统日志错误", e);
         }
 
+        String createGitLocation(StackTraceElement caller) {
+            if (javaLocation == null || caller == null) {
+                return javaLocation;
+            }
+            return javaLocation + "#L" + caller.getLineNumber();
+        }
     }
 }
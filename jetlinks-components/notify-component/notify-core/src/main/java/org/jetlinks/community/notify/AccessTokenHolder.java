@@ -0,0 +1,153 @@
+package org.jetlinks.community.notify;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * 第三方平台(如: 钉钉,企业微信)的AccessToken持有者.
+ * <p>
+ * 同一时刻最多只有一个获取Token的请求,并发获取Token时共享同一个请求的结果.
+ * Token即将过期时({@link #refreshBefore})在后台提前刷新,刷新期间仍然使用旧的Token,获取失败时按随机退避时间重试.
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Slf4j
+public class AccessTokenHolder {
+
+    private final String name;
+
+    private final Supplier<Mono<AccessToken>> requester;
+
+    private final long refreshBefore;
+
+    private final Retry retry;
+
+    private volatile AccessToken current;
+
+    private final AtomicReference<Sinks.One<String>> refreshing = new AtomicReference<>();
+
+    /**
+     * @param name      名称,用于打印日志
+     * @param requester 请求新的Token
+     */
+    public AccessTokenHolder(String name, Supplier<Mono<AccessToken>> requester) {
+        this(name, requester, Duration.ofMinutes(5), 3, Duration.ofMillis(500));
+    }
+
+    /**
+     * @param name          名称,用于打印日志
+     * @param requester     请求新的Token
+     * @param refreshBefore 在过期前多久开始刷新Token
+     * @param maxRetries    获取Token失败时的最大重试次数
+     * @param retryBackoff  第一次重试的间隔
+     */
+    public AccessTokenHolder(String name,
+                             Supplier<Mono<AccessToken>> requester,
+                             Duration refreshBefore,
+                             int maxRetries,
+                             Duration retryBackoff) {
+        this.name = name;
+        this.requester = requester;
+        this.refreshBefore = refreshBefore.toMillis();
+        this.retry = Retry.backoff(maxRetries, retryBackoff).jitter(0.5);
+    }
+
+    /**
+     * 获取Token,Token不存在或者已过期时请求新的Token.
+     *
+     * @return Token
+     */
+    public Mono<String> getToken() {
+        return Mono.defer(() -> {
+            AccessToken token = current;
+            long now = System.currentTimeMillis();
+            if (token == null || now >= token.expireTime) {
+                return refresh();
+            }
+            //即将过期,在后台刷新
+            if (now >= token.expireTime - refreshBefore) {
+                refresh().subscribe(ignore -> {
+                }, error -> log.warn("refresh {} access token error", name, error));
+            }
+            return Mono.just(token.token);
+        });
+    }
+
+    /**
+     * 使Token失效,如: 调用接口时平台返回Token无效,下一次获取Token时将重新请求.
+     *
+     * @param token 失效的Token
+     */
+    public void invalidate(String token) {
+        AccessToken current = this.current;
+        if (current != null && Objects.equals(current.token, token)) {
+            this.current = null;
+        }
+    }
+
+    public void invalidate() {
+        current = null;
+    }
+
+    private Mono<String> refresh() {
+        for (; ; ) {
+            Sinks.One<String> sink = refreshing.get();
+            if (sink != null) {
+                return sink.asMono();
+            }
+            sink = Sinks.one();
+            if (refreshing.compareAndSet(null, sink)) {
+                doRefresh(sink);
+                return sink.asMono();
+            }
+        }
+    }
+
+    private void doRefresh(Sinks.One<String> sink) {
+        Mono.defer(requester)
+            .retryWhen(retry)
+            .subscribe(
+                token -> {
+                    current = token;
+                    refreshing.compareAndSet(sink, null);
+                    sink.tryEmitValue(token.token);
+                },
+                error -> {
+                    refreshing.compareAndSet(sink, null);
+                    sink.tryEmitError(unwrapRetryExhausted(error));
+                },
+                () -> {
+                    if (refreshing.compareAndSet(sink, null)) {
+                        sink.tryEmitEmpty();
+                    }
+                });
+    }
+
+    //重试次数耗尽时返回最后一次的错误
+    private static Throwable unwrapRetryExhausted(Throwable error) {
+        return Exceptions.isRetryExhausted(error) && error.getCause() != null ? error.getCause() : error;
+    }
+
+    public static class AccessToken {
+        private final String token;
+        private final long expireTime;
+
+        /**
+         * @param token     Token
+         * @param expiresIn 有效期
+         */
+        public AccessToken(String token, Duration expiresIn) {
+            this.token = token;
+            this.expireTime = System.currentTimeMillis() + expiresIn.toMillis();
+        }
+    }
+}
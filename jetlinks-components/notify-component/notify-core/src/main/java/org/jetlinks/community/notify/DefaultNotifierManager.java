@@ -20,6 +20,9 @@ public class DefaultNotifierManager implements NotifierManager, BeanPostProcesso
 
     private Map<String, Notifier> notifiers = new ConcurrentHashMap<>();
 
+    //并发获取同一个通知器时只创建一次
+    private final SingleFlightLoader<Notifier> loader = new SingleFlightLoader<>();
+
     private NotifyConfigManager configManager;
 
     private EventBus eventBus;
@@ -35,6 +38,7 @@ public class DefaultNotifierManager implements NotifierManager, BeanPostProcesso
     }
 
     public Mono<Void> reload(String id) {
+        loader.invalidate(id);
         return Mono.justOrEmpty(notifiers.remove(id))
             .flatMap(Notifier::close);
     }
@@ -57,7 +61,7 @@ public class DefaultNotifierManager implements NotifierManager, BeanPostProcesso
     public Mono<Notifier> getNotifier(@Nonnull NotifyType type,
                                       @Nonnull String id) {
         return Mono.justOrEmpty(notifiers.get(id))
-            .switchIfEmpty(Mono.defer(() -> getProperties(type, id)).flatMap(this::createNotifier));
+            .switchIfEmpty(loader.load(id, () -> getProperties(type, id).flatMap(this::createNotifier)));
     }
 
     protected void registerProvider(NotifierProvider provider) {
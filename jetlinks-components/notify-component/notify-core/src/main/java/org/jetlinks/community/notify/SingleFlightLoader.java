@@ -0,0 +1,85 @@
+package org.jetlinks.community.notify;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 按ID加载数据,相同ID同一时刻只会执行一次加载,并发加载时共享同一次加载的结果.
+ * <p>
+ * 加载结果为空时(如: 配置不存在)将在{@link #missingTimeout}内直接返回{@link Mono#empty()},
+ * 配置变更时应调用{@link #invalidate(String)}清除.
+ *
+ * @param <T> 数据类型
+ * @author zhouhao
+ * @since 1.20
+ */
+public class SingleFlightLoader<T> {
+
+    private final Map<String, Flight> loading = new ConcurrentHashMap<>();
+
+    //不存在的数据ID以及过期时间
+    private final Map<String, Long> missing = new ConcurrentHashMap<>();
+
+    private final long missingTimeout;
+
+    public SingleFlightLoader() {
+        this(Duration.ofMinutes(1));
+    }
+
+    public SingleFlightLoader(Duration missingTimeout) {
+        this.missingTimeout = missingTimeout.toMillis();
+    }
+
+    /**
+     * 加载数据,如果已经有相同ID的加载正在进行,则等待其结果.
+     *
+     * @param id     ID
+     * @param loader 加载数据
+     * @return 数据
+     */
+    public Mono<T> load(String id, Supplier<Mono<T>> loader) {
+        return Mono.defer(() -> {
+            Long expires = missing.get(id);
+            if (expires != null) {
+                if (System.currentTimeMillis() < expires) {
+                    return Mono.empty();
+                }
+                missing.remove(id, expires);
+            }
+            return loading
+                .computeIfAbsent(id, _id -> new Flight(_id, loader))
+                .mono;
+        });
+    }
+
+    /**
+     * 清除不存在的缓存以及正在进行的加载,下一次加载时将重新执行
+     *
+     * @param id ID
+     */
+    public void invalidate(String id) {
+        missing.remove(id);
+        loading.remove(id);
+    }
+
+    private class Flight {
+        private final Mono<T> mono;
+
+        private Flight(String id, Supplier<Mono<T>> loader) {
+            this.mono = Mono
+                .defer(loader)
+                .doOnSuccess(value -> {
+                    if (value == null && missingTimeout > 0) {
+                        missing.put(id, System.currentTimeMillis() + missingTimeout);
+                    }
+                })
+                //加载完成后移除,之后的请求从调用方的缓存中获取
+                .doFinally(signal -> loading.remove(id, this))
+                .cache();
+        }
+    }
+}
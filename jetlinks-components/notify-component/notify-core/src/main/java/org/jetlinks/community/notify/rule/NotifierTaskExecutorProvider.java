@@ -2,8 +2,6 @@ package org.jetlinks.community.notify.rule;
 
 import lombok.AllArgsConstructor;
 import org.hswebframework.web.bean.FastBeanCopier;
-import org.jetlinks.community.notify.NotifierManager;
-import org.jetlinks.core.Values;
 import org.jetlinks.rule.engine.api.RuleData;
 import org.jetlinks.rule.engine.api.RuleDataHelper;
 import org.jetlinks.rule.engine.api.task.ExecutionContext;
@@ -20,7 +18,7 @@ import java.util.function.Function;
 @AllArgsConstructor
 public class NotifierTaskExecutorProvider implements TaskExecutorProvider {
 
-    private final NotifierManager notifierManager;
+    private final NotifyDispatcher dispatcher;
 
     @Override
     public String getExecutor() {
@@ -43,12 +41,13 @@ public class NotifierTaskExecutorProvider implements TaskExecutorProvider {
 
 
     public Function<RuleData, Publisher<RuleData>> createExecutor(ExecutionContext context, RuleNotifierProperties config) {
-        return rule -> notifierManager
-            .getNotifier(config.getNotifyType(), config.getNotifierId())
-            .switchIfEmpty(Mono.fromRunnable(() -> {
-                context.getLogger().warn("通知器[{}-{}]不存在", config.getNotifyType(), config.getNotifierId());
-            }))
-            .flatMap(notifier -> notifier.send(config.getTemplateId(), Values.of(RuleDataHelper.toContextMap(rule))))
+        //通知放入发送队列后由调度器限流,合并以及重试发送,避免告警风暴时大量调用服务商接口
+        return rule -> dispatcher
+            .dispatch(config.getNotifyType(),
+                      config.getNotifierId(),
+                      config.getTemplateId(),
+                      RuleDataHelper.toContextMap(rule),
+                      config.getCoalesceWindow() == null ? dispatcher.getCoalesceWindow() : config.getCoalesceWindow())
             .doOnError(err -> {
                 context.getLogger().error("发送[{}]通知[{}-{}]失败",
                     config.getNotifyType().getName(),
@@ -56,7 +55,7 @@ public class NotifierTaskExecutorProvider implements TaskExecutorProvider {
                     config.getTemplateId(), err);
             })
             .doOnSuccess(ignore -> {
-                context.getLogger().info("发送[{}]通知[{}-{}]完成",
+                context.getLogger().info("[{}]通知[{}-{}]已放入发送队列",
                     config.getNotifyType().getName(),
                     config.getNotifierId(),
                     config.getTemplateId());
@@ -0,0 +1,518 @@
+package org.jetlinks.community.notify.rule;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.hswebframework.web.exception.BusinessException;
+import org.jetlinks.community.buffer.BufferProperties;
+import org.jetlinks.community.buffer.BufferSettings;
+import org.jetlinks.community.buffer.PersistenceBuffer;
+import org.jetlinks.community.notify.DefaultNotifyType;
+import org.jetlinks.community.notify.NotifierManager;
+import org.jetlinks.core.Values;
+import org.jetlinks.core.cache.FileQueue;
+import org.jetlinks.core.utils.Reactors;
+import org.jetlinks.core.utils.SerializeUtils;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通知发送调度器,规则引擎中的通知先放入本地文件队列,再按以下规则发送:
+ * <ul>
+ *     <li>每个通知配置使用独立的令牌桶限制发送频率,避免触发服务商的频率限制.
+ *     队列中的通知按通知配置分发到各自的发送通道中等待令牌,被限流的通知配置不会阻塞其他通知配置的发送,
+ *     通道中等待发送的通知超过{@link #getMaxPendingPerNotifier()}时放回队列稍后发送</li>
+ *     <li>开启了合并时(默认不合并,可在规则中单独配置),在合并窗口内相同的通知配置,模版以及接收人的通知只发送第一条,
+ *     其余的通知在窗口结束时合并为一条汇总通知发送,可在模版中使用变量{@code coalescedCount}获取合并的数量</li>
+ *     <li>发送失败时按{@link #getRetryBackoff()}进行退避重试,重试后仍然失败的通知保存到本地文件队列中,
+ *     可通过{@link #retryFailed()}重新发送,配置了{@link #getFailedRetryInterval()}时定时重新发送</li>
+ * </ul>
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Slf4j
+@Component
+@ConfigurationProperties(prefix = "notify.dispatcher")
+public class NotifyDispatcher {
+
+    static final String COALESCED_COUNT = "coalescedCount";
+    static final String COALESCED_FIRST_TIME = "coalescedFirstTime";
+    static final String COALESCED_LAST_TIME = "coalescedLastTime";
+
+    private final NotifierManager notifierManager;
+
+    //缓冲队列配置
+    @Getter
+    @Setter
+    private DispatcherBufferProperties buffer = new DispatcherBufferProperties();
+
+    //默认的发送频率限制
+    @Getter
+    @Setter
+    private RateLimit rateLimit = new RateLimit();
+
+    //按通知配置ID或者通知类型(如: sms)单独设置发送频率限制
+    @Getter
+    @Setter
+    private Map<String, RateLimit> rateLimits = new HashMap<>();
+
+    //默认合并相同通知的时间窗口,小于等于0时不合并.规则中可单独配置
+    @Getter
+    @Setter
+    private Duration coalesceWindow = Duration.ZERO;
+
+    //表示接收人的上下文变量,合并通知时接收人不同的通知不会被合并
+    @Getter
+    @Setter
+    private Set<String> recipientKeys = new HashSet<>(Arrays.asList("sendTo", "to", "toUser", "userId", "phoneNumber", "email"));
+
+    //发送失败时的最大重试次数
+    @Getter
+    @Setter
+    private int maxRetries = 3;
+
+    //第一次重试的间隔,之后每次重试的间隔翻倍
+    @Getter
+    @Setter
+    private Duration retryBackoff = Duration.ofSeconds(1);
+
+    //每个通知配置同时发送的最大通知数量
+    @Getter
+    @Setter
+    private int concurrency = 16;
+
+    //每个通知配置在内存中等待发送的最大通知数量,超过后放回缓冲队列
+    @Getter
+    @Setter
+    private int maxPendingPerNotifier = 1000;
+
+    //定时重新发送失败通知的间隔,小于等于0时不自动重新发送
+    @Getter
+    @Setter
+    private Duration failedRetryInterval = Duration.ZERO;
+
+    private PersistenceBuffer<NotifyTask> queue;
+
+    //重试后仍然发送失败的通知
+    private FileQueue<NotifyTask> failedQueue;
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    private Disposable failedRetryTask;
+
+    private final Map<String, CoalesceWindow> windows = new ConcurrentHashMap<>();
+
+    public NotifyDispatcher(NotifierManager notifierManager) {
+        this.notifierManager = notifierManager;
+    }
+
+    @PostConstruct
+    public void init() {
+        queue = new PersistenceBuffer<>(
+            BufferSettings.create("notify-dispatch.queue", buffer),
+            NotifyTask::new,
+            this::handleBuffer)
+            .name("notify-dispatcher");
+        queue.start();
+        failedQueue = FileQueue
+            .<NotifyTask>builder()
+            .name("notify-dispatch.failed")
+            .path(Paths.get(buffer.getFilePath()))
+            .build();
+        if (failedRetryInterval != null && failedRetryInterval.toMillis() > 0) {
+            failedRetryTask = Flux
+                .interval(failedRetryInterval)
+                .subscribe(ignore -> {
+                    int count = retryFailed();
+                    if (count > 0) {
+                        log.info("retry {} failed notifications", count);
+                    }
+                });
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (failedRetryTask != null) {
+            failedRetryTask.dispose();
+        }
+        //将还未发送的汇总通知写入队列,重启后继续发送
+        for (String key : new ArrayList<>(windows.keySet())) {
+            flushWindow(key);
+        }
+        //将通道中还未发送的通知写回队列
+        for (Lane lane : lanes.values()) {
+            lane.dispose();
+        }
+        lanes.clear();
+        queue.dispose();
+        failedQueue.close();
+    }
+
+    /**
+     * 将通知放入发送队列,使用默认的合并窗口,队列已满时返回{@link BusinessException}
+     *
+     * @param notifyType 通知类型
+     * @param notifierId 通知配置ID
+     * @param templateId 模版ID
+     * @param context    上下文
+     * @return void
+     */
+    public Mono<Void> dispatch(DefaultNotifyType notifyType,
+                               String notifierId,
+                               String templateId,
+                               Map<String, Object> context) {
+        return dispatch(notifyType, notifierId, templateId, context, coalesceWindow);
+    }
+
+    /**
+     * 将通知放入发送队列,队列已满时返回{@link BusinessException}
+     *
+     * @param notifyType     通知类型
+     * @param notifierId     通知配置ID
+     * @param templateId     模版ID
+     * @param context        上下文
+     * @param coalesceWindow 合并窗口,为null或者小于等于0时不合并
+     * @return void
+     */
+    public Mono<Void> dispatch(DefaultNotifyType notifyType,
+                               String notifierId,
+                               String templateId,
+                               Map<String, Object> context,
+                               Duration coalesceWindow) {
+        return Mono.fromRunnable(() -> {
+            NotifyTask task = new NotifyTask(notifyType, notifierId, templateId, context);
+            if (coalesceWindow == null || coalesceWindow.toMillis() <= 0 || !coalesce(task, coalesceWindow)) {
+                enqueue(task);
+            }
+        });
+    }
+
+    /**
+     * @return 重试后仍然发送失败的通知数量
+     */
+    public int getFailedSize() {
+        return failedQueue.size();
+    }
+
+    /**
+     * 将发送失败的通知重新放入发送队列
+     *
+     * @return 重新发送的数量
+     */
+    public int retryFailed() {
+        int count = 0;
+        NotifyTask task;
+        while (queue.size() < buffer.getMaxQueueSize() && (task = failedQueue.poll()) != null) {
+            queue.write(task);
+            count++;
+        }
+        return count;
+    }
+
+    private void enqueue(NotifyTask task) {
+        if (queue.size() >= buffer.getMaxQueueSize()) {
+            throw new BusinessException("通知发送队列已满");
+        }
+        queue.write(task);
+    }
+
+    //尝试合并到已有的窗口中,返回false表示开启了新的窗口,需要立即发送
+    private boolean coalesce(NotifyTask task, Duration coalesceWindow) {
+        String key = createCoalesceKey(task);
+        boolean[] merged = new boolean[1];
+        windows.compute(key, (_key, window) -> {
+            if (window == null) {
+                return new CoalesceWindow(task.timestamp);
+            }
+            window.merge(task);
+            merged[0] = true;
+            return window;
+        });
+        if (!merged[0]) {
+            Schedulers
+                .parallel()
+                .schedule(() -> flushWindow(key), coalesceWindow.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        return merged[0];
+    }
+
+    private void flushWindow(String key) {
+        CoalesceWindow window = windows.remove(key);
+        if (window == null || window.last == null) {
+            return;
+        }
+        NotifyTask digest = window.last;
+        Map<String, Object> context = new HashMap<>(digest.context);
+        context.put(COALESCED_COUNT, window.count);
+        context.put(COALESCED_FIRST_TIME, window.firstTime);
+        context.put(COALESCED_LAST_TIME, digest.timestamp);
+        digest.context = context;
+        try {
+            enqueue(digest);
+        } catch (Throwable error) {
+            log.warn("dispatch coalesced notification [{}] error", key, error);
+        }
+    }
+
+    private String createCoalesceKey(NotifyTask task) {
+        StringJoiner joiner = new StringJoiner(":");
+        joiner.add(task.notifyType.getId())
+              .add(task.notifierId)
+              .add(task.templateId);
+        for (String recipientKey : recipientKeys) {
+            Object recipient = task.context.get(recipientKey);
+            if (recipient != null) {
+                joiner.add(String.valueOf(recipient));
+            }
+        }
+        return joiner.toString();
+    }
+
+    //将通知分发到对应通知配置的发送通道中,不在此等待令牌,避免被限流的通知配置阻塞整个队列
+    private Mono<Boolean> handleBuffer(Flux<NotifyTask> tasks) {
+        return tasks
+            .doOnNext(task -> getLane(task).offer(task))
+            .then(Reactors.ALWAYS_FALSE);
+    }
+
+    private Lane getLane(NotifyTask task) {
+        return lanes.computeIfAbsent(
+            task.notifyType.getId() + ":" + task.notifierId,
+            ignore -> new Lane(new TokenBucket(getRateLimit(task))));
+    }
+
+    private Mono<Void> send(NotifyTask task) {
+        return Mono
+            .defer(() -> notifierManager
+                .getNotifier(task.notifyType, task.notifierId)
+                .switchIfEmpty(Mono.fromRunnable(() -> log
+                    .warn("notifier [{}-{}] not found", task.notifyType.getId(), task.notifierId)))
+                .flatMap(notifier -> notifier.send(task.templateId, Values.of(task.context))))
+            .retryWhen(Retry
+                           .backoff(maxRetries, retryBackoff)
+                           //通知配置或者模版错误,重试也无法成功
+                           .filter(err -> !(err instanceof UnsupportedOperationException)
+                               && !(err instanceof IllegalArgumentException)))
+            .onErrorResume(err -> {
+                log.warn("send [{}] notification [{}-{}] failed",
+                         task.notifyType.getName(),
+                         task.notifierId,
+                         task.templateId,
+                         err);
+                saveFailed(task);
+                return Mono.empty();
+            });
+    }
+
+    /**
+     * 通知配置的发送通道,按顺序获取令牌后发送,令牌不足时只有此通道等待.
+     */
+    private class Lane implements Disposable {
+        private final TokenBucket bucket;
+
+        private final Sinks.Many<NotifyTask> sink = Sinks.many().unicast().onBackpressureBuffer();
+
+        //已经放入通道还未发送完成的通知
+        private final Set<NotifyTask> pending = ConcurrentHashMap.newKeySet();
+
+        private final Disposable disposable;
+
+        private Lane(TokenBucket bucket) {
+            this.bucket = bucket;
+            this.disposable = sink
+                .asFlux()
+                //上一条通知获取到令牌后再为下一条通知预支令牌
+                .concatMap(task -> {
+                    long delay = this.bucket.reserve();
+                    return delay > 0
+                        ? Mono.delay(Duration.ofMillis(delay)).thenReturn(task)
+                        : Mono.just(task);
+                })
+                .flatMap(task -> send(task).doFinally(ignore -> pending.remove(task)), Math.max(1, concurrency))
+                .subscribe();
+        }
+
+        private synchronized void offer(NotifyTask task) {
+            if (disposable.isDisposed()
+                || pending.size() >= maxPendingPerNotifier
+                || !pending.add(task)) {
+                queue.write(task);
+                return;
+            }
+            if (sink.tryEmitNext(task).isFailure()) {
+                pending.remove(task);
+                queue.write(task);
+            }
+        }
+
+        @Override
+        public synchronized void dispose() {
+            //取消发送时会从pending中移除,先复制一份
+            List<NotifyTask> remaining = new ArrayList<>(pending);
+            pending.clear();
+            disposable.dispose();
+            for (NotifyTask task : remaining) {
+                queue.write(task);
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposable.isDisposed();
+        }
+    }
+
+    //保存发送失败的通知,超过最大数量时丢弃最早的通知
+    private void saveFailed(NotifyTask task) {
+        if (failedQueue.size() >= buffer.getMaxQueueSize()) {
+            NotifyTask drop = failedQueue.poll();
+            if (drop != null) {
+                log.warn("failed notification queue is full,drop notification [{}-{}]", drop.notifierId, drop.templateId);
+            }
+        }
+        failedQueue.add(task);
+    }
+
+    private RateLimit getRateLimit(NotifyTask task) {
+        RateLimit limit = rateLimits.get(task.notifierId);
+        if (limit == null) {
+            limit = rateLimits.getOrDefault(task.notifyType.getId(), rateLimit);
+        }
+        return limit;
+    }
+
+    @Getter
+    @Setter
+    public static class RateLimit {
+        //每秒发送的通知数量
+        private double permitsPerSecond = 5;
+
+        //允许突发发送的最大数量
+        private int burst = 10;
+    }
+
+    @Getter
+    @Setter
+    public static class DispatcherBufferProperties extends BufferProperties {
+
+        //缓冲队列中最大的通知数量,超过后将拒绝新的通知
+        private int maxQueueSize = 100_000;
+
+        public DispatcherBufferProperties() {
+            setFilePath("./data/notify-dispatch-buffer");
+            setSize(100);
+            setTimeout(Duration.ofSeconds(1));
+            setParallelism(1);
+        }
+    }
+
+    //令牌桶,令牌不足时预支令牌并返回需要等待的时间
+    static class TokenBucket {
+        private final double permitsPerMillis;
+        private final double maxPermits;
+        private double permits;
+        private long lastRefill;
+
+        TokenBucket(RateLimit limit) {
+            this.permitsPerMillis = Math.max(limit.getPermitsPerSecond(), 0.001) / 1000;
+            this.maxPermits = Math.max(1, limit.getBurst());
+            this.permits = maxPermits;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        TokenBucket(RateLimit limit, long now) {
+            this(limit);
+            this.lastRefill = now;
+        }
+
+        long reserve() {
+            return reserve(System.currentTimeMillis());
+        }
+
+        synchronized long reserve(long now) {
+            if (now > lastRefill) {
+                permits = Math.min(maxPermits, permits + (now - lastRefill) * permitsPerMillis);
+                lastRefill = now;
+            }
+            permits -= 1;
+            if (permits >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(-permits / permitsPerMillis);
+        }
+    }
+
+    //合并窗口,记录窗口内被合并的通知数量以及最后一条通知
+    private static class CoalesceWindow {
+        private final long firstTime;
+        private int count;
+        private NotifyTask last;
+
+        private CoalesceWindow(long firstTime) {
+            this.firstTime = firstTime;
+        }
+
+        private void merge(NotifyTask task) {
+            count++;
+            last = task;
+        }
+    }
+
+    public static class NotifyTask implements Externalizable {
+        private DefaultNotifyType notifyType;
+        private String notifierId;
+        private String templateId;
+        private Map<String, Object> context;
+        private long timestamp;
+
+        public NotifyTask() {
+        }
+
+        NotifyTask(DefaultNotifyType notifyType, String notifierId, String templateId, Map<String, Object> context) {
+            this.notifyType = notifyType;
+            this.notifierId = notifierId;
+            this.templateId = templateId;
+            this.context = context == null ? Collections.emptyMap() : context;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeUTF(notifyType.name());
+            out.writeUTF(notifierId);
+            out.writeUTF(templateId);
+            out.writeLong(timestamp);
+            SerializeUtils.writeObject(context, out);
+        }
+
+        @Override
+        @SuppressWarnings("all")
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            notifyType = DefaultNotifyType.valueOf(in.readUTF());
+            notifierId = in.readUTF();
+            templateId = in.readUTF();
+            timestamp = in.readLong();
+            context = (Map<String, Object>) SerializeUtils.readObject(in);
+        }
+    }
+}
@@ -5,6 +5,8 @@ import lombok.Setter;
 import org.jetlinks.community.notify.DefaultNotifyType;
 import org.springframework.util.Assert;
 
+import java.time.Duration;
+
 @Getter
 @Setter
 public class RuleNotifierProperties {
@@ -15,6 +17,9 @@ public class RuleNotifierProperties {
 
     private String templateId;
 
+    //合并相同通知的时间窗口,为空时使用全局配置
+    private Duration coalesceWindow;
+
     public void validate() {
         Assert.notNull(notifyType,"notifyType can not be null");
         Assert.hasText(notifierId,"notifierId can not be empty");
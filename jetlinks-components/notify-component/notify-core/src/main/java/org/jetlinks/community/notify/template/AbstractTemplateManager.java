@@ -1,6 +1,7 @@
 package org.jetlinks.community.notify.template;
 
 import org.jetlinks.community.notify.NotifyType;
+import org.jetlinks.community.notify.SingleFlightLoader;
 import reactor.core.publisher.Mono;
 
 import javax.annotation.Nonnull;
@@ -13,6 +14,9 @@ public abstract class AbstractTemplateManager implements TemplateManager {
 
     protected Map<String, Template> templates = new ConcurrentHashMap<>();
 
+    //并发获取同一个模版时只加载一次
+    private final SingleFlightLoader<Template> loader = new SingleFlightLoader<>();
+
     protected abstract Mono<TemplateProperties> getProperties(NotifyType type, String id);
 
     protected void register(TemplateProvider provider) {
@@ -35,18 +39,22 @@ public abstract class AbstractTemplateManager implements TemplateManager {
     @Override
     public Mono<? extends Template> getTemplate(@Nonnull NotifyType type, @Nonnull String id) {
         return Mono.justOrEmpty(templates.get(id))
-                   .switchIfEmpty(Mono.defer(() -> this
-                       .getProperties(type, id)
-                       .flatMap(prop -> this.createTemplate(type, prop))
-                       .doOnNext(temp -> templates.put(id, temp))
+                   .switchIfEmpty(loader
+                       .load(id, () -> this
+                           .getProperties(type, id)
+                           .<Template>flatMap(prop -> this.createTemplate(type, prop))
+                           .doOnNext(temp -> templates.put(id, temp)))
                        .switchIfEmpty(Mono.error(() -> new UnsupportedOperationException("通知类型不支持:" + type
                            .getId())))
-                   ));
+                   );
     }
 
     @Override
     @Nonnull
     public Mono<Void> reload(String templateId) {
-        return Mono.fromRunnable(() -> templates.remove(templateId));
+        return Mono.fromRunnable(() -> {
+            loader.invalidate(templateId);
+            templates.remove(templateId);
+        });
     }
 }
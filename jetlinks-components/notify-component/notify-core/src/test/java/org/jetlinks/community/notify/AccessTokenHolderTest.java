@@ -0,0 +1,53 @@
+package org.jetlinks.community.notify;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AccessTokenHolderTest {
+
+    @Test
+    void testSingleFlight() {
+        AtomicInteger requests = new AtomicInteger();
+        AccessTokenHolder holder = new AccessTokenHolder(
+            "test",
+            () -> Mono
+                .fromSupplier(() -> new AccessTokenHolder.AccessToken("token-" + requests.incrementAndGet(), Duration.ofHours(2)))
+                .delayElement(Duration.ofMillis(100)));
+
+        Flux.range(0, 100)
+            .flatMap(i -> holder.getToken())
+            .distinct()
+            .as(StepVerifier::create)
+            .expectNext("token-1")
+            .verifyComplete();
+
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void testRetryWhenError() {
+        AtomicInteger requests = new AtomicInteger();
+        AccessTokenHolder holder = new AccessTokenHolder(
+            "test",
+            () -> requests.incrementAndGet() < 3
+                ? Mono.error(new RuntimeException("error"))
+                : Mono.just(new AccessTokenHolder.AccessToken("token", Duration.ofHours(2))),
+            Duration.ofMinutes(5),
+            3,
+            Duration.ofMillis(10));
+
+        holder.getToken()
+              .as(StepVerifier::create)
+              .expectNext("token")
+              .verifyComplete();
+
+        assertEquals(3, requests.get());
+    }
+}
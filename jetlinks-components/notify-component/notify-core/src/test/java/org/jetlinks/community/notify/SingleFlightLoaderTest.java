@@ -0,0 +1,49 @@
+package org.jetlinks.community.notify;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SingleFlightLoaderTest {
+
+    @Test
+    void testLoadOnce() {
+        SingleFlightLoader<String> loader = new SingleFlightLoader<>();
+        AtomicInteger loads = new AtomicInteger();
+
+        Flux.range(0, 100)
+            .flatMap(i -> loader.load("test", () -> Mono
+                .fromSupplier(() -> "value-" + loads.incrementAndGet())
+                .delayElement(Duration.ofMillis(100))))
+            .distinct()
+            .as(StepVerifier::create)
+            .expectNext("value-1")
+            .verifyComplete();
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void testMissing() {
+        SingleFlightLoader<String> loader = new SingleFlightLoader<>();
+        AtomicInteger loads = new AtomicInteger();
+
+        Flux.range(0, 10)
+            .concatMap(i -> loader.load("test", () -> Mono.fromRunnable(loads::incrementAndGet)))
+            .as(StepVerifier::create)
+            .verifyComplete();
+        assertEquals(1, loads.get());
+
+        loader.invalidate("test");
+        loader.load("test", () -> Mono.just("value"))
+              .as(StepVerifier::create)
+              .expectNext("value")
+              .verifyComplete();
+    }
+}
@@ -0,0 +1,201 @@
+package org.jetlinks.community.notify.rule;
+
+import org.jetlinks.community.notify.DefaultNotifyType;
+import org.jetlinks.community.notify.Notifier;
+import org.jetlinks.community.notify.NotifierManager;
+import org.jetlinks.core.Values;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class NotifyDispatcherTest {
+
+    @TempDir
+    Path dir;
+
+    //已发送通知的上下文,notifierId为发送的通知配置
+    private final BlockingQueue<Map<String, Object>> sent = new LinkedBlockingQueue<>();
+
+    private final AtomicBoolean failing = new AtomicBoolean();
+
+    private NotifyDispatcher dispatcher;
+
+    @BeforeEach
+    @SuppressWarnings("all")
+    void init() {
+        NotifierManager notifierManager = mock(NotifierManager.class);
+        doAnswer(invocation -> {
+            String notifierId = invocation.getArgument(1);
+            Notifier notifier = mock(Notifier.class);
+            when(notifier.send(anyString(), any(Values.class))).thenAnswer(send -> Mono.defer(() -> {
+                if (failing.get()) {
+                    return Mono.error(new IllegalArgumentException("模版错误"));
+                }
+                Map<String, Object> context = new HashMap<>(send.<Values>getArgument(1).getAllValues());
+                context.put("notifierId", notifierId);
+                sent.add(context);
+                return Mono.empty();
+            }));
+            return Mono.just(notifier);
+        }).when(notifierManager).getNotifier(any(), anyString());
+
+        dispatcher = new NotifyDispatcher(notifierManager);
+        dispatcher.getBuffer().setFilePath(dir.toString());
+        dispatcher.getBuffer().setTimeout(Duration.ofMillis(50));
+        dispatcher.setRetryBackoff(Duration.ofMillis(10));
+
+        NotifyDispatcher.RateLimit limit = new NotifyDispatcher.RateLimit();
+        limit.setPermitsPerSecond(2);
+        limit.setBurst(1);
+        dispatcher.setRateLimits(Collections.singletonMap(DefaultNotifyType.sms.getId(), limit));
+    }
+
+    @AfterEach
+    void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    static Map<String, Object> context(String to, int index) {
+        Map<String, Object> context = new HashMap<>();
+        context.put("to", to);
+        context.put("index", index);
+        return context;
+    }
+
+    @Test
+    void testTokenBucket() {
+        NotifyDispatcher.RateLimit limit = new NotifyDispatcher.RateLimit();
+        limit.setPermitsPerSecond(10);
+        limit.setBurst(2);
+        NotifyDispatcher.TokenBucket bucket = new NotifyDispatcher.TokenBucket(limit, 0);
+
+        //突发数量内不需要等待
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(0));
+        //预支令牌,等待时间累加
+        assertEquals(100, bucket.reserve(0));
+        assertEquals(200, bucket.reserve(0));
+        //300ms后补充了3个令牌,抵消预支的2个
+        assertEquals(0, bucket.reserve(300));
+        //令牌不会超过突发数量
+        assertEquals(0, bucket.reserve(10_000));
+        assertEquals(0, bucket.reserve(10_000));
+        assertEquals(100, bucket.reserve(10_000));
+    }
+
+    @Test
+    void testRateLimitNotBlockOthers() throws Exception {
+        dispatcher.init();
+        //短信每秒2条,10条需要约5秒
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(DefaultNotifyType.sms, "sms", "template", context("user", i)).block();
+        }
+        dispatcher.dispatch(DefaultNotifyType.email, "email", "template", context("user", 0)).block();
+
+        boolean emailSent = false;
+        int smsSent = 0;
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!emailSent && System.currentTimeMillis() < deadline) {
+            Map<String, Object> context = sent.poll(100, TimeUnit.MILLISECONDS);
+            if (context == null) {
+                continue;
+            }
+            if ("email".equals(context.get("notifierId"))) {
+                emailSent = true;
+            } else {
+                smsSent++;
+            }
+        }
+        assertTrue(emailSent, "email notification is blocked by sms rate limit");
+        assertTrue(smsSent < 10);
+    }
+
+    @Test
+    void testCoalesce() throws Exception {
+        dispatcher.init();
+        Duration window = Duration.ofMillis(300);
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch(DefaultNotifyType.email, "email", "template", context("user", i), window).block();
+        }
+        //接收人不同的通知不合并
+        dispatcher.dispatch(DefaultNotifyType.email, "email", "template", context("other", 0), window).block();
+
+        Map<String, Map<String, Object>> first = new HashMap<>();
+        Map<String, Object> digest = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (digest == null && System.currentTimeMillis() < deadline) {
+            Map<String, Object> context = sent.poll(100, TimeUnit.MILLISECONDS);
+            if (context == null) {
+                continue;
+            }
+            if (context.containsKey(NotifyDispatcher.COALESCED_COUNT)) {
+                digest = context;
+            } else {
+                first.put((String) context.get("to"), context);
+            }
+        }
+        assertEquals(0, first.get("user").get("index"));
+        assertEquals(0, first.get("other").get("index"));
+
+        //第一条立即发送,其余4条合并为一条汇总通知
+        assertNotNull(digest);
+        assertEquals("user", digest.get("to"));
+        assertEquals(4, digest.get(NotifyDispatcher.COALESCED_COUNT));
+        assertEquals(4, digest.get("index"));
+        assertNull(sent.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testFailedQueue() throws Exception {
+        dispatcher.init();
+        failing.set(true);
+        dispatcher.dispatch(DefaultNotifyType.email, "email", "template", context("user", 0)).block();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getFailedSize() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, dispatcher.getFailedSize());
+        assertTrue(sent.isEmpty());
+
+        failing.set(false);
+        assertEquals(1, dispatcher.retryFailed());
+        assertEquals(0, dispatcher.getFailedSize());
+
+        Map<String, Object> context = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(context);
+        assertEquals(0, context.get("index"));
+    }
+
+    @Test
+    void testScheduledRetryFailed() throws Exception {
+        dispatcher.setFailedRetryInterval(Duration.ofMillis(200));
+        dispatcher.init();
+        failing.set(true);
+        dispatcher.dispatch(DefaultNotifyType.email, "email", "template", context("user", 0)).block();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getFailedSize() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        failing.set(false);
+        assertNotNull(sent.poll(5, TimeUnit.SECONDS));
+    }
+}
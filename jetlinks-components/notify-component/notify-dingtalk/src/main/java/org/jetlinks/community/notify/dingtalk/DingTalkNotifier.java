@@ -4,6 +4,7 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.hswebframework.web.exception.BusinessException;
 import org.jetlinks.community.notify.AbstractNotifier;
+import org.jetlinks.community.notify.AccessTokenHolder;
 import org.jetlinks.community.notify.DefaultNotifyType;
 import org.jetlinks.community.notify.NotifyType;
 import org.jetlinks.community.notify.Provider;
@@ -18,16 +19,12 @@ import reactor.core.publisher.Mono;
 import javax.annotation.Nonnull;
 import java.time.Duration;
 import java.util.HashMap;
-import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 public class DingTalkNotifier extends AbstractNotifier<DingTalkMessageTemplate> {
 
-    private final AtomicReference<String> accessToken = new AtomicReference<>();
-
-    private long refreshTokenTime;
-
-    private final long tokenTimeOut = Duration.ofSeconds(7000).toMillis();
+    //并发发送时共享同一个获取Token的请求
+    private final AccessTokenHolder accessToken;
 
     private final WebClient client;
 
@@ -44,6 +41,7 @@ public class DingTalkNotifier extends AbstractNotifier<DingTalkMessageTemplate>
         this.client = client;
         this.properties = properties;
         this.notifierId = id;
+        this.accessToken = new AccessTokenHolder("dingtalk-" + id, this::requestToken);
     }
 
     @Nonnull
@@ -69,30 +67,31 @@ public class DingTalkNotifier extends AbstractNotifier<DingTalkMessageTemplate>
                                 .body(template.createFormInserter(BodyInserters.fromFormData("access_token", token),context))
                                 .exchange()
                                 .flatMap(clientResponse -> clientResponse.bodyToMono(HashMap.class))
-                                .as(this::checkResult))
+                                .as(msg -> checkResult(msg, token)))
                 .then();
     }
 
-    private Mono<HashMap> checkResult(Mono<HashMap> msg) {
+    private Mono<HashMap> checkResult(Mono<HashMap> msg, String token) {
         return msg.doOnNext(map -> {
             String code = String.valueOf(map.get("errcode"));
             if ("0".equals(code)) {
                 log.info("发送钉钉通知成功");
             } else {
                 log.warn("发送钉钉通知失败:{}", map);
+                //Token无效或者已过期,下一次发送时重新获取
+                if ("40014".equals(code) || "42001".equals(code)) {
+                    accessToken.invalidate(token);
+                }
                 throw new BusinessException("发送钉钉通知失败:" + map.get("errmsg"), code);
             }
         });
     }
 
     private Mono<String> getToken() {
-        if (System.currentTimeMillis() - refreshTokenTime > tokenTimeOut || accessToken.get() == null) {
-            return requestToken();
-        }
-        return Mono.just(accessToken.get());
+        return accessToken.getToken();
     }
 
-    private Mono<String> requestToken() {
+    private Mono<AccessTokenHolder.AccessToken> requestToken() {
         return client
                 .get()
                 .uri(UriComponentsBuilder.fromUriString(tokenApi)
@@ -103,22 +102,18 @@ public class DingTalkNotifier extends AbstractNotifier<DingTalkMessageTemplate>
                 .flatMap(resp -> resp.bodyToMono(HashMap.class))
                 .map(map -> {
                     if (map.containsKey("access_token")) {
-                        return map.get("access_token");
+                        return new AccessTokenHolder.AccessToken(
+                            String.valueOf(map.get("access_token")),
+                            Duration.ofSeconds(Long.parseLong(String.valueOf(map.getOrDefault("expires_in", 7200)))));
                     }
                     throw new BusinessException("获取Token失败:" + map.get("errmsg"), String.valueOf(map.get("errcode")));
-                })
-                .cast(String.class)
-                .doOnNext((r) -> {
-                    refreshTokenTime = System.currentTimeMillis();
-                    accessToken.set(r);
                 });
     }
 
     @Nonnull
     @Override
     public Mono<Void> close() {
-        accessToken.set(null);
-        refreshTokenTime = 0;
+        accessToken.invalidate();
         return Mono.empty();
     }
 }
@@ -72,6 +72,8 @@ public class DefaultEmailNotifier extends AbstractNotifier<EmailTemplate> {
 
     private final FileManager fileManager;
 
+    private final PooledMailSender pooledMailSender;
+
     public static Scheduler scheduler = Schedulers.elastic();
 
     public DefaultEmailNotifier(NotifierProperties properties,
@@ -99,6 +101,7 @@ public class DefaultEmailNotifier extends AbstractNotifier<EmailTemplate> {
         this.sender = properties.getSender();
         this.javaMailSender = mailSender;
         this.fileManager = fileManager;
+        this.pooledMailSender = new PooledMailSender(id, mailSender, properties);
     }
 
     @Nonnull
@@ -112,7 +115,7 @@ public class DefaultEmailNotifier extends AbstractNotifier<EmailTemplate> {
     @Nonnull
     @Override
     public Mono<Void> close() {
-        return Mono.empty();
+        return Mono.fromRunnable(pooledMailSender::dispose);
     }
 
     @Nonnull
@@ -162,10 +165,18 @@ public class DefaultEmailNotifier extends AbstractNotifier<EmailTemplate> {
 
             })
             .flatMap(Function.identity())
-            .doOnNext(message -> this.javaMailSender.send(message))
             .subscribeOn(scheduler)
-            .then()
-            ;
+            .flatMap(this::doSend);
+    }
+
+    private Mono<Void> doSend(MimeMessage message) {
+        //通过setter修改了发送器时,使用修改后的发送器发送
+        if (javaMailSender != pooledMailSender.getMailSender()) {
+            return Mono
+                .<Void>fromRunnable(() -> javaMailSender.send(message))
+                .subscribeOn(scheduler);
+        }
+        return pooledMailSender.send(message);
     }
 
 
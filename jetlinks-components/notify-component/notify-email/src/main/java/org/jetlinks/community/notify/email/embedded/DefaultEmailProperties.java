@@ -21,6 +21,21 @@ public class DefaultEmailProperties {
 
     private List<ConfigProperty> properties;
 
+    //最大SMTP连接数量,同时也是发送线程数量
+    private int maxConnections = 2;
+
+    //等待发送的最大邮件数量
+    private int maxPending = 1000;
+
+    //每个连接连续发送的最大邮件数量
+    private int batchSize = 20;
+
+    //单封邮件发送超时时间(毫秒),包括排队时间
+    private long sendTimeout = 30_000;
+
+    //连接空闲超时时间(毫秒),超过后重新建立连接
+    private long idleTimeout = 60_000;
+
     @Getter
     @Setter
     public static class ConfigProperty {
@@ -41,6 +56,11 @@ public class DefaultEmailProperties {
                 properties.put(property.getName(), property.getValue());
             }
         }
+        //未配置socket超时时,使用发送超时时间,避免连接阻塞导致发送线程一直被占用
+        String timeout = String.valueOf(sendTimeout);
+        properties.putIfAbsent("mail.smtp.connectiontimeout", timeout);
+        properties.putIfAbsent("mail.smtp.timeout", timeout);
+        properties.putIfAbsent("mail.smtp.writetimeout", timeout);
 
         return properties;
     }
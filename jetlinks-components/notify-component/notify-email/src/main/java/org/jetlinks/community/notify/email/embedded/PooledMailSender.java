@@ -0,0 +1,238 @@
+package org.jetlinks.community.notify.email.embedded;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hswebframework.web.exception.BusinessException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 使用连接池发送邮件.
+ * <p>
+ * 邮件先放入有界的发送队列,由独立的线程池使用复用的SMTP连接发送,每个连接每次最多连续发送{@link DefaultEmailProperties#getBatchSize()}封邮件,
+ * 发送邮件不会阻塞调用者的线程.
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Slf4j
+class PooledMailSender implements Disposable {
+
+    @Getter
+    private final JavaMailSenderImpl mailSender;
+
+    private final int maxConnections;
+
+    private final int batchSize;
+
+    private final long idleTimeout;
+
+    private final Duration sendTimeout;
+
+    private final BlockingQueue<SendTask> pending;
+
+    private final BlockingQueue<PooledTransport> idle;
+
+    private final AtomicInteger workers = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+
+    private volatile boolean disposed;
+
+    PooledMailSender(String id, JavaMailSenderImpl mailSender, DefaultEmailProperties properties) {
+        this.mailSender = mailSender;
+        this.maxConnections = Math.max(1, properties.getMaxConnections());
+        this.batchSize = Math.max(1, properties.getBatchSize());
+        this.idleTimeout = properties.getIdleTimeout();
+        this.sendTimeout = Duration.ofMillis(properties.getSendTimeout());
+        this.pending = new LinkedBlockingQueue<>(Math.max(1, properties.getMaxPending()));
+        this.idle = new LinkedBlockingQueue<>(maxConnections);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            maxConnections,
+            maxConnections,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "email-sender-" + id + "-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 发送邮件,超过发送超时时间仍未发送完成时返回{@link TimeoutException}
+     *
+     * @param message 邮件
+     * @return void
+     */
+    Mono<Void> send(MimeMessage message) {
+        return Mono
+            .<Void>create(sink -> {
+                if (disposed) {
+                    sink.error(new IllegalStateException("email sender closed"));
+                    return;
+                }
+                SendTask task = new SendTask(message, sink);
+                if (!pending.offer(task)) {
+                    sink.error(new BusinessException("邮件发送队列已满"));
+                    return;
+                }
+                sink.onCancel(() -> task.cancelled = true);
+                tryStartWorker();
+            })
+            .timeout(sendTimeout);
+    }
+
+    private void tryStartWorker() {
+        for (; ; ) {
+            int current = workers.get();
+            if (current >= maxConnections || pending.isEmpty() || disposed) {
+                return;
+            }
+            if (workers.compareAndSet(current, current + 1)) {
+                try {
+                    executor.execute(this::work);
+                } catch (RejectedExecutionException e) {
+                    workers.decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    private void work() {
+        try {
+            SendTask task;
+            while ((task = pending.poll()) != null) {
+                PooledTransport transport;
+                try {
+                    transport = borrow();
+                } catch (Throwable e) {
+                    task.sink.error(e);
+                    continue;
+                }
+                try {
+                    //同一个连接连续发送多封邮件
+                    int count = 0;
+                    do {
+                        if (!send(transport, task)) {
+                            break;
+                        }
+                    } while (++count < batchSize && (task = pending.poll()) != null);
+                } finally {
+                    release(transport);
+                }
+            }
+        } finally {
+            workers.decrementAndGet();
+            tryStartWorker();
+        }
+    }
+
+    //发送邮件,返回连接是否还可以继续使用
+    private boolean send(PooledTransport transport, SendTask task) {
+        if (task.cancelled) {
+            return true;
+        }
+        try {
+            MimeMessage message = task.message;
+            message.saveChanges();
+            transport.transport.sendMessage(message, message.getAllRecipients());
+            task.sink.success();
+            return true;
+        } catch (Throwable e) {
+            task.sink.error(e);
+            transport.broken = !transport.transport.isConnected();
+            return !transport.broken;
+        }
+    }
+
+    private PooledTransport borrow() throws MessagingException {
+        PooledTransport transport;
+        while ((transport = idle.poll()) != null) {
+            //isConnected会发送NOOP命令检查连接是否可用
+            if (System.currentTimeMillis() - transport.lastUsed < idleTimeout
+                && transport.transport.isConnected()) {
+                return transport;
+            }
+            transport.close();
+        }
+        Transport newTransport = mailSender.getSession().getTransport(mailSender.getProtocol());
+        newTransport.connect(mailSender.getHost(),
+                             mailSender.getPort(),
+                             mailSender.getUsername(),
+                             mailSender.getPassword());
+        return new PooledTransport(newTransport);
+    }
+
+    private void release(PooledTransport transport) {
+        if (disposed || transport.broken) {
+            transport.close();
+            return;
+        }
+        transport.lastUsed = System.currentTimeMillis();
+        if (!idle.offer(transport)) {
+            transport.close();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        executor.shutdown();
+        SendTask task;
+        while ((task = pending.poll()) != null) {
+            task.sink.error(new IllegalStateException("email sender closed"));
+        }
+        PooledTransport transport;
+        while ((transport = idle.poll()) != null) {
+            transport.close();
+        }
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    private static class SendTask {
+        private final MimeMessage message;
+        private final MonoSink<Void> sink;
+        private volatile boolean cancelled;
+
+        private SendTask(MimeMessage message, MonoSink<Void> sink) {
+            this.message = message;
+            this.sink = sink;
+        }
+    }
+
+    private static class PooledTransport {
+        private final Transport transport;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean broken;
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+
+        private void close() {
+            try {
+                transport.close();
+            } catch (Throwable error) {
+                log.debug("close smtp transport error", error);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.jetlinks.community.notify.email.embedded;
+
+import org.jetlinks.core.Values;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DefaultEmailNotifierTest {
+
+    private FakeSmtpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new FakeSmtpServer();
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void testReuseConnection() {
+        DefaultEmailProperties properties = new DefaultEmailProperties();
+        properties.setHost("127.0.0.1");
+        properties.setPort(server.getPort());
+        properties.setSender("test@jetlinks.cn");
+        properties.setMaxConnections(1);
+
+        DefaultEmailNotifier notifier = new DefaultEmailNotifier("test", properties, null, null);
+
+        EmailTemplate template = new EmailTemplate();
+        template.setSubject("test");
+        template.setText("test ${value}");
+        template.setSendTo(Collections.singletonList("admin@jetlinks.cn"));
+
+        Flux.range(0, 10)
+            .flatMap(i -> notifier.send(template, Values.of(Collections.singletonMap("value", i))))
+            .then(notifier.close())
+            .as(StepVerifier::create)
+            .expectComplete()
+            .verify(Duration.ofSeconds(10));
+
+        assertEquals(10, server.messages.get());
+        assertEquals(1, server.connections.get());
+    }
+
+    //只支持发送邮件所需命令的SMTP服务
+    static class FakeSmtpServer implements Closeable {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger messages = new AtomicInteger();
+
+        FakeSmtpServer() throws IOException {
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void start() {
+            Thread thread = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        Thread handler = new Thread(() -> handle(socket));
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException ignore) {
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void handle(Socket socket) {
+            try (Socket ignore = socket;
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                reply(writer, "220 localhost ESMTP");
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+                    switch (command) {
+                        case "DATA":
+                            reply(writer, "354 End data with <CR><LF>.<CR><LF>");
+                            while ((line = reader.readLine()) != null && !line.equals(".")) {
+                                //ignore
+                            }
+                            messages.incrementAndGet();
+                            reply(writer, "250 OK");
+                            break;
+                        case "QUIT":
+                            reply(writer, "221 Bye");
+                            return;
+                        default:
+                            reply(writer, "250 OK");
+                    }
+                }
+            } catch (IOException ignore) {
+            }
+        }
+
+        private void reply(Writer writer, String line) throws IOException {
+            writer.write(line + "\r\n");
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -5,7 +5,7 @@ import lombok.Setter;
 import lombok.SneakyThrows;
 import org.hswebframework.web.bean.Converter;
 import org.hswebframework.web.bean.FastBeanCopier;
-import org.hswebframework.web.utils.ExpressionUtils;
+import org.jetlinks.community.utils.ExpressionTemplates;
 import org.jetlinks.rule.engine.api.task.ExecutionContext;
 import org.jetlinks.rule.engine.api.task.TaskExecutor;
 import org.jetlinks.rule.engine.api.task.TaskExecutorProvider;
@@ -145,7 +145,7 @@ public class DataMappingTaskExecutorProvider implements TaskExecutorProvider {
         public Object getData(Map<String, Object> sourceData) {
             Object data = sourceData.get(this.source);
             if (data == null && this.source.contains("${")) {
-                data = ExpressionUtils.analytical(this.source, sourceData, "spel");
+                data = ExpressionTemplates.analytical(this.source, sourceData);
             }
             if (data == null) {
                 return null;
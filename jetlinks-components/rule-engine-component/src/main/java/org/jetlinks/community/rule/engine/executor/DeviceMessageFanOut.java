@@ -0,0 +1,204 @@
+package org.jetlinks.community.rule.engine.executor;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.jetlinks.core.device.DeviceOperator;
+import org.jetlinks.core.message.DeviceMessage;
+import org.jetlinks.core.message.DeviceMessageReply;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * 批量向大量设备下发消息,如: 向产品下的所有设备发送指令.
+ * <p>
+ * 设备按批次处理,每批内的并发数和每秒下发的消息数量可配置,
+ * 每批内并发判断设备是否在线,每批只处理一次消息模版中的表达式.
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+public class DeviceMessageFanOut {
+
+    private final FanOutConfig config;
+
+    @Getter
+    private final Progress progress = new Progress();
+
+    public DeviceMessageFanOut(FanOutConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * 执行批量下发
+     *
+     * @param devices    设备
+     * @param onlineOnly 是否只发送给在线的设备
+     * @param template   消息模版,每批只创建一次
+     * @param sender     发送函数,参数为设备和当前批次的消息模版
+     * @param onError    单个设备发送失败时的处理函数
+     * @param onProgress 每一批执行完成后回调当前进度
+     * @return 回复
+     */
+    public Flux<DeviceMessage> execute(Flux<DeviceOperator> devices,
+                                       boolean onlineOnly,
+                                       Mono<Map<String, Object>> template,
+                                       BiFunction<DeviceOperator, Map<String, Object>, Flux<DeviceMessage>> sender,
+                                       Function<Throwable, Mono<DeviceMessage>> onError,
+                                       Function<Progress, Mono<Void>> onProgress) {
+        Duration minBatchInterval = config.getMinBatchInterval();
+
+        return devices
+            .buffer(config.getBatchSize())
+            .concatMap(batch -> this
+                .filterOnline(batch, onlineOnly)
+                .collectList()
+                .filter(readySend -> !readySend.isEmpty())
+                .flatMapMany(readySend -> template
+                    .flatMapMany(msg -> this.sendBatch(readySend, msg, sender, onError))
+                    .concatWith(Mono.defer(() -> onProgress.apply(progress)).then(Mono.empty())))
+                //限制速率,每一批至少需要minBatchInterval
+                .mergeWith(minBatchInterval.isZero()
+                               ? Mono.<DeviceMessage>empty()
+                               : Mono.delay(minBatchInterval).then(Mono.<DeviceMessage>empty())));
+    }
+
+    private Flux<DeviceOperator> filterOnline(List<DeviceOperator> batch, boolean onlineOnly) {
+        if (!onlineOnly) {
+            return Flux.fromIterable(batch);
+        }
+        return Flux
+            .fromIterable(batch)
+            .flatMap(device -> device
+                         .isOnline()
+                         .filter(Boolean::booleanValue)
+                         .map(ignore -> device),
+                     config.getConcurrency());
+    }
+
+    private Flux<DeviceMessage> sendBatch(List<DeviceOperator> batch,
+                                          Map<String, Object> template,
+                                          BiFunction<DeviceOperator, Map<String, Object>, Flux<DeviceMessage>> sender,
+                                          Function<Throwable, Mono<DeviceMessage>> onError) {
+        progress.total.addAndGet(batch.size());
+        return Flux
+            .fromIterable(batch)
+            .flatMap(device -> send(device, copy(template), sender, onError), config.getConcurrency());
+    }
+
+    private Flux<DeviceMessage> send(DeviceOperator device,
+                                     Map<String, Object> message,
+                                     BiFunction<DeviceOperator, Map<String, Object>, Flux<DeviceMessage>> sender,
+                                     Function<Throwable, Mono<DeviceMessage>> onError) {
+        AtomicBoolean failed = new AtomicBoolean();
+        return sender
+            .apply(device, message)
+            .doOnNext(reply -> {
+                //设备回复失败也认为是发送失败
+                if (reply instanceof DeviceMessageReply && !((DeviceMessageReply) reply).isSuccess()) {
+                    failed.set(true);
+                    progress.lastError = ((DeviceMessageReply) reply).getMessage();
+                }
+            })
+            .onErrorResume(err -> {
+                failed.set(true);
+                progress.lastError = err.getMessage();
+                return onError.apply(err);
+            })
+            .doOnComplete(() -> {
+                if (failed.get()) {
+                    progress.failed.incrementAndGet();
+                } else {
+                    progress.success.incrementAndGet();
+                }
+            })
+            .subscribeOn(Schedulers.parallel());
+    }
+
+    //发送时会修改消息中的header等信息,每个设备都使用一份完整的拷贝
+    @SuppressWarnings("all")
+    static <T> T copy(T value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new HashMap<>();
+            ((Map<Object, Object>) value).forEach((key, val) -> copy.put(key, copy(val)));
+            return (T) copy;
+        }
+        if (value instanceof Collection) {
+            List<Object> copy = new ArrayList<>(((Collection<Object>) value).size());
+            for (Object val : ((Collection<Object>) value)) {
+                copy.add(copy(val));
+            }
+            return (T) copy;
+        }
+        return value;
+    }
+
+    /**
+     * 将已经处理过表达式的消息转换为消息模版,发送时再填充设备ID等信息
+     *
+     * @param message 消息
+     * @return 消息模版
+     */
+    public static Map<String, Object> toTemplate(DeviceMessage message) {
+        Map<String, Object> template = message.toJson();
+        template.remove("messageId");
+        template.remove("deviceId");
+        template.remove("timestamp");
+        return template;
+    }
+
+    @Getter
+    @Setter
+    public static class FanOutConfig {
+        //每批处理的设备数量
+        private int batchSize = 200;
+
+        //每批内并发发送数量
+        private int concurrency = 64;
+
+        //每秒最大发送消息数量,小于等于0时不限制
+        private int rateLimit = 0;
+
+        public Duration getMinBatchInterval() {
+            if (rateLimit <= 0) {
+                return Duration.ZERO;
+            }
+            return Duration.ofMillis(batchSize * 1000L / rateLimit);
+        }
+
+        public void validate() {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batchSize必须大于0");
+            }
+            if (concurrency <= 0) {
+                throw new IllegalArgumentException("concurrency必须大于0");
+            }
+        }
+    }
+
+    @Getter
+    public static class Progress {
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong success = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private volatile String lastError;
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("total", total.get());
+            map.put("success", success.get());
+            map.put("failed", failed.get());
+            if (lastError != null) {
+                map.put("lastError", lastError);
+            }
+            return map;
+        }
+    }
+}
@@ -5,7 +5,7 @@ import lombok.Getter;
 import lombok.Setter;
 import org.hswebframework.web.bean.FastBeanCopier;
 import org.hswebframework.web.id.IDGenerator;
-import org.hswebframework.web.utils.ExpressionUtils;
+import org.jetlinks.community.utils.ExpressionTemplates;
 import org.jetlinks.core.device.DeviceOperator;
 import org.jetlinks.core.device.DeviceProductOperator;
 import org.jetlinks.core.device.DeviceRegistry;
@@ -16,6 +16,7 @@ import org.jetlinks.core.message.function.FunctionInvokeMessage;
 import org.jetlinks.core.message.function.FunctionParameter;
 import org.jetlinks.core.message.property.ReadPropertyMessage;
 import org.jetlinks.core.message.property.WritePropertyMessage;
+import org.jetlinks.rule.engine.api.RuleConstants;
 import org.jetlinks.rule.engine.api.RuleData;
 import org.jetlinks.rule.engine.api.RuleDataHelper;
 import org.jetlinks.rule.engine.api.task.ExecutionContext;
@@ -73,6 +74,10 @@ public class DeviceMessageSendTaskExecutorProvider implements TaskExecutorProvid
         @Override
         protected Publisher<RuleData> apply(RuleData input) {
             Map<String, Object> ctx = RuleDataHelper.toContextMap(input);
+            //向产品下的所有设备发送
+            if (StringUtils.hasText(config.getProductId()) && !StringUtils.hasText(config.getDeviceId())) {
+                return fanOut(ctx, input);
+            }
 
             Flux<DeviceOperator> readySendDevice =
                 "ignoreOffline".equals(config.getStateOperator())
@@ -96,6 +101,37 @@ public class DeviceMessageSendTaskExecutorProvider implements TaskExecutorProvid
                 ;
         }
 
+        private Flux<RuleData> fanOut(Map<String, Object> ctx, RuleData input) {
+            DeviceMessageFanOut fanOut = new DeviceMessageFanOut(config.createFanOutConfig());
+            return fanOut
+                .execute(
+                    selectDevice(ctx),
+                    "ignoreOffline".equals(config.getStateOperator()),
+                    //每一批只处理一次消息模版中的表达式
+                    Mono.fromCallable(() -> config.createTemplate(ctx)),
+                    config::doSend,
+                    error -> context.onError(error, input),
+                    //每一批完成后输出发送进度
+                    progress -> {
+                        Map<String, Object> result = progress.toMap();
+                        context
+                            .getLogger()
+                            .info("send message to product[{}] devices progress:{}", config.getProductId(), result);
+                        return context.fireEvent(RuleConstants.Event.result, context.newRuleData(input.newData(result)));
+                    }
+                )
+                .switchIfEmpty(Mono.defer(() -> fanOut.getProgress().getTotal().get() == 0
+                    ? context.onError(() -> new DeviceOperationException(ErrorCode.SYSTEM_ERROR, "无可用设备"), input)
+                    : Mono.empty()))
+                .map(reply -> {
+                    RuleData data = context.newRuleData(input.newData(reply.toJson()));
+                    if (config.getResponseHeaders() != null) {
+                        config.getResponseHeaders().forEach(data::setHeader);
+                    }
+                    return data;
+                });
+        }
+
         @Override
         public void validate() {
             if (CollectionUtils.isEmpty(context.getJob().getConfiguration())) {
@@ -154,6 +190,23 @@ public class DeviceMessageSendTaskExecutorProvider implements TaskExecutorProvid
 
         private Map<String, Object> responseHeaders;
 
+        //向产品下的设备发送时,每批处理的设备数量
+        private int batchSize = 200;
+
+        //向产品下的设备发送时,并发发送数量
+        private int concurrency = 64;
+
+        //向产品下的设备发送时,每秒最大发送消息数量,小于等于0时不限制
+        private int rateLimit = 0;
+
+        public DeviceMessageFanOut.FanOutConfig createFanOutConfig() {
+            DeviceMessageFanOut.FanOutConfig config = new DeviceMessageFanOut.FanOutConfig();
+            config.setBatchSize(batchSize);
+            config.setConcurrency(concurrency);
+            config.setRateLimit(rateLimit);
+            return config;
+        }
+
         public Map<String, Object> toMap() {
             Map<String, Object> conf = FastBeanCopier.copy(this, new HashMap<>());
             conf.put("timeout", timeout.toString());
@@ -174,22 +227,59 @@ public class DeviceMessageSendTaskExecutorProvider implements TaskExecutorProvid
                 .switchIfEmpty(context.onError(() -> new DeviceOperationException(ErrorCode.UNSUPPORTED_MESSAGE), input))
                 .cast(DeviceMessage.class)
                 .map(msg -> applyMessageExpression(ctx, msg))
-                .doOnNext(msg -> msg
-                    .addHeader(Headers.async, async || !"sync".equals(waitType))
-                    .addHeader(Headers.sendAndForget, "forget".equals(waitType))
-                    .addHeader(Headers.timeout, timeout.toMillis()))
-                .flatMapMany(msg -> "forget".equals(waitType)
-                    ? device.messageSender().send(msg).then(Mono.empty())
-                    : device.messageSender()
-                            .send(msg)
-                            .onErrorResume(err -> {
-                                //失败尝试转为消息回复
-                                if (msg instanceof RepayableDeviceMessage) {
-                                    return Mono.just(((RepayableDeviceMessage<?>) msg).newReply().error(err));
-                                }
-                                return Mono.error(err);
-                            })
-                );
+                .flatMapMany(msg -> doSend(device, msg));
+        }
+
+        /**
+         * 根据已经处理过表达式的消息模版发送消息
+         *
+         * @param device   设备
+         * @param template 消息模版
+         * @return 回复
+         * @see DeviceMessageFanOut#toTemplate(DeviceMessage)
+         */
+        public Flux<DeviceMessage> doSend(DeviceOperator device, Map<String, Object> template) {
+            template.put("messageId", IDGenerator.SNOW_FLAKE_STRING.generate());
+            template.put("deviceId", device.getDeviceId());
+            template.put("timestamp", System.currentTimeMillis());
+            return Mono
+                .justOrEmpty(MessageType.convertMessage(template))
+                .switchIfEmpty(Mono.error(() -> new DeviceOperationException(ErrorCode.UNSUPPORTED_MESSAGE)))
+                .cast(DeviceMessage.class)
+                .flatMapMany(msg -> doSend(device, msg));
+        }
+
+        /**
+         * 创建消息模版,消息模版中的表达式只会处理一次
+         *
+         * @param ctx 上下文
+         * @return 消息模版
+         */
+        public Map<String, Object> createTemplate(Map<String, Object> ctx) {
+            Map<String, Object> message = new HashMap<>("pre-node".equals(from) ? ctx : this.message);
+            DeviceMessage msg = MessageType
+                .convertMessage(message)
+                .map(DeviceMessage.class::cast)
+                .orElseThrow(() -> new DeviceOperationException(ErrorCode.UNSUPPORTED_MESSAGE));
+            return DeviceMessageFanOut.toTemplate(applyMessageExpression(ctx, msg));
+        }
+
+        private Flux<DeviceMessage> doSend(DeviceOperator device, DeviceMessage msg) {
+            msg.addHeader(Headers.async, async || !"sync".equals(waitType))
+               .addHeader(Headers.sendAndForget, "forget".equals(waitType))
+               .addHeader(Headers.timeout, timeout.toMillis());
+
+            return "forget".equals(waitType)
+                ? device.messageSender().send(msg).then(Mono.empty())
+                : device.messageSender()
+                        .send(msg)
+                        .onErrorResume(err -> {
+                            //失败尝试转为消息回复
+                            if (msg instanceof RepayableDeviceMessage) {
+                                return Mono.just(((RepayableDeviceMessage<?>) msg).newReply().error(err));
+                            }
+                            return Mono.error(err);
+                        });
         }
 
         private ReadPropertyMessage applyMessageExpression(Map<String, Object> ctx, ReadPropertyMessage message) {
@@ -199,7 +289,7 @@ public class DeviceMessageSendTaskExecutorProvider implements TaskExecutorProvid
                 message.setProperties(
                     properties
                         .stream()
-                        .map(prop -> ExpressionUtils.analytical(prop, ctx, "spel"))
+                        .map(prop -> ExpressionTemplates.analytical(prop, ctx))
                         .collect(Collectors.toList())
                 );
             }
@@ -215,7 +305,7 @@ public class DeviceMessageSendTaskExecutorProvider implements TaskExecutorProvid
                     properties
                         .entrySet()
                         .stream()
-                        .map(prop -> Tuples.of(prop.getKey(), ExpressionUtils.analytical(String.valueOf(prop.getValue()), ctx, "spel")))
+                        .map(prop -> Tuples.of(prop.getKey(), ExpressionTemplates.analytical(String.valueOf(prop.getValue()), ctx)))
                         .collect(Collectors.toMap(Tuple2::getT1, Tuple2::getT2))
                 );
             }
@@ -230,7 +320,7 @@ public class DeviceMessageSendTaskExecutorProvider implements TaskExecutorProvid
                 for (FunctionParameter input : inputs) {
                     String stringVal = String.valueOf(input.getValue());
                     if (stringVal.contains("$")) {
-                        input.setValue(ExpressionUtils.analytical(stringVal, ctx, "spel"));
+                        input.setValue(ExpressionTemplates.analytical(stringVal, ctx));
                     }
                 }
             }
@@ -261,6 +351,7 @@ public class DeviceMessageSendTaskExecutorProvider implements TaskExecutorProvid
 
 
         public void validate() {
+            createFanOutConfig().validate();
             if ("fixed".equals(from)) {
                 MessageType.convertMessage(message).orElseThrow(() -> new IllegalArgumentException("不支持的消息格式"));
             }
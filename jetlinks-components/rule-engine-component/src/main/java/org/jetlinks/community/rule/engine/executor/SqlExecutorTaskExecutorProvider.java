@@ -1,29 +1,36 @@
 package org.jetlinks.community.rule.engine.executor;
 
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.SneakyThrows;
+import org.hswebframework.ezorm.rdb.executor.SqlRequest;
 import org.hswebframework.ezorm.rdb.executor.SqlRequests;
 import org.hswebframework.ezorm.rdb.executor.reactive.ReactiveSqlExecutor;
 import org.hswebframework.ezorm.rdb.executor.wrapper.ResultWrappers;
 import org.hswebframework.web.bean.FastBeanCopier;
-import org.hswebframework.web.utils.ExpressionUtils;
+import org.jetlinks.community.utils.ExpressionTemplates;
+import org.jetlinks.rule.engine.api.RuleConstants;
 import org.jetlinks.rule.engine.api.RuleData;
 import org.jetlinks.rule.engine.api.RuleDataHelper;
 import org.jetlinks.rule.engine.api.model.NodeType;
 import org.jetlinks.rule.engine.api.task.ExecutionContext;
 import org.jetlinks.rule.engine.api.task.TaskExecutor;
 import org.jetlinks.rule.engine.api.task.TaskExecutorProvider;
+import org.jetlinks.rule.engine.defaults.AbstractTaskExecutor;
 import org.jetlinks.rule.engine.defaults.LambdaTaskExecutor;
 import org.reactivestreams.Publisher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.ReactiveTransactionManager;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 @Component
@@ -32,6 +39,9 @@ public class SqlExecutorTaskExecutorProvider implements TaskExecutorProvider {
     @Autowired
     private ReactiveSqlExecutor sqlExecutor;
 
+    @Autowired(required = false)
+    private ReactiveTransactionManager transactionManager;
+
     public String getExecutor() {
         return "sql";
     }
@@ -59,9 +69,196 @@ public class SqlExecutorTaskExecutorProvider implements TaskExecutorProvider {
 
     @Override
     public Mono<TaskExecutor> createTask(ExecutionContext context) {
+        Config config = FastBeanCopier.copy(context.getJob().getConfiguration(), new Config());
+        //开启了批量执行
+        if (config.isBatch()) {
+            return Mono.just(new BatchSqlTaskExecutor(context));
+        }
         return Mono.just(new LambdaTaskExecutor("SQL",context, () -> createExecutor(context, FastBeanCopier.copy(context.getJob().getConfiguration(),new Config()))));
     }
 
+    private <T> Mono<T> transactional(Mono<T> source) {
+        if (transactionManager != null) {
+            return TransactionalOperator
+                .create(transactionManager)
+                .transactional(source);
+        }
+        return source;
+    }
+
+    /**
+     * 批量执行SQL,将上游数据按数量或者时间进行分组后批量执行.
+     * <p>
+     * 同一批SQL始终在同一个事务中执行,使用同一个数据库连接.
+     * SQL模版按渲染后的SQL只解析一次,每条数据只绑定参数,相同的SQL可以复用数据库驱动中预编译的语句.
+     * <p>
+     * 每一批执行完成后输出执行结果:
+     * <pre>{@code
+     *  {"total":100,"updated":100}
+     * }</pre>
+     */
+    class BatchSqlTaskExecutor extends AbstractTaskExecutor {
+
+        private static final int MAX_TEMPLATES = 256;
+
+        private Config config;
+
+        //渲染后的SQL -> 解析后的模版
+        private final Map<String, PreparedTemplate> templates = new ConcurrentHashMap<>();
+
+        public BatchSqlTaskExecutor(ExecutionContext context) {
+            super(context);
+            init();
+        }
+
+        private void init() {
+            config = FastBeanCopier.copy(context.getJob().getConfiguration(), new Config());
+            config.validate();
+            templates.clear();
+        }
+
+        @Override
+        public String getName() {
+            return "SQL";
+        }
+
+        @Override
+        protected Disposable doStart() {
+            return context
+                .getInput()
+                .accept()
+                .concatMapIterable(this::createRequests)
+                .bufferTimeout(config.getBatchSize(), Duration.ofMillis(config.getBatchTimeout()))
+                .concatMap(batch -> this
+                    .executeBatch(batch)
+                    .onErrorResume(err -> context.onError(err, null).then(Mono.empty())))
+                .onErrorResume(err -> context.onError(err, null))
+                .subscribe();
+        }
+
+        private List<SqlRequest> createRequests(RuleData data) {
+            PreparedTemplate template = getTemplate(config.getSql(data));
+            List<SqlRequest> requests = new ArrayList<>();
+            data.acceptMap(map -> requests.add(template.toRequest(map)));
+            return requests;
+        }
+
+        private PreparedTemplate getTemplate(String sql) {
+            //SQL中使用了表达式时,渲染后的SQL可能不同,限制缓存的数量
+            if (templates.size() >= MAX_TEMPLATES && !templates.containsKey(sql)) {
+                templates.clear();
+            }
+            return templates.computeIfAbsent(sql, PreparedTemplate::of);
+        }
+
+        private Mono<Void> executeBatch(List<SqlRequest> batch) {
+            return transactional(sqlExecutor.update(Flux.fromIterable(batch)))
+                .flatMap(updated -> {
+                    Map<String, Object> result = new HashMap<>();
+                    result.put("total", batch.size());
+                    result.put("updated", updated);
+                    RuleData data = context.newRuleData(result);
+                    return context
+                        .getOutput()
+                        .write(Mono.just(data))
+                        .then(context.fireEvent(RuleConstants.Event.result, data));
+                });
+        }
+
+        @Override
+        public void reload() {
+            init();
+            if (disposable != null) {
+                disposable.dispose();
+            }
+            start();
+        }
+
+        @Override
+        public void validate() {
+            FastBeanCopier
+                .copy(context.getJob().getConfiguration(), new Config())
+                .validate();
+        }
+    }
+
+    /**
+     * 解析后的SQL模版.
+     * <p>
+     * 使用记录参数名的参数解析一次模版,得到预编译的SQL和参数名,之后每条数据只需要按参数名绑定参数.
+     * 模版中的参数无法按名称绑定(如嵌套属性),或者参数值为集合(需要展开为多个占位符)时,使用原始模版解析.
+     */
+    static class PreparedTemplate {
+
+        private final String template;
+
+        //为null时无法预编译,每次都解析模版
+        private final String sql;
+
+        private final String[] parameters;
+
+        private PreparedTemplate(String template, String sql, String[] parameters) {
+            this.template = template;
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+
+        static PreparedTemplate of(String template) {
+            try {
+                SqlRequest request = SqlRequests.template(template, new ParameterRecorder());
+                Object[] values = request.getParameters();
+                String[] parameters = new String[values == null ? 0 : values.length];
+                for (int i = 0; i < parameters.length; i++) {
+                    if (!(values[i] instanceof Parameter)) {
+                        return new PreparedTemplate(template, null, null);
+                    }
+                    parameters[i] = ((Parameter) values[i]).name;
+                }
+                return new PreparedTemplate(template, request.getSql(), parameters);
+            } catch (Throwable e) {
+                return new PreparedTemplate(template, null, null);
+            }
+        }
+
+        boolean isPrepared() {
+            return sql != null;
+        }
+
+        SqlRequest toRequest(Map<String, Object> data) {
+            if (sql == null) {
+                return SqlRequests.template(template, data);
+            }
+            Object[] values = new Object[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                Object value = data.get(parameters[i]);
+                if (value instanceof Collection || (value != null && value.getClass().isArray())) {
+                    return SqlRequests.template(template, data);
+                }
+                values[i] = value;
+            }
+            return SqlRequests.of(sql, values);
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Parameter {
+        private final String name;
+    }
+
+    //获取任意参数时返回参数名,用于记录模版中参数的顺序
+    private static class ParameterRecorder extends HashMap<String, Object> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object get(Object key) {
+            return new Parameter(String.valueOf(key));
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return true;
+        }
+    }
 
     @Getter
     @Setter
@@ -77,6 +274,25 @@ public class SqlExecutorTaskExecutorProvider implements TaskExecutorProvider {
 
         private boolean transaction;
 
+        //批量执行的最大数量,大于1时开启批量执行,仅对非查询语句有效
+        private int batchSize;
+
+        //批量执行的最大等待时间,单位毫秒
+        private long batchTimeout = 1000;
+
+        public boolean isBatch() {
+            return batchSize > 1 && sql != null && !isQuery();
+        }
+
+        public void validate() {
+            if (sql == null || sql.trim().isEmpty()) {
+                throw new IllegalArgumentException("SQL不能为空");
+            }
+            if (batchTimeout <= 0) {
+                throw new IllegalArgumentException("batchTimeout必须大于0");
+            }
+        }
+
         public boolean isQuery() {
 
             return sql.trim().startsWith("SELECT") ||
@@ -89,7 +305,7 @@ public class SqlExecutorTaskExecutorProvider implements TaskExecutorProvider {
                 return sql;
             }
 
-            return ExpressionUtils.analytical(sql, RuleDataHelper.toContextMap(data), "spel");
+            return ExpressionTemplates.analytical(sql, RuleDataHelper.toContextMap(data));
         }
 
     }
@@ -0,0 +1,174 @@
+package org.jetlinks.community.rule.engine.executor;
+
+import org.hswebframework.ezorm.rdb.executor.SqlRequest;
+import org.hswebframework.ezorm.rdb.executor.SqlRequests;
+import org.hswebframework.ezorm.rdb.executor.reactive.ReactiveSqlExecutor;
+import org.jetlinks.rule.engine.api.RuleData;
+import org.jetlinks.rule.engine.api.task.ExecutionContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.ReactiveTransaction;
+import org.springframework.transaction.ReactiveTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class SqlExecutorTaskExecutorProviderTest {
+
+    static final String SQL = "insert into s_test(id,name) values(#{id},#{name})";
+
+    private final List<SqlRequest> executed = new CopyOnWriteArrayList<>();
+
+    private final BlockingQueue<Map<String, Object>> results = new LinkedBlockingQueue<>();
+
+    private final Sinks.Many<RuleData> input = Sinks.many().unicast().onBackpressureBuffer();
+
+    private SqlExecutorTaskExecutorProvider provider;
+
+    private ReactiveTransactionManager transactionManager;
+
+    @BeforeEach
+    @SuppressWarnings("all")
+    void init() {
+        ReactiveSqlExecutor sqlExecutor = mock(ReactiveSqlExecutor.class);
+        when(sqlExecutor.update(any(Publisher.class))).thenAnswer(invocation -> Flux
+            .from(invocation.<Publisher<SqlRequest>>getArgument(0))
+            .doOnNext(executed::add)
+            .count()
+            .map(Long::intValue));
+
+        transactionManager = mock(ReactiveTransactionManager.class);
+        when(transactionManager.getReactiveTransaction(any(TransactionDefinition.class)))
+            .thenReturn(Mono.just(mock(ReactiveTransaction.class)));
+        when(transactionManager.commit(any())).thenReturn(Mono.empty());
+        when(transactionManager.rollback(any())).thenReturn(Mono.empty());
+
+        provider = new SqlExecutorTaskExecutorProvider();
+        ReflectionTestUtils.setField(provider, "sqlExecutor", sqlExecutor);
+        ReflectionTestUtils.setField(provider, "transactionManager", transactionManager);
+    }
+
+    @SuppressWarnings("all")
+    private Disposable start(int batchSize, long batchTimeout) {
+        Map<String, Object> configuration = new HashMap<>();
+        configuration.put("sql", SQL);
+        configuration.put("batchSize", batchSize);
+        configuration.put("batchTimeout", batchTimeout);
+
+        ExecutionContext context = mock(ExecutionContext.class, RETURNS_DEEP_STUBS);
+        when(context.getJob().getConfiguration()).thenReturn(configuration);
+        when(context.getInput().accept()).thenReturn(input.asFlux());
+        when(context.newRuleData(any())).thenAnswer(invocation -> RuleData.create(invocation.getArgument(0)));
+        when(context.getOutput().write(any(Publisher.class))).thenAnswer(invocation -> Mono
+            .from(invocation.<Publisher<RuleData>>getArgument(0))
+            .doOnNext(data -> data.acceptMap(results::add))
+            .thenReturn(true));
+        when(context.fireEvent(anyString(), any(RuleData.class))).thenReturn(Mono.empty());
+        when(context.onError(any(Throwable.class), nullable(RuleData.class))).thenReturn(Mono.empty());
+
+        SqlExecutorTaskExecutorProvider.BatchSqlTaskExecutor executor = provider.new BatchSqlTaskExecutor(context);
+        return executor.doStart();
+    }
+
+    static RuleData record(int id) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("id", id);
+        data.put("name", "test" + id);
+        return RuleData.create(data);
+    }
+
+    @Test
+    void testFlushBySize() throws Exception {
+        Disposable disposable = start(3, 60_000);
+        try {
+            for (int i = 0; i < 7; i++) {
+                input.tryEmitNext(record(i));
+            }
+            for (int i = 0; i < 2; i++) {
+                Map<String, Object> result = results.poll(5, TimeUnit.SECONDS);
+                assertNotNull(result);
+                assertEquals(3, result.get("total"));
+                assertEquals(3, result.get("updated"));
+            }
+            //最后一条未达到数量,等待超时
+            assertNull(results.poll(200, TimeUnit.MILLISECONDS));
+            assertEquals(6, executed.size());
+            //每一批在一个事务中执行
+            verify(transactionManager, times(2)).commit(any());
+        } finally {
+            disposable.dispose();
+        }
+    }
+
+    @Test
+    void testFlushByTimeout() throws Exception {
+        Disposable disposable = start(100, 100);
+        try {
+            input.tryEmitNext(record(1));
+            input.tryEmitNext(record(2));
+            Map<String, Object> result = results.poll(5, TimeUnit.SECONDS);
+            assertNotNull(result);
+            assertEquals(2, result.get("total"));
+            assertEquals(2, result.get("updated"));
+            verify(transactionManager).commit(any());
+        } finally {
+            disposable.dispose();
+        }
+    }
+
+    @Test
+    void testBindParameters() throws Exception {
+        Disposable disposable = start(2, 60_000);
+        try {
+            input.tryEmitNext(record(1));
+            input.tryEmitNext(record(2));
+            assertNotNull(results.poll(5, TimeUnit.SECONDS));
+        } finally {
+            disposable.dispose();
+        }
+        assertEquals(2, executed.size());
+        //只绑定参数,SQL相同
+        assertEquals(executed.get(0).getSql(), executed.get(1).getSql());
+        assertArrayEquals(new Object[]{1, "test1"}, executed.get(0).getParameters());
+        assertArrayEquals(new Object[]{2, "test2"}, executed.get(1).getParameters());
+    }
+
+    @Test
+    void testPreparedTemplate() {
+        SqlExecutorTaskExecutorProvider.PreparedTemplate template = SqlExecutorTaskExecutorProvider.PreparedTemplate.of(SQL);
+        assertTrue(template.isPrepared());
+
+        for (int i = 0; i < 3; i++) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("id", i);
+            data.put("name", "test" + i);
+            SqlRequest expect = SqlRequests.template(SQL, data);
+            SqlRequest request = template.toRequest(data);
+            assertEquals(expect.getSql(), request.getSql());
+            assertArrayEquals(expect.getParameters(), request.getParameters());
+        }
+
+        //集合参数使用原始模版解析
+        Map<String, Object> data = new HashMap<>();
+        data.put("id", Arrays.asList(1, 2));
+        data.put("name", "test");
+        SqlRequest expect = SqlRequests.template(SQL, data);
+        SqlRequest request = template.toRequest(data);
+        assertEquals(expect.getSql(), request.getSql());
+        assertArrayEquals(expect.getParameters(), request.getParameters());
+    }
+}
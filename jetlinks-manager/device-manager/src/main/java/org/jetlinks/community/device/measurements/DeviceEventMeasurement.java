@@ -55,6 +55,13 @@ class DeviceEventMeasurement extends StaticMeasurement {
 
 
     Flux<MeasurementValue> fromRealTime(String deviceId) {
+        //相同设备和事件的实时数据在所有订阅者间共享
+        return SharedRealTimeStreams.getOrCreate(
+            String.join(":", "event", productId, deviceId, eventMetadata.getId()),
+            () -> createRealTime(deviceId));
+    }
+
+    private Flux<MeasurementValue> createRealTime(String deviceId) {
         Subscription subscription = Subscription
             .of("deviceEventMeasurement", "/device/" + productId + "/" + deviceId + "/message/event/" + eventMetadata.getId(), Subscription.Feature.local);
 
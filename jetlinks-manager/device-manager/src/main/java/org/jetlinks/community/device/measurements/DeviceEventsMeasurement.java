@@ -59,6 +59,13 @@ class DeviceEventsMeasurement extends StaticMeasurement {
     }
 
     Flux<MeasurementValue> fromRealTime(String deviceId) {
+        //相同设备的实时事件在所有订阅者间共享
+        return SharedRealTimeStreams.getOrCreate(
+            String.join(":", "events", productId, deviceId),
+            () -> createRealTime(deviceId));
+    }
+
+    private Flux<MeasurementValue> createRealTime(String deviceId) {
         Subscription subscription = Subscription.of(
             "realtime-device-events-measurement",
             "/device/" + productId + "/" + deviceId + "/message/event/*",
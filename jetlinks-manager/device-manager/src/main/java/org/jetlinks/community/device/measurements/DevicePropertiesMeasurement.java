@@ -78,6 +78,12 @@ class DevicePropertiesMeasurement extends StaticMeasurement {
     }
 
     Flux<MeasurementValue> fromRealTime(String deviceId, Set<String> properties) {
+        //相同设备和属性的实时数据在所有订阅者间共享
+        String key = String.join(":", "properties", productId, deviceId, String.join(",", new TreeSet<>(properties)));
+        return SharedRealTimeStreams.getOrCreate(key, () -> createRealTime(deviceId, properties));
+    }
+
+    private Flux<MeasurementValue> createRealTime(String deviceId, Set<String> properties) {
 
         Subscription subscription = Subscription.of(
             "realtime-device-properties-measurement",
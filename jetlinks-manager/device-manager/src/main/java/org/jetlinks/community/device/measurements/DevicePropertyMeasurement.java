@@ -75,6 +75,13 @@ class DevicePropertyMeasurement extends StaticMeasurement {
     }
 
     Flux<MeasurementValue> fromRealTime(String deviceId) {
+        //相同设备和属性的实时数据在所有订阅者间共享
+        return SharedRealTimeStreams.getOrCreate(
+            String.join(":", "property", productId, deviceId, metadata.getId()),
+            () -> createRealTime(deviceId));
+    }
+
+    private Flux<MeasurementValue> createRealTime(String deviceId) {
         org.jetlinks.core.event.Subscription subscription = org.jetlinks.core.event.Subscription.of(
             "realtime-device-property-measurement",
             new String[]{
@@ -0,0 +1,51 @@
+package org.jetlinks.community.device.measurements;
+
+import org.jetlinks.community.dashboard.MeasurementValue;
+import reactor.core.publisher.Flux;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 共享的实时仪表盘数据流.
+ * <p>
+ * 相同key(测量,设备,参数)的实时数据只会订阅一次事件总线,数据转换也只执行一次,然后广播给所有订阅者.
+ * 所有订阅者取消后自动取消事件总线的订阅,新的订阅者会先收到最近的一条数据.
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+class SharedRealTimeStreams {
+
+    private static final Map<String, SharedStream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * 获取共享的实时数据流
+     *
+     * @param key      唯一标识,如: {@code properties:productId:deviceId:temp,humidity}
+     * @param supplier 数据流不存在时,创建数据流
+     * @return 实时数据流
+     */
+    static Flux<MeasurementValue> getOrCreate(String key, Supplier<Flux<MeasurementValue>> supplier) {
+        return Flux.defer(() -> streams
+            .computeIfAbsent(key, _key -> new SharedStream(_key, supplier.get()))
+            .flux);
+    }
+
+    static int size() {
+        return streams.size();
+    }
+
+    private static class SharedStream {
+        private final Flux<MeasurementValue> flux;
+
+        private SharedStream(String key, Flux<MeasurementValue> source) {
+            this.flux = source
+                //没有订阅者或者出错时移除,下一次订阅重新创建
+                .doFinally(signal -> streams.remove(key, this))
+                .replay(1)
+                .refCount();
+        }
+    }
+}
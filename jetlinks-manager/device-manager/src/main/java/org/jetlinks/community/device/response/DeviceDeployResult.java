@@ -17,11 +17,18 @@ public class DeviceDeployResult {
 
     private String message;
 
+    //发布失败的设备数量
+    private int failed;
+
     public static DeviceDeployResult success(int total) {
-        return new DeviceDeployResult(total, true, null);
+        return new DeviceDeployResult(total, true, null, 0);
     }
 
     public static DeviceDeployResult error(String message) {
-        return new DeviceDeployResult(0, false, message);
+        return new DeviceDeployResult(0, false, message, 0);
+    }
+
+    public static DeviceDeployResult error(int failed, String message) {
+        return new DeviceDeployResult(0, false, message, failed);
     }
 }
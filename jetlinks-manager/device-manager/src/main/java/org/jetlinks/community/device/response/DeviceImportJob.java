@@ -0,0 +1,137 @@
+package org.jetlinks.community.device.response;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Getter;
+import reactor.core.Disposable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 设备后台导入任务进度
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+public class DeviceImportJob {
+
+    //最多记录的错误信息数量
+    private static final int MAX_ERRORS = 100;
+
+    @Getter
+    @Schema(description = "任务ID")
+    private final String id;
+
+    @Getter
+    @Schema(description = "产品ID")
+    private final String productId;
+
+    @Getter
+    @Schema(description = "创建人ID")
+    private final String creatorId;
+
+    @Getter
+    @Schema(description = "开始时间")
+    private final long startTime = System.currentTimeMillis();
+
+    @Getter
+    @Schema(description = "结束时间")
+    private volatile long endTime;
+
+    @Getter
+    @Schema(description = "任务状态")
+    private volatile State state = State.running;
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong success = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong deployed = new AtomicLong();
+
+    private final List<String> errors = new ArrayList<>();
+
+    private volatile Disposable disposable;
+
+    public DeviceImportJob(String id, String productId, String creatorId) {
+        this.id = id;
+        this.productId = productId;
+        this.creatorId = creatorId;
+    }
+
+    @Schema(description = "已读取的数据行数")
+    public long getTotal() {
+        return total.get();
+    }
+
+    @Schema(description = "导入成功的数量")
+    public long getSuccess() {
+        return success.get();
+    }
+
+    @Schema(description = "导入失败的数量")
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Schema(description = "已激活的数量")
+    public long getDeployed() {
+        return deployed.get();
+    }
+
+    @Schema(description = "错误信息,最多记录" + MAX_ERRORS + "条")
+    public synchronized List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public boolean isDone() {
+        return state != State.running;
+    }
+
+    public void read() {
+        total.incrementAndGet();
+    }
+
+    public void success(long count) {
+        success.addAndGet(count);
+    }
+
+    public void deployed(long count) {
+        deployed.addAndGet(count);
+    }
+
+    public synchronized void error(long count, String message) {
+        failed.addAndGet(count);
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(message);
+        }
+    }
+
+    public void setDisposable(Disposable disposable) {
+        this.disposable = disposable;
+    }
+
+    public void complete(State state) {
+        if (this.state == State.running) {
+            this.state = state;
+            this.endTime = System.currentTimeMillis();
+        }
+    }
+
+    public void cancel() {
+        Disposable disposable = this.disposable;
+        if (disposable != null) {
+            disposable.dispose();
+        }
+        complete(State.cancelled);
+    }
+
+    public enum State {
+        running,
+        success,
+        failed,
+        cancelled
+    }
+}
@@ -0,0 +1,75 @@
+package org.jetlinks.community.device.response;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 设备后台导入任务进度快照,用于接口返回以及在集群节点之间传递.
+ *
+ * @author zhouhao
+ * @see DeviceImportJob
+ * @since 1.20
+ */
+@Getter
+@Setter
+public class DeviceImportJobInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Schema(description = "任务ID")
+    private String id;
+
+    @Schema(description = "产品ID")
+    private String productId;
+
+    @Schema(description = "创建人ID")
+    private String creatorId;
+
+    @Schema(description = "执行任务的节点ID")
+    private String serverId;
+
+    @Schema(description = "开始时间")
+    private long startTime;
+
+    @Schema(description = "结束时间")
+    private long endTime;
+
+    @Schema(description = "任务状态")
+    private DeviceImportJob.State state;
+
+    @Schema(description = "已读取的数据行数")
+    private long total;
+
+    @Schema(description = "导入成功的数量")
+    private long success;
+
+    @Schema(description = "导入失败的数量")
+    private long failed;
+
+    @Schema(description = "已激活的数量")
+    private long deployed;
+
+    @Schema(description = "错误信息")
+    private List<String> errors;
+
+    public static DeviceImportJobInfo of(DeviceImportJob job, String serverId) {
+        DeviceImportJobInfo info = new DeviceImportJobInfo();
+        info.setId(job.getId());
+        info.setProductId(job.getProductId());
+        info.setCreatorId(job.getCreatorId());
+        info.setServerId(serverId);
+        info.setStartTime(job.getStartTime());
+        info.setEndTime(job.getEndTime());
+        info.setState(job.getState());
+        info.setTotal(job.getTotal());
+        info.setSuccess(job.getSuccess());
+        info.setFailed(job.getFailed());
+        info.setDeployed(job.getDeployed());
+        info.setErrors(job.getErrors());
+        return info;
+    }
+}
@@ -0,0 +1,303 @@
+package org.jetlinks.community.device.service;
+
+import io.scalecube.services.annotations.ServiceMethod;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.hswebframework.ezorm.rdb.mapping.ReactiveRepository;
+import org.hswebframework.ezorm.rdb.mapping.defaults.SaveResult;
+import org.hswebframework.web.id.IDGenerator;
+import org.jetlinks.community.device.entity.DeviceInstanceEntity;
+import org.jetlinks.community.device.entity.DeviceTagEntity;
+import org.jetlinks.community.device.response.DeviceImportJob;
+import org.jetlinks.community.device.response.DeviceImportJobInfo;
+import org.jetlinks.core.rpc.RpcManager;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 设备后台导入服务.
+ * <p>
+ * 导入任务在后台执行,不占用HTTP请求,通过{@link #getJob(String)}获取导入进度.
+ * 数据行的转换和校验并行执行,设备,标签和配置按{@link #getBatchSize()}批量写入数据库,多个批次并行写入,
+ * 需要激活时每批数据写入后批量注册到设备注册中心.
+ * <p>
+ * 导入任务在发起导入的节点上执行,获取和取消任务时,本节点不存在的任务会通过RPC从集群中的其他节点获取.
+ * <p>
+ * 导入文件中包含标签的设备,以文件中的标签为准,不在文件中的旧标签将被删除.
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Slf4j
+@Service
+@ConfigurationProperties(prefix = "jetlinks.device.import")
+public class DeviceImportService {
+
+    private final LocalDeviceInstanceService instanceService;
+
+    private final ReactiveRepository<DeviceTagEntity, String> tagRepository;
+
+    private final RpcManager rpcManager;
+
+    //每批写入数据库的设备数量
+    @Getter
+    @Setter
+    private int batchSize = 500;
+
+    //同时写入数据库的批次数量
+    @Getter
+    @Setter
+    private int concurrency = 4;
+
+    //转换和校验数据的并行度
+    @Getter
+    @Setter
+    private int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    //导入完成后任务进度的保留时间
+    @Getter
+    @Setter
+    private Duration retention = Duration.ofHours(1);
+
+    private final Map<String, DeviceImportJob> jobs = new ConcurrentHashMap<>();
+
+    public DeviceImportService(LocalDeviceInstanceService instanceService,
+                               ReactiveRepository<DeviceTagEntity, String> tagRepository,
+                               RpcManager rpcManager) {
+        this.instanceService = instanceService;
+        this.tagRepository = tagRepository;
+        this.rpcManager = rpcManager;
+        rpcManager.registerService(new ServiceImpl());
+    }
+
+    /**
+     * 开始后台导入.
+     * <p>
+     * 导入在后台执行,会使用订阅时的上下文(如: 当前用户的权限信息)执行导入.
+     *
+     * @param productId   产品ID
+     * @param creatorId   创建人ID
+     * @param creatorName 创建人名称
+     * @param rows        数据行
+     * @param converter   将数据行转换为设备和标签,转换失败时抛出异常,异常信息将记录到任务进度中
+     * @param deploy      导入后是否激活设备
+     * @param <T>         数据行类型
+     * @return 导入任务
+     */
+    public <T> Mono<DeviceImportJobInfo> startImport(String productId,
+                                                     String creatorId,
+                                                     String creatorName,
+                                                     Flux<T> rows,
+                                                     Function<T, Tuple2<DeviceInstanceEntity, List<DeviceTagEntity>>> converter,
+                                                     boolean deploy) {
+        return Mono.deferContextual(ctx -> {
+            removeExpiredJobs();
+
+            DeviceImportJob job = new DeviceImportJob(IDGenerator.SNOW_FLAKE_STRING.generate(), productId, creatorId);
+            jobs.put(job.getId(), job);
+
+            job.setDisposable(
+                rows
+                    .doOnNext(ignore -> job.read())
+                    .parallel(Math.max(1, parallelism))
+                    .runOn(Schedulers.parallel())
+                    .flatMap(row -> Mono
+                        .fromCallable(() -> {
+                            Tuple2<DeviceInstanceEntity, List<DeviceTagEntity>> tp2 = converter.apply(row);
+                            //后台执行时可能获取不到当前用户,直接设置创建人
+                            DeviceInstanceEntity device = tp2.getT1();
+                            device.setCreatorId(creatorId);
+                            device.setCreatorName(creatorName);
+                            return tp2;
+                        })
+                        .onErrorResume(err -> {
+                            job.error(1, err.getMessage());
+                            return Mono.empty();
+                        }))
+                    .sequential()
+                    .buffer(Math.max(1, batchSize))
+                    .flatMap(batch -> saveBatch(job, batch, deploy), Math.max(1, concurrency))
+                    //使用发起导入时的上下文
+                    .contextWrite(ctx)
+                    .subscribe(
+                        null,
+                        err -> {
+                            log.warn("import device [{}] error", productId, err);
+                            job.error(0, err.getMessage());
+                            job.complete(DeviceImportJob.State.failed);
+                        },
+                        () -> job.complete(DeviceImportJob.State.success)));
+
+            return Mono.just(toInfo(job));
+        });
+    }
+
+    private Mono<Void> saveBatch(DeviceImportJob job,
+                                 List<Tuple2<DeviceInstanceEntity, List<DeviceTagEntity>>> batch,
+                                 boolean deploy) {
+        return Mono
+            .zip(
+                //设备配置作为设备的字段一起写入
+                instanceService.save(Flux.fromIterable(batch).map(Tuple2::getT1)),
+                saveTags(batch))
+            .doOnNext(ignore -> job.success(batch.size()))
+            .then(deploy ? deploy(job, batch) : Mono.empty())
+            .onErrorResume(err -> {
+                job.error(batch.size(), err.getMessage());
+                return Mono.empty();
+            });
+    }
+
+    private Mono<Void> deploy(DeviceImportJob job,
+                              List<Tuple2<DeviceInstanceEntity, List<DeviceTagEntity>>> batch) {
+        return instanceService
+            .deploy(Flux.fromIterable(batch).map(Tuple2::getT1))
+            .doOnNext(result -> {
+                if (result.isSuccess()) {
+                    job.deployed(result.getTotal());
+                } else {
+                    //注册失败或者更新数据库失败的设备数量
+                    job.error(result.getFailed(), result.getMessage());
+                }
+            })
+            .then();
+    }
+
+    //删除导入的设备中不在文件里的旧标签,再保存新的标签
+    private Mono<SaveResult> saveTags(List<Tuple2<DeviceInstanceEntity, List<DeviceTagEntity>>> batch) {
+        List<DeviceTagEntity> tags = new ArrayList<>();
+        Set<String> deviceIds = new HashSet<>();
+        for (Tuple2<DeviceInstanceEntity, List<DeviceTagEntity>> tp2 : batch) {
+            if (tp2.getT2() == null || tp2.getT2().isEmpty()) {
+                continue;
+            }
+            deviceIds.add(tp2.getT1().getId());
+            tags.addAll(tp2.getT2());
+        }
+        if (tags.isEmpty()) {
+            return Mono.just(SaveResult.of(0, 0));
+        }
+        Set<String> tagIds = tags
+            .stream()
+            .map(DeviceTagEntity::getId)
+            .collect(Collectors.toSet());
+        return tagRepository
+            .createDelete()
+            .where()
+            .in(DeviceTagEntity::getDeviceId, deviceIds)
+            .notIn(DeviceTagEntity::getId, tagIds)
+            .execute()
+            .then(tagRepository.save(Flux.fromIterable(tags)))
+            .defaultIfEmpty(SaveResult.of(0, 0));
+    }
+
+    /**
+     * 获取导入任务,本节点不存在时从集群中的其他节点获取
+     *
+     * @param jobId 任务ID
+     * @return 导入任务
+     */
+    public Mono<DeviceImportJobInfo> getJob(String jobId) {
+        DeviceImportJob job = jobs.get(jobId);
+        if (job != null) {
+            return Mono.just(toInfo(job));
+        }
+        return requestOtherServers(service -> service.getJob(new JobRequest(jobId)));
+    }
+
+    /**
+     * 取消导入任务,本节点不存在时在集群中的其他节点取消
+     *
+     * @param jobId 任务ID
+     * @return 导入任务
+     */
+    public Mono<DeviceImportJobInfo> cancelJob(String jobId) {
+        DeviceImportJob job = jobs.get(jobId);
+        if (job != null) {
+            job.cancel();
+            return Mono.just(toInfo(job));
+        }
+        return requestOtherServers(service -> service.cancelJob(new JobRequest(jobId)));
+    }
+
+    private Mono<DeviceImportJobInfo> requestOtherServers(Function<JobService, Mono<DeviceImportJobInfo>> request) {
+        String currentServerId = rpcManager.currentServerId();
+        return rpcManager
+            .getServices(JobService.class)
+            .filter(service -> !Objects.equals(currentServerId, service.serverNodeId()))
+            .flatMap(service -> request
+                .apply(service.service())
+                .onErrorResume(err -> {
+                    log.warn("get device import job from [{}] error", service.serverNodeId(), err);
+                    return Mono.empty();
+                }))
+            .take(1)
+            .singleOrEmpty();
+    }
+
+    private DeviceImportJobInfo toInfo(DeviceImportJob job) {
+        return DeviceImportJobInfo.of(job, rpcManager.currentServerId());
+    }
+
+    private void removeExpiredJobs() {
+        long expired = System.currentTimeMillis() - retention.toMillis();
+        jobs.values()
+            .removeIf(job -> job.isDone() && job.getEndTime() < expired);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobs.values().forEach(DeviceImportJob::cancel);
+    }
+
+    @Getter
+    @Setter
+    @AllArgsConstructor
+    @NoArgsConstructor
+    public static class JobRequest {
+        private String jobId;
+    }
+
+    @io.scalecube.services.annotations.Service
+    public interface JobService {
+
+        @ServiceMethod
+        Mono<DeviceImportJobInfo> getJob(JobRequest request);
+
+        @ServiceMethod
+        Mono<DeviceImportJobInfo> cancelJob(JobRequest request);
+    }
+
+    //只处理本节点的任务,避免在节点之间循环请求
+    public class ServiceImpl implements JobService {
+
+        @Override
+        public Mono<DeviceImportJobInfo> getJob(JobRequest request) {
+            return Mono
+                .justOrEmpty(jobs.get(request.jobId))
+                .map(DeviceImportService.this::toInfo);
+        }
+
+        @Override
+        public Mono<DeviceImportJobInfo> cancelJob(JobRequest request) {
+            return Mono
+                .justOrEmpty(jobs.get(request.jobId))
+                .doOnNext(DeviceImportJob::cancel)
+                .map(DeviceImportService.this::toInfo);
+        }
+    }
+}
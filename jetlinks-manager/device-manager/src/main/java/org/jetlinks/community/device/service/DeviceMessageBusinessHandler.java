@@ -10,6 +10,7 @@ import org.hswebframework.ezorm.rdb.mapping.ReactiveRepository;
 import org.jetlinks.community.PropertyConstants;
 import org.jetlinks.community.buffer.PersistenceBuffer;
 import org.jetlinks.community.device.entity.DeviceInstanceEntity;
+import org.jetlinks.community.device.entity.DeviceStateInfo;
 import org.jetlinks.community.device.entity.DeviceTagEntity;
 import org.jetlinks.community.device.enums.DeviceState;
 import org.jetlinks.community.gateway.annotation.Subscribe;
@@ -43,11 +44,9 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.time.Duration;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Component
 @AllArgsConstructor
@@ -309,24 +308,115 @@ public class DeviceMessageBusinessHandler {
         //有效期一小时
         static long expires = Duration.ofHours(1).toMillis();
 
+        //设备ID不能为空,使用空字符串标记带版本号的数据,用于区分旧版本缓冲的数据
+        static final String VERSION_MARKER = "";
+
+        static final byte VERSION = 1;
+
         private String id;
         private long time;
+        //消息中的设备状态,旧版本缓冲的数据为null
+        private DeviceState state;
+
+        public StateBuf(String id, long time) {
+            this(id, time, null);
+        }
 
         @Override
         public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeUTF(VERSION_MARKER);
+            out.writeByte(VERSION);
             out.writeUTF(id);
             out.writeLong(time);
+            //使用状态名称,调整枚举顺序后依然可以正确读取
+            out.writeUTF(state == null ? "" : state.name());
         }
 
         @Override
         public void readExternal(ObjectInput in) throws IOException {
+            String idOrMarker = in.readUTF();
+            if (!VERSION_MARKER.equals(idOrMarker)) {
+                //旧版本的数据: id,时间戳
+                id = idOrMarker;
+                time = in.readLong();
+                return;
+            }
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("unsupported device state buffer version: " + version);
+            }
             id = in.readUTF();
             time = in.readLong();
+            state = parseState(in.readUTF());
+        }
+
+        //无法识别的状态视为未知,同步时从注册中心获取
+        private static DeviceState parseState(String name) {
+            if (name.isEmpty()) {
+                return null;
+            }
+            try {
+                return DeviceState.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
         }
 
         public boolean isEffective() {
             return System.currentTimeMillis() - time < expires;
         }
+
+        //同一个设备保留最新的状态
+        static StateBuf latest(StateBuf left, StateBuf right) {
+            return right.time >= left.time ? right : left;
+        }
+
+        static StateBuf of(DeviceMessage message) {
+            return new StateBuf(message.getDeviceId(),
+                                message.getTimestamp(),
+                                message instanceof DeviceOfflineMessage ? DeviceState.offline : DeviceState.online);
+        }
+    }
+
+    //同步设备状态,同一个设备只使用最新的状态,上线状态直接使用消息中的状态,离线状态以注册中心为准
+    private Mono<Void> syncState(Flux<StateBuf> buffer) {
+        return buffer
+            .filter(StateBuf::isEffective)
+            .collect(Collectors.toMap(StateBuf::getId, Function.identity(), StateBuf::latest))
+            .flatMap(states -> {
+                List<DeviceStateInfo> changed = new ArrayList<>(states.size());
+                List<String> offline = new ArrayList<>();
+                List<String> unknown = new ArrayList<>();
+                for (StateBuf state : states.values()) {
+                    if (state.getState() == null) {
+                        unknown.add(state.getId());
+                    } else if (state.getState() == DeviceState.offline) {
+                        offline.add(state.getId());
+                    } else {
+                        changed.add(DeviceStateInfo.of(state.getId(), state.getState()));
+                    }
+                }
+                return Mono
+                    .when(confirmOffline(offline)
+                              .concatWithValues(changed.toArray(new DeviceStateInfo[0]))
+                              .collectList()
+                              .flatMapMany(deviceService::updateStateBatch),
+                          //旧版本缓冲的数据没有状态,从注册中心获取
+                          unknown.isEmpty()
+                              ? Mono.empty()
+                              : deviceService.syncStateBatch(Flux.just(unknown), false));
+            });
+    }
+
+    //设备可能已经在其他节点重新上线,离线状态需要以注册中心为准
+    private Flux<DeviceStateInfo> confirmOffline(List<String> deviceIds) {
+        return Flux
+            .fromIterable(deviceIds)
+            .flatMap(deviceId -> registry
+                .getDevice(deviceId)
+                .flatMap(DeviceOperator::isOnline)
+                .defaultIfEmpty(false)
+                .map(online -> DeviceStateInfo.of(deviceId, online ? DeviceState.online : DeviceState.offline)), 32);
     }
 
     @PreDestroy
@@ -350,13 +440,7 @@ public class DeviceMessageBusinessHandler {
                 "./data/device-state-buffer",
                 "device-state.queue",
                 StateBuf::new,
-                flux -> deviceService
-                    .syncStateBatch(flux
-                                        .filter(StateBuf::isEffective)
-                                        .map(StateBuf::getId)
-                                        .distinct()
-                                        .collectList()
-                                        .flux(), false)
+                flux -> syncState(flux)
                     .then(Reactors.ALWAYS_FALSE))
                 .name("device-state-synchronizer")
                 .parallelism(1)
@@ -371,7 +455,7 @@ public class DeviceMessageBusinessHandler {
 
         disposable.add(eventBus
                            .subscribe(subscription, DeviceMessage.class)
-                           .subscribe(msg -> buffer.write(new StateBuf(msg.getDeviceId(), msg.getTimestamp()))));
+                           .subscribe(msg -> buffer.write(StateBuf.of(msg))));
 
         disposable.add(buffer);
 
@@ -1,5 +1,8 @@
 package org.jetlinks.community.device.service;
 
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
@@ -35,6 +38,7 @@ import org.jetlinks.core.metadata.PropertyMetadata;
 import org.jetlinks.core.metadata.types.StringType;
 import org.jetlinks.core.utils.CyclicDependencyChecker;
 import org.reactivestreams.Publisher;
+import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
@@ -51,8 +55,19 @@ import java.util.stream.Collectors;
 
 @Service
 @Slf4j
+@ConfigurationProperties(prefix = "jetlinks.device.deploy")
 public class LocalDeviceInstanceService extends GenericReactiveCrudService<DeviceInstanceEntity, String> {
 
+    //批量发布时同时注册到注册中心的设备数量
+    @Getter
+    @Setter
+    private int concurrency = 256;
+
+    //批量发布时每批更新数据库的设备数量
+    @Getter
+    @Setter
+    private int batchSize = 500;
+
     private final DeviceRegistry registry;
 
     private final LocalDeviceProductService deviceProductService;
@@ -131,52 +146,87 @@ public class LocalDeviceInstanceService extends GenericReactiveCrudService<Devic
      */
     public Mono<DeviceDeployResult> deploy(String id) {
         return findById(id)
-            .flux()
-            .as(this::deploy)
-            .singleOrEmpty();
+            .flatMap(this::register)
+            .flatMap(device -> device.error != null
+                ? Mono.<DeviceDeployResult>error(device.error)
+                : updateDeployState(Collections.singletonList(device)).singleOrEmpty());
     }
 
     /**
-     * 批量发布设备到设备注册中心
+     * 批量发布设备到设备注册中心.
+     * <p>
+     * 设备按{@link #getConcurrency()}并发逐个注册到注册中心,与之前的并发数相同,注册中心的吞吐量没有变化.
+     * 注册完成的设备按{@link #getBatchSize()}分批更新数据库,相同状态的设备使用一条SQL更新.
+     * 单个设备注册失败不会中断发布,失败的数量和原因通过{@link DeviceDeployResult#getFailed()}返回.
      *
      * @param flux 设备实例流
-     * @return 发布数量
+     * @return 发布结果
      */
     public Flux<DeviceDeployResult> deploy(Flux<DeviceInstanceEntity> flux) {
         return flux
-            .flatMap(instance -> registry
-                .register(instance.toDeviceInfo())
-                .flatMap(deviceOperator -> deviceOperator
-                    .getState()
-                    .flatMap(r -> {
-                        if (r.equals(org.jetlinks.core.device.DeviceState.unknown) ||
-                            r.equals(org.jetlinks.core.device.DeviceState.noActive)) {
-                            instance.setState(DeviceState.offline);
-                            return deviceOperator.putState(org.jetlinks.core.device.DeviceState.offline);
-                        }
-                        instance.setState(DeviceState.of(r));
-                        return Mono.just(true);
-                    })
-                    .flatMap(success -> success ? Mono.just(deviceOperator) : Mono.empty())
-                )
-                .thenReturn(instance))
-            .buffer(50)
-            .publishOn(Schedulers.single())
-            .flatMap(all -> Flux
-                .fromIterable(all)
-                .groupBy(DeviceInstanceEntity::getState)
-                .flatMap(group -> group
-                    .map(DeviceInstanceEntity::getId)
-                    .collectList()
-                    .flatMap(list -> createUpdate()
-                        .where()
-                        .set(DeviceInstanceEntity::getState, group.key())
-                        .set(DeviceInstanceEntity::getRegistryTime, new Date())
-                        .in(DeviceInstanceEntity::getId, list)
-                        .execute()
-                        .map(r -> DeviceDeployResult.success(list.size()))
-                        .onErrorResume(err -> Mono.just(DeviceDeployResult.error(err.getMessage()))))))
-            ;
+            .flatMap(this::register, Math.max(1, concurrency))
+            .buffer(Math.max(1, batchSize))
+            .concatMap(this::updateDeployState);
+    }
+
+    private Mono<DeployingDevice> register(DeviceInstanceEntity instance) {
+        return registry
+            .register(instance.toDeviceInfo())
+            .flatMap(deviceOperator -> deviceOperator
+                .getState()
+                .flatMap(r -> {
+                    if (r.equals(org.jetlinks.core.device.DeviceState.unknown) ||
+                        r.equals(org.jetlinks.core.device.DeviceState.noActive)) {
+                        instance.setState(DeviceState.offline);
+                        return deviceOperator.putState(org.jetlinks.core.device.DeviceState.offline);
+                    }
+                    instance.setState(DeviceState.of(r));
+                    return Mono.just(true);
+                }))
+            .thenReturn(new DeployingDevice(instance, null))
+            .onErrorResume(err -> {
+                log.warn("register device [{}] error", instance.getId(), err);
+                return Mono.just(new DeployingDevice(instance, err));
+            });
+    }
+
+    private Flux<DeviceDeployResult> updateDeployState(List<DeployingDevice> batch) {
+        Map<DeviceState, List<String>> states = new HashMap<>();
+        int failed = 0;
+        String error = null;
+        for (DeployingDevice device : batch) {
+            if (device.error != null) {
+                failed++;
+                if (error == null) {
+                    error = device.instance.getId() + ":" + device.error.getMessage();
+                }
+                continue;
+            }
+            states
+                .computeIfAbsent(device.instance.getState(), ignore -> new ArrayList<>())
+                .add(device.instance.getId());
+        }
+        Flux<DeviceDeployResult> result = Flux
+            .fromIterable(states.entrySet())
+            .concatMap(group -> createUpdate()
+                .where()
+                .set(DeviceInstanceEntity::getState, group.getKey())
+                .set(DeviceInstanceEntity::getRegistryTime, new Date())
+                .in(DeviceInstanceEntity::getId, group.getValue())
+                .execute()
+                .map(r -> DeviceDeployResult.success(group.getValue().size()))
+                .onErrorResume(err -> Mono.just(DeviceDeployResult.error(group.getValue().size(), err.getMessage()))));
+        if (failed > 0) {
+            //汇总注册失败的设备,只返回第一个错误信息
+            return result.concatWithValues(DeviceDeployResult.error(failed, error));
+        }
+        return result;
+    }
+
+    @AllArgsConstructor
+    private static class DeployingDevice {
+        private final DeviceInstanceEntity instance;
+        private final Throwable error;
     }
 
     /**
@@ -335,34 +385,53 @@ public class LocalDeviceInstanceService extends GenericReactiveCrudService<Devic
                     .defaultIfEmpty(Tuples.of(org.jetlinks.core.device.DeviceState.noActive, id, false)))
                 .collect(Collectors.groupingBy(Tuple2::getT1))
                 .flatMapIterable(Map::entrySet)
-                .flatMap(group -> {
-                    List<String> deviceIdList = group
+                .flatMap(group -> updateState(
+                    DeviceState.of(group.getKey()),
+                    group
                         .getValue()
                         .stream()
                         .map(Tuple3::getT2)
-                        .collect(Collectors.toList());
-                    DeviceState state = DeviceState.of(group.getKey());
-                    return
-                        //批量修改设备状态
-                        getRepository()
-                            .createUpdate()
-                            .set(DeviceInstanceEntity::getState, state)
-                            .where()
-                            .in(DeviceInstanceEntity::getId, deviceIdList)
-                            .when(state != DeviceState.notActive, where -> where.not(DeviceInstanceEntity::getState, DeviceState.notActive))
-                            .execute()
-                            .thenReturn(group.getValue().size())
-                            .then(Mono.just(
-                                deviceIdList
-                                    .stream()
-                                    .map(id -> DeviceStateInfo.of(id, state))
-                                    .collect(Collectors.toList())
-                            ));
-                }))
+                        .collect(Collectors.toList()))))
+            //更新状态不触发事件
+            .as(EntityEventHelper::setDoNotFireEvent);
+    }
+
+    /**
+     * 批量更新设备状态,直接使用传入的状态,不从注册中心获取设备状态.
+     * 相同状态的设备使用一条SQL进行更新.
+     *
+     * @param states 设备状态
+     * @return 更新后的设备状态
+     */
+    public Flux<List<DeviceStateInfo>> updateStateBatch(Collection<DeviceStateInfo> states) {
+        return Flux
+            .fromIterable(states
+                              .stream()
+                              .collect(Collectors.groupingBy(
+                                  DeviceStateInfo::getState,
+                                  Collectors.mapping(DeviceStateInfo::getDeviceId, Collectors.toList())))
+                              .entrySet())
+            .concatMap(group -> updateState(group.getKey(), group.getValue()))
             //更新状态不触发事件
             .as(EntityEventHelper::setDoNotFireEvent);
     }
 
+    private Mono<List<DeviceStateInfo>> updateState(DeviceState state, List<String> deviceIdList) {
+        return
+            //批量修改设备状态
+            getRepository()
+                .createUpdate()
+                .set(DeviceInstanceEntity::getState, state)
+                .where()
+                .in(DeviceInstanceEntity::getId, deviceIdList)
+                .when(state != DeviceState.notActive, where -> where.not(DeviceInstanceEntity::getState, DeviceState.notActive))
+                .execute()
+                .then(Mono.fromSupplier(() -> deviceIdList
+                    .stream()
+                    .map(id -> DeviceStateInfo.of(id, state))
+                    .collect(Collectors.toList())));
+    }
+
     private static <R extends DeviceMessageReply, T> Function<R, Mono<T>> mapReply(Function<R, T> function) {
         return reply -> {
             if (ErrorCode.REQUEST_HANDLING.name().equals(reply.getCode())) {
@@ -1,6 +1,8 @@
 package org.jetlinks.community.device.service.data;
 
 import com.alibaba.fastjson.JSON;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.collect.Maps;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -16,7 +18,9 @@ import org.jetlinks.community.device.enums.DeviceLogType;
 import org.jetlinks.community.device.events.handler.ValueTypeTranslator;
 import org.jetlinks.community.gateway.DeviceMessageUtils;
 import org.jetlinks.community.timeseries.TimeSeriesData;
+import org.jetlinks.core.cluster.ClusterManager;
 import org.jetlinks.core.device.DeviceConfigKey;
+import org.jetlinks.core.device.DeviceOperator;
 import org.jetlinks.core.device.DeviceProductOperator;
 import org.jetlinks.core.device.DeviceRegistry;
 import org.jetlinks.core.message.DeviceLogMessage;
@@ -58,10 +62,28 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
     protected DeviceRegistry deviceRegistry;
     protected DeviceDataStorageProperties properties;
 
+    //设备最新一行属性数据,用于合并部分属性上报时,避免每次都查询数据库
+    private final Cache<String, LatestRow> latestRows;
+
+    private final DataIdGenerator idGenerator;
+
+    //批量保存时,每批转换的消息数量
+    static final int SAVE_BATCH_SIZE = 1000;
+
     public AbstractDeviceDataStoragePolicy(DeviceRegistry registry,
+                                           ClusterManager clusterManager,
                                            DeviceDataStorageProperties properties) {
         this.deviceRegistry = registry;
         this.properties = properties;
+        this.idGenerator = DataIdGenerator.create(properties.getNodeId(), clusterManager.getCurrentServerId());
+        DeviceDataStorageProperties.LatestRowCache cacheProperties = properties.getLatestRowCache();
+        this.latestRows = cacheProperties.isEnabled()
+            ? Caffeine
+            .newBuilder()
+            .maximumSize(cacheProperties.getMaxSize())
+            .expireAfterWrite(cacheProperties.getExpires())
+            .build()
+            : null;
     }
 
     /**
@@ -96,6 +118,26 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
                                                                               DeviceMessage message,
                                                                               Map<String, Object> properties);
 
+    /**
+     * 设备消息转换为时序数据并写入到rows中,存储策略可重写此方法直接写入数据,避免创建额外的二元组和响应式操作.
+     *
+     * @param productId  产品ID
+     * @param message    设备属性消息
+     * @param properties 物模型属性
+     * @param rows       数据
+     * @return void
+     * @see AbstractDeviceDataStoragePolicy#convertPropertiesForRowPolicy(String, DeviceMessage, Map, DeviceDataRows)
+     */
+    protected Mono<Void> convertProperties(String productId,
+                                           DeviceMessage message,
+                                           Map<String, Object> properties,
+                                           DeviceDataRows rows) {
+        return this
+            .convertProperties(productId, message, properties)
+            .doOnNext(rows::add)
+            .then();
+    }
+
     protected abstract <T> Flux<T> doQuery(String metric,
                                            QueryParamEntity paramEntity,
                                            Function<TimeSeriesData, T> mapper);
@@ -116,25 +158,60 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
     @Nonnull
     @Override
     public Mono<Void> saveDeviceMessage(@Nonnull DeviceMessage message) {
-        return this
-            .convertMessageToTimeSeriesData(message)
-            .flatMap(tp2 -> doSaveData(tp2.getT1(), tp2.getT2()))
-            .then();
+        return Mono.defer(() -> {
+            DeviceDataRows rows = new DeviceDataRows();
+            return this
+                .convertMessageToTimeSeriesData(message, rows)
+                .then(Mono.defer(() -> rows.save(this::doSaveData, this::doSaveData)));
+        });
     }
 
+    /**
+     * 批量保存设备消息,每{@link #SAVE_BATCH_SIZE}条消息保存一次,每批之间复用同一个{@link DeviceDataRows}.
+     *
+     * @param message 设备消息
+     * @return void
+     */
     @Nonnull
     @Override
     public Mono<Void> saveDeviceMessage(@Nonnull Publisher<DeviceMessage> message) {
-        return Flux.from(message)
-                   .flatMap(this::convertMessageToTimeSeriesData)
-                   .groupBy(Tuple2::getT1, Integer.MAX_VALUE)
-                   .flatMap(group -> doSaveData(group.key(), group.map(Tuple2::getT2)))
-                   .then();
+        return Flux
+            .defer(() -> {
+                DeviceDataRows rows = new DeviceDataRows();
+                return Flux
+                    .from(message)
+                    .window(SAVE_BATCH_SIZE)
+                    .concatMap(batch -> Mono.defer(() -> {
+                        rows.clear();
+                        //rows非线程安全,按顺序转换
+                        return batch
+                            .concatMap(msg -> convertMessageToTimeSeriesData(msg, rows))
+                            .then(Mono.defer(() -> rows.save(this::doSaveData, this::doSaveData)));
+                    }));
+            })
+            .then();
     }
 
+    /**
+     * 创建数据ID,ID在集群中唯一且同一节点内单调递增.
+     * <p>
+     * ID在数据转换时生成并随数据一起缓冲,写入失败重试时使用的仍然是同一个ID.
+     *
+     * @param message 消息
+     * @return 数据ID
+     */
     protected String createDataId(DeviceMessage message) {
-        long ts = message.getTimestamp();
-        return DigestUtils.md5Hex(String.join("_", message.getDeviceId(), String.valueOf(createUniqueNanoTime(ts))));
+        return idGenerator.next();
+    }
+
+    /**
+     * 根据固定的内容创建数据ID,相同内容的数据ID相同,重复写入时将覆盖旧数据.
+     *
+     * @param parts 内容
+     * @return 数据ID
+     */
+    protected String createDeterministicDataId(String... parts) {
+        return DigestUtils.md5Hex(String.join("_", parts));
     }
 
     protected String getDeviceLogMetric(String productId) {
@@ -148,6 +225,12 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
     protected Mono<Tuple2<String, TimeSeriesData>> createDeviceMessageLog(String productId,
                                                                           DeviceMessage message,
                                                                           BiConsumer<DeviceMessage, DeviceOperationLogEntity> logEntityConsumer) {
+        return Mono.just(createDeviceMessageLogData(productId, message, logEntityConsumer));
+    }
+
+    protected Tuple2<String, TimeSeriesData> createDeviceMessageLogData(String productId,
+                                                                        DeviceMessage message,
+                                                                        BiConsumer<DeviceMessage, DeviceOperationLogEntity> logEntityConsumer) {
         DeviceOperationLogEntity operationLog = new DeviceOperationLogEntity();
         operationLog.setId(IDGenerator.SNOW_FLAKE_STRING.generate());
         operationLog.setDeviceId(message.getDeviceId());
@@ -161,8 +244,8 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
             logEntityConsumer.accept(message, operationLog);
         }
         message.getHeader("log").ifPresent(operationLog::setContent);
-        return Mono.just(Tuples.of(deviceLogMetricId(productId), TimeSeriesData.of(message.getTimestamp(), operationLog
-            .toSimpleMap())));
+        return Tuples.of(deviceLogMetricId(productId), TimeSeriesData.of(message.getTimestamp(), operationLog
+            .toSimpleMap()));
     }
 
     /**
@@ -170,30 +253,51 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
      *
      * @param message 设备消息
      * @return 二元组
+     * @see AbstractDeviceDataStoragePolicy#convertMessageToTimeSeriesData(DeviceMessage, DeviceDataRows)
      */
     protected Flux<Tuple2<String, TimeSeriesData>> convertMessageToTimeSeriesData(DeviceMessage message) {
+        return Flux.defer(() -> {
+            DeviceDataRows rows = new DeviceDataRows();
+            return this
+                .convertMessageToTimeSeriesData(message, rows)
+                .thenMany(Flux.defer(rows::toFlux));
+        });
+    }
+
+    /**
+     * 设备消息转换成时序数据并写入到rows中.日志等数据直接同步写入,
+     * 只有需要获取物模型的属性和事件数据是异步的.
+     *
+     * @param message 设备消息
+     * @param rows    数据
+     * @return void
+     */
+    protected Mono<Void> convertMessageToTimeSeriesData(DeviceMessage message, DeviceDataRows rows) {
         boolean ignoreStorage = message.getHeaderOrDefault(Headers.ignoreStorage);
         boolean ignoreLog = message.getHeaderOrDefault(Headers.ignoreLog);
         if (ignoreStorage && ignoreLog) {
-            return Flux.empty();
+            return Mono.empty();
         }
         DeviceMessageTracer.trace(message, "save.before");
         String productId = (String) message.getHeader("productId").orElse("null");
         BiConsumer<DeviceMessage, DeviceOperationLogEntity> logEntityConsumer = null;
-        List<Publisher<Tuple2<String, TimeSeriesData>>> all = new ArrayList<>(2);
+        //需要获取物模型的数据,只有这部分是异步的
+        Mono<Void> async = Mono.empty();
 
         //没有忽略数据存储
         if (!ignoreStorage) {
             //事件上报
             if (message instanceof EventMessage) {
-                all.add(convertEventMessageToTimeSeriesData(productId, ((EventMessage) message)));
+                async = convertEventMessageToTimeSeriesData(productId, ((EventMessage) message))
+                    .doOnNext(rows::add)
+                    .then();
             } else {
                 //属性相关
                 Map<String, Object> properties = DeviceMessageUtils
                     .tryGetProperties(message)
                     .orElseGet(Collections::emptyMap);
                 if (MapUtils.isNotEmpty(properties)) {
-                    all.add(convertProperties(productId, message, properties));
+                    async = convertProperties(productId, message, properties, rows);
                 }
             }
         }
@@ -207,10 +311,10 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
             if (logEntityConsumer == null) {
                 logEntityConsumer = (msg, log) -> log.setContent(msg.toJson());
             }
-            all.add(createDeviceMessageLog(productId, message, logEntityConsumer));
+            //日志数据直接同步写入
+            rows.add(createDeviceMessageLogData(productId, message, logEntityConsumer));
         }
-
-        return Flux.merge(all);
+        return async;
     }
 
     /**
@@ -361,14 +465,16 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
         return this
             .deviceRegistry
             .getDevice(message.getDeviceId())
-            .flatMapMany(device -> device
-                .getMetadata()
-                .flatMap(metadata -> {
+            .flatMapMany(device -> Mono
+                .zip(device.getMetadata(), getOnlineTime(device))
+                .flatMap(tp2 -> {
+                    DeviceMetadata metadata = tp2.getT1();
+                    long onlineTime = tp2.getT2();
                     int size = properties.size();
                     String id;
                     //强制使用时间戳作为数据ID
                     if (message.getHeader(Headers.useTimestampAsId).orElse(false)) {
-                        id = String.join("_", message.getDeviceId(), String.valueOf(message.getTimestamp()));
+                        id = createDeterministicDataId(message.getDeviceId(), String.valueOf(message.getTimestamp()));
                     } else {
                         id = createDataId(message);
                     }
@@ -377,14 +483,12 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
                     int metaSize = metadata.getProperties().size();
                     //标记了是部分属性
                     if (message.getHeader(Headers.partialProperties).orElse(false)) {
-                        dataSupplier = this
-                            .queryEachOneProperties(message.getDeviceId(), QueryParamEntity.of())
-                            .collectMap(DeviceProperty::getProperty, DeviceProperty::getValue, () -> newMap(metaSize + 5));
+                        dataSupplier = getLatestPropertyRow(message.getDeviceId(), onlineTime, metaSize + 5);
                     } else {
                         dataSupplier = Mono.just(newMap(size));
                     }
                     return dataSupplier
-                        .flatMap(newData -> {
+                        .<Tuple2<String, TimeSeriesData>>handle((newData, sink) -> {
                             //转换属性数据
                             for (Map.Entry<String, Object> entry : properties.entrySet()) {
                                 PropertyMetadata propertyMetadata = metadata.getPropertyOrNull(entry.getKey());
@@ -399,16 +503,15 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
                             }
                             //没有属性值,可能全部都配置了不存储
                             if (newData.isEmpty()) {
-                                return Mono.empty();
+                                return;
                             }
+                            updateLatestPropertyRow(message.getDeviceId(), onlineTime, TimestampUtils.toMillis(message.getTimestamp()), newData);
                             newData.put("deviceId", message.getDeviceId());
                             newData.put("productId", productId);
                             newData.put("timestamp", TimestampUtils.toMillis(message.getTimestamp()));
                             newData.put("createTime", System.currentTimeMillis());
-                            newData.put("id", DigestUtils.md5Hex(id));
-                            return Mono.just(
-                                Tuples.of(getPropertyTimeSeriesMetric(productId), TimeSeriesData.of(message.getTimestamp(), newData))
-                            );
+                            newData.put("id", id);
+                            sink.next(Tuples.of(getPropertyTimeSeriesMetric(productId), TimeSeriesData.of(message.getTimestamp(), newData)));
                         });
                 }));
     }
@@ -417,6 +520,96 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
         return Maps.newHashMapWithExpectedSize(size);
     }
 
+    //未启用缓存时不需要获取上线时间
+    private Mono<Long> getOnlineTime(DeviceOperator device) {
+        if (latestRows == null) {
+            return Mono.just(0L);
+        }
+        return device.getOnlineTime().defaultIfEmpty(0L);
+    }
+
+    /**
+     * 获取设备最新一行的属性数据,优先从本地缓存中获取,缓存不存在时查询数据库.
+     * <p>
+     * 缓存只在当前节点有效,设备重新上线(可能连接到了其他节点,由其他节点写入了数据)后,缓存失效.
+     *
+     * @param deviceId     设备ID
+     * @param onlineTime   设备上线时间
+     * @param expectedSize 预计属性数量
+     * @return 可修改的属性数据
+     */
+    protected Mono<Map<String, Object>> getLatestPropertyRow(String deviceId, long onlineTime, int expectedSize) {
+        LatestRow row = latestRows == null ? null : latestRows.getIfPresent(deviceId);
+        if (row != null) {
+            if (row.onlineTime == onlineTime) {
+                Map<String, Object> data = newMap(Math.max(expectedSize, row.values.size()));
+                data.putAll(row.values);
+                return Mono.just(data);
+            }
+            latestRows.asMap().remove(deviceId, row);
+        }
+        return this
+            .queryEachOneProperties(deviceId, QueryParamEntity.of())
+            .collectMap(DeviceProperty::getProperty, DeviceProperty::getValue, () -> newMap(expectedSize));
+    }
+
+    /**
+     * 更新设备最新一行的属性数据缓存,由存储逻辑在写入数据时调用.
+     * <p>
+     * 新的属性值合并到已缓存的数据中,每个属性只保留时间最新的值.
+     *
+     * @param deviceId   设备ID
+     * @param onlineTime 设备上线时间
+     * @param timestamp  数据时间
+     * @param values     属性数据
+     */
+    protected void updateLatestPropertyRow(String deviceId, long onlineTime, long timestamp, Map<String, Object> values) {
+        if (latestRows == null) {
+            return;
+        }
+        latestRows
+            .asMap()
+            .compute(deviceId, (ignore, oldRow) -> {
+                //设备重新上线后,之前缓存的数据可能已经不是最新的了
+                if (oldRow == null || oldRow.onlineTime != onlineTime) {
+                    oldRow = new LatestRow(onlineTime);
+                }
+                return oldRow.merge(timestamp, values);
+            });
+    }
+
+    private static class LatestRow {
+        private final long onlineTime;
+        private final Map<String, Object> values;
+        //每个属性的数据时间
+        private final Map<String, Long> timestamps;
+
+        private LatestRow(long onlineTime) {
+            this(onlineTime, Collections.emptyMap(), Collections.emptyMap());
+        }
+
+        private LatestRow(long onlineTime, Map<String, Object> values, Map<String, Long> timestamps) {
+            this.onlineTime = onlineTime;
+            this.values = values;
+            this.timestamps = timestamps;
+        }
+
+        //缓存会被并发读取,合并时创建新的对象
+        private LatestRow merge(long timestamp, Map<String, Object> newValues) {
+            Map<String, Object> values = new HashMap<>(this.values);
+            Map<String, Long> timestamps = new HashMap<>(this.timestamps);
+            for (Map.Entry<String, Object> entry : newValues.entrySet()) {
+                Long oldTimestamp = timestamps.get(entry.getKey());
+                //忽略比缓存中更旧的数据
+                if (oldTimestamp == null || timestamp >= oldTimestamp) {
+                    values.put(entry.getKey(), entry.getValue());
+                    timestamps.put(entry.getKey(), timestamp);
+                }
+            }
+            return new LatestRow(onlineTime, values, timestamps);
+        }
+    }
+
     /**
      * 设备消息转换 二元组{deviceId, tsData}
      *
@@ -433,43 +626,70 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
         if (MapUtils.isEmpty(properties)) {
             return Flux.empty();
         }
-        Map<String, Long> propertySourceTimes = DeviceMessageUtils
-            .tryGetPropertySourceTimes(message)
-            .orElseGet(Collections::emptyMap);
+        return Flux.defer(() -> {
+            DeviceDataRows rows = new DeviceDataRows();
+            return this
+                .convertPropertiesForRowPolicy(productId, message, properties, rows)
+                .thenMany(Flux.defer(rows::toFlux));
+        });
+    }
+
+    /**
+     * 设备属性转换为行式存储的数据,每个属性为一行,获取到物模型后同步写入到rows中.
+     *
+     * @param productId  产品ID
+     * @param message    设备属性消息
+     * @param properties 物模型属性
+     * @param rows       数据
+     * @return void
+     */
+    protected Mono<Void> convertPropertiesForRowPolicy(String productId,
+                                                       DeviceMessage message,
+                                                       Map<String, Object> properties,
+                                                       DeviceDataRows rows) {
+        if (MapUtils.isEmpty(properties)) {
+            return Mono.empty();
+        }
         return this
             .deviceRegistry
             .getDevice(message.getDeviceId())
-            .flatMapMany(device -> device
-                .getMetadata()
-                .flatMapMany(metadata -> Flux
-                    .fromIterable(properties.entrySet())
-                    .index()
-                    .flatMap(entry -> {
-                        String id;
-                        String property = entry.getT2().getKey();
-                        long ts = propertySourceTimes.getOrDefault(property, message.getTimestamp());
-                        //忽略存在没有的属性和忽略存储的属性
-                        PropertyMetadata propertyMetadata = metadata.getPropertyOrNull(property);
-                        if (propertyMetadata == null || propertyIsIgnoreStorage(propertyMetadata)) {
-                            return Mono.empty();
-                        }
-                        //强制使用时间戳作为数据ID
-                        if (message.getHeader(Headers.useTimestampAsId).orElse(false)) {
-                            id = String.join("_", message.getDeviceId(), property, String.valueOf(message.getTimestamp()));
-                        } else {
-                            id = String.join("_", message.getDeviceId(), property, String.valueOf(createUniqueNanoTime(ts)));
-                        }
-                        return Mono
-                            .just(TimeSeriesData.of(ts, this
-                                .createRowPropertyData(id,
-                                                       TimestampUtils.toMillis(ts),
-                                                       device.getDeviceId(),
-                                                       propertyMetadata,
-                                                       entry.getT2().getValue()))
-                            );
-                    })
-                    .map(data -> Tuples.of(devicePropertyMetricId(productId), data)))
-            );
+            .flatMap(DeviceOperator::getMetadata)
+            .doOnNext(metadata -> convertPropertiesForRowPolicy(productId, message, properties, metadata, rows))
+            .then();
+    }
+
+    protected void convertPropertiesForRowPolicy(String productId,
+                                                 DeviceMessage message,
+                                                 Map<String, Object> properties,
+                                                 DeviceMetadata metadata,
+                                                 DeviceDataRows rows) {
+        Map<String, Long> propertySourceTimes = DeviceMessageUtils
+            .tryGetPropertySourceTimes(message)
+            .orElseGet(Collections::emptyMap);
+        boolean useTimestampAsId = message.getHeader(Headers.useTimestampAsId).orElse(false);
+        String metric = devicePropertyMetricId(productId);
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            String id;
+            String property = entry.getKey();
+            long ts = propertySourceTimes.getOrDefault(property, message.getTimestamp());
+            //忽略存在没有的属性和忽略存储的属性
+            PropertyMetadata propertyMetadata = metadata.getPropertyOrNull(property);
+            if (propertyMetadata == null || propertyIsIgnoreStorage(propertyMetadata)) {
+                continue;
+            }
+            //强制使用时间戳作为数据ID
+            if (useTimestampAsId) {
+                id = createDeterministicDataId(message.getDeviceId(), property, String.valueOf(message.getTimestamp()));
+            } else {
+                id = createDataId(message);
+            }
+            rows.add(metric, TimeSeriesData.of(ts, this
+                .createRowPropertyData(id,
+                                       TimestampUtils.toMillis(ts),
+                                       message.getDeviceId(),
+                                       propertyMetadata,
+                                       entry.getValue())));
+        }
     }
 
     protected Map<String, Object> createRowPropertyData(String id,
@@ -478,7 +698,7 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
                                                         PropertyMetadata property,
                                                         Object value) {
         Map<String, Object> propertyData = newMap(24);
-        propertyData.put("id", DigestUtils.md5Hex(id));
+        propertyData.put("id", id);
         propertyData.put("deviceId", deviceId);
         propertyData.put("timestamp", timestamp);
         propertyData.put("property", property.getId());
@@ -581,7 +801,9 @@ public abstract class AbstractDeviceDataStoragePolicy implements DeviceDataStora
      *
      * @param millis 毫秒值
      * @return 尽可能不会重复的long值
+     * @deprecated 已不再用于生成数据ID, 请使用 {@link #createDataId(DeviceMessage)}
      */
+    @Deprecated
     protected long createUniqueNanoTime(long millis) {
         long nano = TimeUnit.MILLISECONDS.toNanos(millis);
 
@@ -0,0 +1,99 @@
+package org.jetlinks.community.device.service.data;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 设备数据ID生成器,ID由时间戳,节点ID和序号组成,并使用36进制定长编码,如: {@code kz0x1m2a8000a0001}.
+ * <p>
+ * 同一节点生成的ID单调递增,按字符串排序与生成顺序一致.
+ * 每毫秒最多生成{@link #MAX_SEQUENCE}+1个ID,超过后将借用下一毫秒,不会出现重复.
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+@Slf4j
+class DataIdGenerator {
+
+    private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    private static final int TIMESTAMP_LENGTH = 9;
+    private static final int NODE_LENGTH = 4;
+    private static final int SEQUENCE_LENGTH = 4;
+
+    static final int MAX_NODE_ID = 36 * 36 * 36 * 36 - 1;
+
+    static final int MAX_SEQUENCE = 36 * 36 * 36 * 36 - 1;
+
+    //低21位为序号,高位为时间戳
+    private static final int SEQUENCE_BITS = 21;
+
+    private final AtomicLong state = new AtomicLong();
+
+    private final char[] node;
+
+    /**
+     * 创建ID生成器,未指定节点ID时根据集群节点ID生成.
+     * <p>
+     * 集群中各节点的ID不同,由此得到的节点ID在节点数量较少时基本不会重复,
+     * 但无法完全保证,节点较多时应为每个节点配置不同的节点ID.
+     *
+     * @param nodeId   配置的节点ID,小于0时根据集群节点ID生成
+     * @param serverId 集群节点ID
+     * @return ID生成器
+     */
+    static DataIdGenerator create(int nodeId, String serverId) {
+        if (nodeId < 0) {
+            if (serverId == null) {
+                throw new IllegalArgumentException("node id or server id must be configured");
+            }
+            nodeId = nodeIdOf(serverId);
+            log.info("device data id node id not configured,use node id [{}] generated by server id [{}]", nodeId, serverId);
+        }
+        return new DataIdGenerator(nodeId);
+    }
+
+    static int nodeIdOf(String serverId) {
+        return Math.floorMod(serverId.hashCode(), MAX_NODE_ID + 1);
+    }
+
+    DataIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("node id must be between 0 and " + MAX_NODE_ID);
+        }
+        this.node = new char[NODE_LENGTH];
+        encode(nodeId, node, 0, NODE_LENGTH);
+    }
+
+    String next() {
+        long now = System.currentTimeMillis();
+        long oldState, newState;
+        do {
+            oldState = state.get();
+            long lastTime = oldState >>> SEQUENCE_BITS;
+            long sequence = oldState & ((1L << SEQUENCE_BITS) - 1);
+            if (now > lastTime) {
+                newState = now << SEQUENCE_BITS;
+            } else if (sequence < MAX_SEQUENCE) {
+                newState = oldState + 1;
+            } else {
+                //当前毫秒序号已用完,借用下一毫秒
+                newState = (lastTime + 1) << SEQUENCE_BITS;
+            }
+        } while (!state.compareAndSet(oldState, newState));
+
+        char[] chars = new char[TIMESTAMP_LENGTH + NODE_LENGTH + SEQUENCE_LENGTH];
+        encode(newState >>> SEQUENCE_BITS, chars, 0, TIMESTAMP_LENGTH);
+        System.arraycopy(node, 0, chars, TIMESTAMP_LENGTH, NODE_LENGTH);
+        encode(newState & ((1L << SEQUENCE_BITS) - 1), chars, TIMESTAMP_LENGTH + NODE_LENGTH, SEQUENCE_LENGTH);
+        return new String(chars);
+    }
+
+    private static void encode(long value, char[] chars, int offset, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            chars[i] = DIGITS[(int) (value % 36)];
+            value /= 36;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.jetlinks.community.device.service.data;
+
+import org.jetlinks.community.timeseries.TimeSeriesData;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * 设备消息转换后的时序数据,按指标分组.
+ * <p>
+ * 转换逻辑同步写入此结构,不需要为每一行数据创建响应式操作.
+ * 调用{@link #clear()}后可复用,已分配的空间会保留,非线程安全.
+ *
+ * @author zhouhao
+ * @since 1.20
+ */
+public class DeviceDataRows {
+
+    private final Map<String, List<TimeSeriesData>> rows = new LinkedHashMap<>(4);
+
+    private int size;
+
+    public void add(String metric, TimeSeriesData data) {
+        rows.computeIfAbsent(metric, ignore -> new ArrayList<>(4))
+            .add(data);
+        size++;
+    }
+
+    public void add(Tuple2<String, TimeSeriesData> data) {
+        add(data.getT1(), data.getT2());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void forEach(BiConsumer<String, TimeSeriesData> consumer) {
+        for (Map.Entry<String, List<TimeSeriesData>> entry : rows.entrySet()) {
+            for (TimeSeriesData data : entry.getValue()) {
+                consumer.accept(entry.getKey(), data);
+            }
+        }
+    }
+
+    public Flux<Tuple2<String, TimeSeriesData>> toFlux() {
+        if (size == 0) {
+            return Flux.empty();
+        }
+        List<Tuple2<String, TimeSeriesData>> list = new ArrayList<>(size);
+        forEach((metric, data) -> list.add(Tuples.of(metric, data)));
+        return Flux.fromIterable(list);
+    }
+
+    /**
+     * 按指标保存数据,只有一行数据的指标使用单条保存,其他使用批量保存.
+     * <p>
+     * 保存时会复制当前的数据,返回后即可调用{@link #clear()}复用.
+     *
+     * @param single 单条保存
+     * @param batch  批量保存
+     * @return void
+     */
+    public Mono<Void> save(BiFunction<String, TimeSeriesData, Mono<Void>> single,
+                           BiFunction<String, Flux<TimeSeriesData>, Mono<Void>> batch) {
+        if (size == 0) {
+            return Mono.empty();
+        }
+        List<Mono<Void>> jobs = new ArrayList<>(rows.size());
+        for (Map.Entry<String, List<TimeSeriesData>> entry : rows.entrySet()) {
+            List<TimeSeriesData> data = entry.getValue();
+            if (data.size() == 1) {
+                jobs.add(single.apply(entry.getKey(), data.get(0)));
+            } else if (data.size() > 1) {
+                jobs.add(batch.apply(entry.getKey(), Flux.fromArray(data.toArray(new TimeSeriesData[0]))));
+            }
+        }
+        return jobs.size() == 1 ? jobs.get(0) : Flux.merge(jobs).then();
+    }
+
+    public void clear() {
+        for (List<TimeSeriesData> data : rows.values()) {
+            data.clear();
+        }
+        size = 0;
+    }
+}
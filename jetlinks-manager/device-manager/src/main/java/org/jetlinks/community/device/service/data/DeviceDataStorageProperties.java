@@ -5,6 +5,8 @@ import lombok.Setter;
 import org.jetlinks.community.utils.MessageTypeMatcher;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.time.Duration;
+
 @ConfigurationProperties(prefix = "jetlinks.device.storage")
 @Getter
 @Setter
@@ -15,11 +17,30 @@ public class DeviceDataStorageProperties {
 
     private Log log = new Log();
 
+    //数据ID中的节点ID(0-1679615),小于0时根据集群节点ID生成.集群节点较多时,每个节点应配置不同的值
+    private int nodeId = -1;
+
+    //设备最新一行属性数据的本地缓存,用于合并部分属性上报
+    private LatestRowCache latestRowCache = new LatestRowCache();
+
     @Getter
     @Setter
     public static class Log extends MessageTypeMatcher {
 
     }
 
+    @Getter
+    @Setter
+    public static class LatestRowCache {
+        //是否开启,关闭后每次合并部分属性都将查询数据库
+        private boolean enabled = true;
+
+        //最大缓存设备数量
+        private long maxSize = 100_000;
+
+        //缓存有效期,超过此时间没有写入则重新从数据库中获取
+        private Duration expires = Duration.ofMinutes(30);
+    }
+
 
 }
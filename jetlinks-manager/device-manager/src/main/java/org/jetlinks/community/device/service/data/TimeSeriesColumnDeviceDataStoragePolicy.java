@@ -7,6 +7,7 @@ import org.jetlinks.community.device.timeseries.DeviceTimeSeriesMetadata;
 import org.jetlinks.community.timeseries.TimeSeriesData;
 import org.jetlinks.community.timeseries.TimeSeriesManager;
 import org.jetlinks.community.timeseries.query.*;
+import org.jetlinks.core.cluster.ClusterManager;
 import org.jetlinks.core.device.DeviceOperator;
 import org.jetlinks.core.device.DeviceRegistry;
 import org.jetlinks.core.message.DeviceMessage;
@@ -38,9 +39,10 @@ import static org.jetlinks.community.device.timeseries.DeviceTimeSeriesMetric.de
 public class TimeSeriesColumnDeviceDataStoragePolicy extends TimeSeriesDeviceDataStoragePolicy implements DeviceDataStoragePolicy {
 
     public TimeSeriesColumnDeviceDataStoragePolicy(DeviceRegistry deviceRegistry,
+                                                   ClusterManager clusterManager,
                                                    TimeSeriesManager timeSeriesManager,
                                                    DeviceDataStorageProperties properties) {
-        super(deviceRegistry, timeSeriesManager, properties);
+        super(deviceRegistry, clusterManager, timeSeriesManager, properties);
     }
 
     @Override
@@ -4,6 +4,7 @@ import org.hswebframework.web.api.crud.entity.PagerResult;
 import org.hswebframework.web.api.crud.entity.QueryParamEntity;
 import org.jetlinks.community.timeseries.TimeSeriesData;
 import org.jetlinks.community.timeseries.TimeSeriesManager;
+import org.jetlinks.core.cluster.ClusterManager;
 import org.jetlinks.core.device.DeviceRegistry;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -24,9 +25,10 @@ public abstract class TimeSeriesDeviceDataStoragePolicy extends AbstractDeviceDa
     protected TimeSeriesManager timeSeriesManager;
 
     public TimeSeriesDeviceDataStoragePolicy(DeviceRegistry registry,
+                                             ClusterManager clusterManager,
                                              TimeSeriesManager timeSeriesManager,
                                              DeviceDataStorageProperties properties) {
-        super(registry, properties);
+        super(registry, clusterManager, properties);
         this.timeSeriesManager = timeSeriesManager;
     }
 
@@ -8,6 +8,7 @@ import org.jetlinks.community.device.timeseries.DeviceTimeSeriesMetric;
 import org.jetlinks.community.timeseries.TimeSeriesData;
 import org.jetlinks.community.timeseries.TimeSeriesManager;
 import org.jetlinks.community.timeseries.query.*;
+import org.jetlinks.core.cluster.ClusterManager;
 import org.jetlinks.core.device.DeviceOperator;
 import org.jetlinks.core.device.DeviceRegistry;
 import org.jetlinks.core.message.DeviceMessage;
@@ -37,9 +38,10 @@ import static org.jetlinks.community.device.timeseries.DeviceTimeSeriesMetric.de
 public class TimeSeriesRowDeviceDataStoreStoragePolicy extends TimeSeriesDeviceDataStoragePolicy implements DeviceDataStoragePolicy {
 
     public TimeSeriesRowDeviceDataStoreStoragePolicy(DeviceRegistry deviceRegistry,
+                                                     ClusterManager clusterManager,
                                                      TimeSeriesManager timeSeriesManager,
                                                      DeviceDataStorageProperties properties) {
-        super(deviceRegistry, timeSeriesManager, properties);
+        super(deviceRegistry, clusterManager, timeSeriesManager, properties);
     }
 
     @Override
@@ -353,4 +355,12 @@ public class TimeSeriesRowDeviceDataStoreStoragePolicy extends TimeSeriesDeviceD
     protected Flux<Tuple2<String, TimeSeriesData>> convertProperties(String productId, DeviceMessage message, Map<String, Object> properties) {
         return convertPropertiesForRowPolicy(productId, message, properties);
     }
+
+    @Override
+    protected Mono<Void> convertProperties(String productId,
+                                           DeviceMessage message,
+                                           Map<String, Object> properties,
+                                           DeviceDataRows rows) {
+        return convertPropertiesForRowPolicy(productId, message, properties, rows);
+    }
 }
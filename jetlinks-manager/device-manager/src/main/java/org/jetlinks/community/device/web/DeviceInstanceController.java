@@ -27,15 +27,19 @@ import org.jetlinks.community.device.entity.*;
 import org.jetlinks.community.device.enums.DeviceState;
 import org.jetlinks.community.device.response.DeviceDeployResult;
 import org.jetlinks.community.device.response.DeviceDetail;
+import org.jetlinks.community.device.response.DeviceImportJobInfo;
 import org.jetlinks.community.device.response.ImportDeviceInstanceResult;
 import org.jetlinks.community.device.service.DeviceConfigMetadataManager;
+import org.jetlinks.community.device.service.DeviceImportService;
 import org.jetlinks.community.device.service.LocalDeviceInstanceService;
 import org.jetlinks.community.device.service.LocalDeviceProductService;
 import org.jetlinks.community.device.service.data.DeviceDataService;
 import org.jetlinks.community.device.web.excel.DeviceExcelInfo;
 import org.jetlinks.community.device.web.excel.DeviceWrapper;
 import org.jetlinks.community.device.web.request.AggRequest;
+import org.jetlinks.community.io.excel.DataExporter;
 import org.jetlinks.community.io.excel.ImportExportService;
+import org.jetlinks.community.io.file.FileInfo;
 import org.jetlinks.community.io.utils.FileUtils;
 import org.jetlinks.community.timeseries.query.AggregationData;
 import org.jetlinks.core.Values;
@@ -48,6 +52,7 @@ import org.jetlinks.core.message.Message;
 import org.jetlinks.core.message.MessageType;
 import org.jetlinks.core.message.RepayableDeviceMessage;
 import org.jetlinks.core.metadata.*;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.data.util.Lazy;
@@ -99,6 +104,10 @@ public class DeviceInstanceController implements
 
     private final DeviceConfigMetadataManager metadataManager;
 
+    private final DeviceImportService importService;
+
+    private final DataExporter exporter;
+
     @SuppressWarnings("all")
     public DeviceInstanceController(LocalDeviceInstanceService service,
                                     DeviceRegistry registry,
@@ -106,7 +115,9 @@ public class DeviceInstanceController implements
                                     ImportExportService importExportService,
                                     ReactiveRepository<DeviceTagEntity, String> tagRepository,
                                     DeviceDataService deviceDataService,
-                                    DeviceConfigMetadataManager metadataManager) {
+                                    DeviceConfigMetadataManager metadataManager,
+                                    DeviceImportService importService,
+                                    DataExporter exporter) {
         this.service = service;
         this.registry = registry;
         this.productService = productService;
@@ -114,6 +125,8 @@ public class DeviceInstanceController implements
         this.tagRepository = tagRepository;
         this.deviceDataService = deviceDataService;
         this.metadataManager = metadataManager;
+        this.importService = importService;
+        this.exporter = exporter;
     }
 
 
@@ -459,21 +472,8 @@ public class DeviceInstanceController implements
                     .collect(Collectors.toMap(Dimension::getName, Dimension::getId, (_1, _2) -> _1));
 
                 return this
-                    .getDeviceProductDetail(productId)
-                    .map(tp4 -> Tuples.of(new DeviceWrapper(tp4.getT3().getTags(), tp4.getT4()), tp4.getT1()))
-                    .flatMapMany(wrapper -> importExportService
-                        .readData(fileUrl, fileId, wrapper.getT1())
-                        .doOnNext(info -> info.setProductName(wrapper.getT2().getName()))
-                    )
-                    .map(info -> {
-                        DeviceInstanceEntity entity = FastBeanCopier.copy(info, new DeviceInstanceEntity());
-                        entity.setProductId(productId);
-                        entity.setOrgId(orgMapping.get(info.getOrgName()));
-                        if (StringUtils.isEmpty(entity.getId())) {
-                            throw new BusinessException("第" + (info.getRowNumber() + 1) + "行:设备ID不能为空");
-                        }
-                        return Tuples.of(entity, info.getTags());
-                    })
+                    .readImportData(productId, fileUrl, fileId)
+                    .map(info -> toImportEntity(productId, orgMapping, info))
                     .buffer(100)//每100条数据保存一次
                     .publishOn(Schedulers.single())
                     .concatMap(buffer ->
@@ -488,6 +488,80 @@ public class DeviceInstanceController implements
             });
     }
 
+    //后台导入数据
+    @PostMapping("/{productId}/import/_job")
+    @SaveAction
+    @Operation(summary = "后台导入设备数据", description = "导入在后台执行,通过返回的任务ID获取导入进度")
+    public Mono<DeviceImportJobInfo> startImportJob(@PathVariable @Parameter(description = "产品ID") String productId,
+                                                    @RequestParam(required = false) @Parameter(description = "文件地址,支持csv,xlsx文件格式") String fileUrl,
+                                                    @RequestParam(required = false) @Parameter(description = "文件Id") String fileId,
+                                                    @RequestParam(defaultValue = "false") @Parameter(description = "导入后是否激活设备") boolean deploy) {
+        return Authentication
+            .currentReactive()
+            .flatMap(auth -> {
+                Map<String, String> orgMapping = auth
+                    .getDimensions("org")
+                    .stream()
+                    .collect(Collectors.toMap(Dimension::getName, Dimension::getId, (_1, _2) -> _1));
+
+                return importService.startImport(
+                    productId,
+                    auth.getUser().getId(),
+                    auth.getUser().getName(),
+                    readImportData(productId, fileUrl, fileId),
+                    info -> toImportEntity(productId, orgMapping, info),
+                    deploy);
+            });
+    }
+
+    //获取后台导入进度
+    @GetMapping("/import/_job/{jobId}")
+    @QueryAction
+    @Operation(summary = "获取后台导入设备的进度")
+    public Mono<DeviceImportJobInfo> getImportJob(@PathVariable @Parameter(description = "任务ID") String jobId) {
+        return getCurrentUserImportJob(jobId);
+    }
+
+    //取消后台导入
+    @DeleteMapping("/import/_job/{jobId}")
+    @SaveAction
+    @Operation(summary = "取消后台导入设备")
+    public Mono<DeviceImportJobInfo> cancelImportJob(@PathVariable @Parameter(description = "任务ID") String jobId) {
+        return getCurrentUserImportJob(jobId)
+            .flatMap(job -> importService.cancelJob(job.getId()));
+    }
+
+    private Mono<DeviceImportJobInfo> getCurrentUserImportJob(String jobId) {
+        return Authentication
+            .currentReactive()
+            .flatMap(auth -> importService
+                .getJob(jobId)
+                .filter(job -> auth.getUser().getId().equals(job.getCreatorId())))
+            .switchIfEmpty(Mono.error(() -> new NotFoundException("导入任务不存在")));
+    }
+
+    private Flux<DeviceExcelInfo> readImportData(String productId, String fileUrl, String fileId) {
+        return this
+            .getDeviceProductDetail(productId)
+            .map(tp4 -> Tuples.of(new DeviceWrapper(tp4.getT3().getTags(), tp4.getT4()), tp4.getT1()))
+            .flatMapMany(wrapper -> importExportService
+                .readData(fileUrl, fileId, wrapper.getT1())
+                .doOnNext(info -> info.setProductName(wrapper.getT2().getName()))
+            );
+    }
+
+    private static Tuple2<DeviceInstanceEntity, List<DeviceTagEntity>> toImportEntity(String productId,
+                                                                                    Map<String, String> orgMapping,
+                                                                                    DeviceExcelInfo info) {
+        DeviceInstanceEntity entity = FastBeanCopier.copy(info, new DeviceInstanceEntity());
+        entity.setProductId(productId);
+        entity.setOrgId(orgMapping.get(info.getOrgName()));
+        if (StringUtils.isEmpty(entity.getId())) {
+            throw new BusinessException("第" + (info.getRowNumber() + 1) + "行:设备ID不能为空");
+        }
+        return Tuples.of(entity, info.getTags());
+    }
+
     //获取导出模版
     @GetMapping("/{productId}/template.{format}")
     @QueryAction
@@ -518,15 +592,36 @@ public class DeviceInstanceController implements
     public Mono<Void> export(@PathVariable @Parameter(description = "产品ID") String productId,
                              ServerHttpResponse response,
                              @Parameter(hidden = true) QueryParamEntity parameter,
-                             @PathVariable @Parameter(description = "文件格式,支持csv,xlsx") String format) throws IOException {
+                             @PathVariable @Parameter(description = "文件格式,支持csv,xlsx") String format,
+                             @RequestParam(defaultValue = "0") @Parameter(description = "跳过的数据行数(不包含表头行),用于从中断的位置继续导出,仅支持csv格式,续传的内容不包含表头") long offset) throws IOException {
         response.getHeaders().set(HttpHeaders.CONTENT_DISPOSITION,
                                   "attachment; filename=".concat(URLEncoder.encode("设备实例." + format, StandardCharsets.UTF_8
                                       .displayName())));
-        parameter.setPaging(false);
+        return this
+            .writeProductDevices(productId, parameter, format, offset)
+            .as(exporter::export)
+            .as(response::writeWith);
+    }
+
+    //按照型号导出数据到文件
+    @PostMapping("/{productId}/export.{format}/_file")
+    @QueryAction
+    @QueryNoPagingOperation(summary = "按产品导出设备实例数据到文件", description = "导出完成后通过文件ID下载")
+    public Mono<FileInfo> exportToFile(@PathVariable @Parameter(description = "产品ID") String productId,
+                                       @Parameter(hidden = true) QueryParamEntity parameter,
+                                       @PathVariable @Parameter(description = "文件格式,支持csv,xlsx") String format) {
+        return exporter
+            .exportToFile("设备实例." + format, writeProductDevices(productId, parameter, format, 0));
+    }
+
+    private Flux<DataBuffer> writeProductDevices(String productId,
+                                                 QueryParamEntity parameter,
+                                                 String format,
+                                                 long offset) {
         parameter.toNestQuery(q -> q.is(DeviceInstanceEntity::getProductId, productId));
-       return Authentication
+        return Authentication
             .currentReactive()
-            .flatMap(auth -> {
+            .flatMapMany(auth -> {
                 //从当前用户的维度中获取机构信息,需要将用户绑定到对应到机构.
                 Map<String, String> orgMapping = auth
                     .getDimensions("org")
@@ -552,9 +647,9 @@ public class DeviceInstanceController implements
                         .<DeviceExcelInfo>writer(format)
                         .headers(headerAndConfigKey.getT1())
                         .converter(DeviceExcelInfo::toMap)
-                        .writeBuffer(service
-                                         .query(parameter)
-                                         .flatMap(entity -> {
+                        .writeBuffer(exporter
+                                         .<DeviceInstanceEntity>source(parameter, service::query, format, offset)
+                                         .flatMapSequential(entity -> {
                                              DeviceExcelInfo exportEntity = FastBeanCopier.copy(entity, new DeviceExcelInfo(), "state");
                                              exportEntity.setOrgName(orgMapping.get(entity.getOrgId()));
                                              exportEntity.setState(entity.getState().getText());
@@ -567,9 +662,10 @@ public class DeviceInstanceController implements
                                                      .getConfiguration()
                                                      .putAll(configs))
                                                  .thenReturn(exportEntity);
-                                         })
+                                         }, 32)
                                          .buffer(200)
-                                         .flatMap(list -> {
+                                         //限制同时查询标签的批次,避免数据在内存中堆积
+                                         .concatMap(list -> {
                                              Map<String, DeviceExcelInfo> importInfo = list
                                                  .stream()
                                                  .collect(Collectors.toMap(DeviceExcelInfo::getId, Function.identity()));
@@ -584,11 +680,12 @@ public class DeviceInstanceController implements
                                                      .get(entry.getKey())
                                                      .setTags(entry.getValue()))
                                                  .thenMany(Flux.fromIterable(list));
-                                         })
+                                         }, 1)
                             , 512 * 1024))//缓冲512k
                     .doOnError(err -> log.error(err.getMessage(), err))
                     .map(bufferFactory::wrap)
-                    .as(response::writeWith);
+                    //续传时不再写出表头
+                    .transform(DataExporter.skipHeader(offset));
             });
     }
 
@@ -599,7 +696,8 @@ public class DeviceInstanceController implements
     @QueryNoPagingOperation(summary = "导出设备实例数据", description = "此操作不支持导出设备标签和配置信息")
     public Mono<Void> export(ServerHttpResponse response,
                              @Parameter(hidden = true) QueryParamEntity parameter,
-                             @PathVariable @Parameter(description = "文件格式,支持csv,xlsx") String format) throws IOException {
+                             @PathVariable @Parameter(description = "文件格式,支持csv,xlsx") String format,
+                             @RequestParam(defaultValue = "0") @Parameter(description = "跳过的数据行数(不包含表头行),用于从中断的位置继续导出,仅支持csv格式,续传的内容不包含表头") long offset) throws IOException {
         response.getHeaders().set(HttpHeaders.CONTENT_DISPOSITION,
                                   "attachment; filename=".concat(URLEncoder.encode("设备实例." + format, StandardCharsets.UTF_8
                                       .displayName())));
@@ -607,8 +705,8 @@ public class DeviceInstanceController implements
             .headers(DeviceExcelInfo.getExportHeaderMapping(Collections.emptyList(), Collections.emptyList()))
             .converter(DeviceExcelInfo::toMap)
             .writeBuffer(
-                service
-                    .query(parameter)
+                exporter
+                    .<DeviceInstanceEntity>source(parameter, service::query, format, offset)
                     .map(entity -> {
                         DeviceExcelInfo exportEntity = FastBeanCopier.copy(entity, new DeviceExcelInfo(), "state");
                         exportEntity.setState(entity.getState().getText());
@@ -617,6 +715,9 @@ public class DeviceInstanceController implements
                 , 512 * 1024)//缓冲512k
             .doOnError(err -> log.error(err.getMessage(), err))
             .map(bufferFactory::wrap)
+            //续传时不再写出表头
+            .transform(DataExporter.skipHeader(offset))
+            .as(exporter::export)
             .as(response::writeWith);
     }
 
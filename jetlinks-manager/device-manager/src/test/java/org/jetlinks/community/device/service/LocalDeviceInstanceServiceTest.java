@@ -0,0 +1,169 @@
+package org.jetlinks.community.device.service;
+
+import org.hswebframework.ezorm.rdb.mapping.ReactiveUpdate;
+import org.jetlinks.community.device.entity.DeviceInstanceEntity;
+import org.jetlinks.community.device.enums.DeviceState;
+import org.jetlinks.community.device.response.DeviceDeployResult;
+import org.jetlinks.core.device.DeviceInfo;
+import org.jetlinks.core.device.DeviceOperator;
+import org.jetlinks.core.device.DeviceRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyByte;
+import static org.mockito.Mockito.*;
+
+class LocalDeviceInstanceServiceTest {
+
+    //每次执行的更新: 更新的状态以及设备ID
+    private final List<Map.Entry<Object, Collection<?>>> updates = new CopyOnWriteArrayList<>();
+
+    //设备ID -> 注册中心中的状态
+    private final Map<String, Byte> registryStates = new HashMap<>();
+
+    private boolean updateFailed;
+
+    private DeviceRegistry registry;
+
+    private LocalDeviceInstanceService service;
+
+    @BeforeEach
+    void init() {
+        registry = mock(DeviceRegistry.class);
+        when(registry.register(any(DeviceInfo.class))).thenAnswer(invocation -> {
+            DeviceInfo info = invocation.getArgument(0);
+            Byte state = registryStates.get(info.getId());
+            if (state == null) {
+                return Mono.error(new IllegalStateException("registry error"));
+            }
+            DeviceOperator operator = mock(DeviceOperator.class);
+            when(operator.getState()).thenReturn(Mono.just(state));
+            when(operator.putState(anyByte())).thenReturn(Mono.just(true));
+            return Mono.just(operator);
+        });
+
+        service = spy(new LocalDeviceInstanceService(registry, null, null, null));
+        doAnswer(invocation -> mockUpdate()).when(service).createUpdate();
+    }
+
+    //记录set(state)和in(id)的参数,不依赖具体的重载方法
+    @SuppressWarnings("all")
+    private ReactiveUpdate<DeviceInstanceEntity> mockUpdate() {
+        Object[] state = new Object[1];
+        return mock(ReactiveUpdate.class, invocation -> {
+            String method = invocation.getMethod().getName();
+            Object[] args = invocation.getArguments();
+            if ("set".equals(method) && args.length == 2 && args[1] instanceof DeviceState) {
+                state[0] = args[1];
+            } else if ("in".equals(method) && args.length == 2 && args[1] instanceof Collection) {
+                updates.add(new AbstractMap.SimpleEntry<>(state[0], (Collection<?>) args[1]));
+            } else if ("execute".equals(method)) {
+                if (updateFailed) {
+                    return Mono.error(new IllegalStateException("database error"));
+                }
+                return Mono.just(updates.get(updates.size() - 1).getValue().size());
+            }
+            if (invocation.getMethod().getReturnType().isInstance(invocation.getMock())) {
+                return invocation.getMock();
+            }
+            return Answers.RETURNS_DEFAULTS.answer(invocation);
+        });
+    }
+
+    private DeviceInstanceEntity device(String id, Byte registryState) {
+        DeviceInstanceEntity instance = new DeviceInstanceEntity();
+        instance.setId(id);
+        instance.setProductId("test");
+        if (registryState != null) {
+            registryStates.put(id, registryState);
+        }
+        return instance;
+    }
+
+    @Test
+    void testUpdateDeployStateByGroup() {
+        List<DeviceDeployResult> results = service
+            .deploy(Flux.just(device("online-1", org.jetlinks.core.device.DeviceState.online),
+                              device("online-2", org.jetlinks.core.device.DeviceState.online),
+                              device("offline-1", org.jetlinks.core.device.DeviceState.offline),
+                              //未激活的设备发布后为离线
+                              device("offline-2", org.jetlinks.core.device.DeviceState.noActive)))
+            .collectList()
+            .block();
+
+        assertNotNull(results);
+        assertTrue(results.stream().allMatch(DeviceDeployResult::isSuccess));
+        assertEquals(4, results.stream().mapToInt(DeviceDeployResult::getTotal).sum());
+
+        //相同状态的设备使用一条SQL更新
+        assertEquals(2, updates.size());
+        Map<Object, Set<Object>> grouped = new HashMap<>();
+        for (Map.Entry<Object, Collection<?>> update : updates) {
+            grouped.put(update.getKey(), new HashSet<>(update.getValue()));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("online-1", "online-2")), grouped.get(DeviceState.online));
+        assertEquals(new HashSet<>(Arrays.asList("offline-1", "offline-2")), grouped.get(DeviceState.offline));
+    }
+
+    @Test
+    void testUpdateDeployStateByBatch() {
+        service.setBatchSize(2);
+        List<DeviceDeployResult> results = service
+            .deploy(Flux.range(0, 5).map(i -> device("test-" + i, org.jetlinks.core.device.DeviceState.online)))
+            .collectList()
+            .block();
+
+        assertNotNull(results);
+        assertEquals(3, updates.size());
+        assertEquals(5, results.stream().mapToInt(DeviceDeployResult::getTotal).sum());
+    }
+
+    @Test
+    void testAggregateRegisterError() {
+        List<DeviceDeployResult> results = service
+            .deploy(Flux.just(device("online", org.jetlinks.core.device.DeviceState.online),
+                              device("error-1", null),
+                              device("error-2", null)))
+            .collectList()
+            .block();
+
+        assertNotNull(results);
+        assertEquals(2, results.size());
+        assertEquals(1, results.get(0).getTotal());
+        assertTrue(results.get(0).isSuccess());
+
+        //注册失败的设备汇总为一个结果,只返回第一个错误
+        DeviceDeployResult failed = results.get(1);
+        assertFalse(failed.isSuccess());
+        assertEquals(2, failed.getFailed());
+        assertTrue(failed.getMessage().startsWith("error-1:"), failed.getMessage());
+
+        //注册失败的设备不更新数据库
+        assertEquals(1, updates.size());
+        assertEquals(Collections.singletonList("online"), new ArrayList<>(updates.get(0).getValue()));
+    }
+
+    @Test
+    void testUpdateError() {
+        updateFailed = true;
+        List<DeviceDeployResult> results = service
+            .deploy(Flux.just(device("online-1", org.jetlinks.core.device.DeviceState.online),
+                              device("online-2", org.jetlinks.core.device.DeviceState.online)))
+            .collectList()
+            .block();
+
+        assertNotNull(results);
+        assertEquals(1, results.size());
+        assertFalse(results.get(0).isSuccess());
+        assertEquals(2, results.get(0).getFailed());
+        assertEquals("database error", results.get(0).getMessage());
+    }
+}
@@ -0,0 +1,101 @@
+package org.jetlinks.community.device.service;
+
+import org.jetlinks.community.device.enums.DeviceState;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateBufTest {
+
+    interface Writer {
+        void write(ObjectOutput out) throws IOException;
+    }
+
+    static byte[] write(Writer writer) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(stream)) {
+            writer.write(out);
+        }
+        return stream.toByteArray();
+    }
+
+    static DeviceMessageBusinessHandler.StateBuf read(ObjectInput in) throws IOException {
+        DeviceMessageBusinessHandler.StateBuf buf = new DeviceMessageBusinessHandler.StateBuf();
+        buf.readExternal(in);
+        return buf;
+    }
+
+    @Test
+    void testReadWrite() throws IOException {
+        byte[] data = write(out -> {
+            new DeviceMessageBusinessHandler.StateBuf("test", 100, DeviceState.offline).writeExternal(out);
+            //时间戳为0
+            new DeviceMessageBusinessHandler.StateBuf("test2", 0, DeviceState.online).writeExternal(out);
+            new DeviceMessageBusinessHandler.StateBuf("test3", 100).writeExternal(out);
+        });
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            DeviceMessageBusinessHandler.StateBuf buf = read(in);
+            assertEquals("test", buf.getId());
+            assertEquals(100, buf.getTime());
+            assertEquals(DeviceState.offline, buf.getState());
+
+            buf = read(in);
+            assertEquals("test2", buf.getId());
+            assertEquals(0, buf.getTime());
+            assertEquals(DeviceState.online, buf.getState());
+
+            buf = read(in);
+            assertEquals("test3", buf.getId());
+            assertNull(buf.getState());
+        }
+    }
+
+    @Test
+    void testReadOldVersion() throws IOException {
+        byte[] data = write(out -> {
+            out.writeUTF("test");
+            out.writeLong(100);
+            out.writeUTF("test2");
+            out.writeLong(200);
+        });
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            DeviceMessageBusinessHandler.StateBuf buf = read(in);
+            assertEquals("test", buf.getId());
+            assertEquals(100, buf.getTime());
+            assertNull(buf.getState());
+
+            buf = read(in);
+            assertEquals("test2", buf.getId());
+            assertEquals(200, buf.getTime());
+            assertNull(buf.getState());
+        }
+    }
+
+    @Test
+    void testReadStateName() throws IOException {
+        byte[] data = write(out -> {
+            out.writeUTF(DeviceMessageBusinessHandler.StateBuf.VERSION_MARKER);
+            out.writeByte(DeviceMessageBusinessHandler.StateBuf.VERSION);
+            out.writeUTF("test");
+            out.writeLong(100);
+            out.writeUTF(DeviceState.online.name());
+            //无法识别的状态
+            out.writeUTF(DeviceMessageBusinessHandler.StateBuf.VERSION_MARKER);
+            out.writeByte(DeviceMessageBusinessHandler.StateBuf.VERSION);
+            out.writeUTF("test2");
+            out.writeLong(100);
+            out.writeUTF("removed");
+        });
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            DeviceMessageBusinessHandler.StateBuf buf = read(in);
+            assertEquals("test", buf.getId());
+            assertEquals(DeviceState.online, buf.getState());
+
+            buf = read(in);
+            assertEquals("test2", buf.getId());
+            assertNull(buf.getState());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.jetlinks.community.device.service.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataIdGeneratorTest {
+
+    @Test
+    void testOrdered() {
+        DataIdGenerator generator = new DataIdGenerator(1);
+        String last = generator.next();
+        //超过每毫秒最大序号,需要借用下一毫秒
+        for (int i = 0; i < DataIdGenerator.MAX_SEQUENCE * 3; i++) {
+            String id = generator.next();
+            assertEquals(17, id.length());
+            assertTrue(id.compareTo(last) > 0, () -> id + " <= " + last);
+            last = id;
+        }
+    }
+
+    @Test
+    void testUniqueConcurrent() throws Exception {
+        int threads = 8, size = 50_000;
+        List<DataIdGenerator> generators = Arrays.asList(
+            DataIdGenerator.create(-1, "jetlinks-platform:8844"),
+            DataIdGenerator.create(-1, "jetlinks-platform:8845")
+        );
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                DataIdGenerator generator = generators.get(i % generators.size());
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < size; j++) {
+                        ids.add(generator.next());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(threads * size, ids.size());
+    }
+
+    @Test
+    void testNodeIdFromServerId() {
+        assertEquals(DataIdGenerator.nodeIdOf("jetlinks-platform:8844"),
+                     DataIdGenerator.nodeIdOf("jetlinks-platform:8844"));
+
+        Set<Integer> nodeIds = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            int nodeId = DataIdGenerator.nodeIdOf("jetlinks-platform:" + (8800 + i));
+            assertTrue(nodeId >= 0 && nodeId <= DataIdGenerator.MAX_NODE_ID);
+            nodeIds.add(nodeId);
+        }
+        assertEquals(100, nodeIds.size());
+    }
+
+    @Test
+    void testInvalidNodeId() {
+        assertThrows(IllegalArgumentException.class, () -> new DataIdGenerator(DataIdGenerator.MAX_NODE_ID + 1));
+        assertThrows(IllegalArgumentException.class, () -> DataIdGenerator.create(-1, null));
+    }
+}
@@ -0,0 +1,217 @@
+package org.jetlinks.community.device.service.data;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetlinks.community.timeseries.TimeSeriesData;
+import org.jetlinks.community.timeseries.TimeSeriesManager;
+import org.jetlinks.community.timeseries.TimeSeriesService;
+import org.jetlinks.core.cluster.ClusterManager;
+import org.jetlinks.core.device.DeviceOperator;
+import org.jetlinks.core.device.DeviceRegistry;
+import org.jetlinks.core.message.property.ReportPropertyMessage;
+import org.jetlinks.core.metadata.DataType;
+import org.jetlinks.core.metadata.DeviceMetadata;
+import org.jetlinks.core.metadata.PropertyMetadata;
+import org.jetlinks.core.metadata.types.IntType;
+import org.jetlinks.core.metadata.types.ObjectType;
+import org.jetlinks.core.utils.TimestampUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.jetlinks.community.device.timeseries.DeviceTimeSeriesMetric.deviceLogMetricId;
+import static org.jetlinks.community.device.timeseries.DeviceTimeSeriesMetric.devicePropertyMetricId;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Slf4j
+class TimeSeriesRowDeviceDataStoreStoragePolicyTest {
+
+    private final Map<String, List<TimeSeriesData>> saved = new ConcurrentHashMap<>();
+
+    private TimeSeriesRowDeviceDataStoreStoragePolicy policy;
+
+    private DeviceRegistry registry;
+
+    @BeforeEach
+    void init() {
+        PropertyMetadata temp = property("temp", new IntType());
+        PropertyMetadata obj = property("obj", new ObjectType());
+        DeviceMetadata metadata = mock(DeviceMetadata.class);
+        when(metadata.getPropertyOrNull("temp")).thenReturn(temp);
+        when(metadata.getPropertyOrNull("obj")).thenReturn(obj);
+        when(metadata.getProperties()).thenReturn(Arrays.asList(temp, obj));
+
+        DeviceOperator device = mock(DeviceOperator.class);
+        when(device.getMetadata()).thenReturn(Mono.just(metadata));
+        when(device.getOnlineTime()).thenReturn(Mono.just(1L));
+
+        registry = mock(DeviceRegistry.class);
+        when(registry.getDevice("test")).thenReturn(Mono.just(device));
+
+        ClusterManager clusterManager = mock(ClusterManager.class);
+        when(clusterManager.getCurrentServerId()).thenReturn("test");
+
+        TimeSeriesManager timeSeriesManager = mock(TimeSeriesManager.class);
+        when(timeSeriesManager.getService(anyString())).thenAnswer(invocation -> createService(invocation.getArgument(0)));
+
+        policy = new TimeSeriesRowDeviceDataStoreStoragePolicy(registry,
+                                                               clusterManager,
+                                                               timeSeriesManager,
+                                                               new DeviceDataStorageProperties());
+    }
+
+    private TimeSeriesService createService(String metric) {
+        List<TimeSeriesData> data = saved.computeIfAbsent(metric, ignore -> new CopyOnWriteArrayList<>());
+        TimeSeriesService service = mock(TimeSeriesService.class);
+        when(service.commit(any(TimeSeriesData.class))).thenAnswer(invocation -> {
+            data.add(invocation.getArgument(0));
+            return Mono.empty();
+        });
+        when(service.save(any())).thenAnswer(invocation -> Flux
+            .from(invocation.<Publisher<TimeSeriesData>>getArgument(0))
+            .doOnNext(data::add)
+            .then());
+        return service;
+    }
+
+    private static PropertyMetadata property(String id, DataType type) {
+        PropertyMetadata metadata = mock(PropertyMetadata.class);
+        when(metadata.getId()).thenReturn(id);
+        when(metadata.getValueType()).thenReturn(type);
+        return metadata;
+    }
+
+    private static ReportPropertyMessage createMessage(int temp) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("temp", temp);
+        properties.put("obj", "{ \"a\" : 1 }");
+        properties.put("unknown", 1);
+        ReportPropertyMessage message = new ReportPropertyMessage();
+        message.setDeviceId("test");
+        message.setProperties(properties);
+        message.addHeader("productId", "demo");
+        return message;
+    }
+
+    @Test
+    void testSave() {
+        policy.saveDeviceMessage(createMessage(10)).block();
+
+        Map<String, Map<String, Object>> rows = saved
+            .get(devicePropertyMetricId("demo"))
+            .stream()
+            .map(TimeSeriesData::getData)
+            .collect(Collectors.toMap(data -> (String) data.get("property"), data -> data));
+
+        assertEquals(2, rows.size());
+        assertEquals(10, rows.get("temp").get("numberValue"));
+        //存储的是转换后的值,而不是上报的原始字符串
+        assertEquals("{\"a\":1}", rows.get("obj").get("value"));
+        assertEquals(1, saved.get(deviceLogMetricId("demo")).size());
+    }
+
+    @Test
+    void testSaveBatch() {
+        int size = AbstractDeviceDataStoragePolicy.SAVE_BATCH_SIZE * 2 + 10;
+        policy.saveDeviceMessage(Flux.range(0, size).map(TimeSeriesRowDeviceDataStoreStoragePolicyTest::createMessage))
+              .block();
+
+        List<TimeSeriesData> rows = saved.get(devicePropertyMetricId("demo"));
+        assertEquals(size * 2, rows.size());
+        assertEquals(size * 2, rows.stream().map(data -> data.getData().get("id")).distinct().count());
+        assertEquals(size, saved.get(deviceLogMetricId("demo")).size());
+    }
+
+    @Test
+    void testConvert() {
+        DeviceDataRows rows = new DeviceDataRows();
+        policy.convertMessageToTimeSeriesData(createMessage(10), rows).block();
+        assertEquals(3, rows.size());
+
+        assertEquals(3, policy.convertMessageToTimeSeriesData(createMessage(10)).count().block());
+    }
+
+    /**
+     * 优化前的转换方式,每个属性和日志都是一个响应式操作,再通过Flux.merge合并,仅用于性能对比.
+     */
+    private Flux<Tuple2<String, TimeSeriesData>> legacyConvert(ReportPropertyMessage message) {
+        String productId = message.getHeader("productId").map(String::valueOf).orElse("null");
+        List<Publisher<Tuple2<String, TimeSeriesData>>> all = new ArrayList<>(2);
+        all.add(registry
+                    .getDevice(message.getDeviceId())
+                    .flatMapMany(device -> device
+                        .getMetadata()
+                        .flatMapMany(metadata -> Flux
+                            .fromIterable(message.getProperties().entrySet())
+                            .index()
+                            .flatMap(entry -> {
+                                PropertyMetadata property = metadata.getPropertyOrNull(entry.getT2().getKey());
+                                if (property == null) {
+                                    return Mono.empty();
+                                }
+                                return Mono.just(TimeSeriesData.of(message.getTimestamp(), policy
+                                    .createRowPropertyData(policy.createDataId(message),
+                                                           TimestampUtils.toMillis(message.getTimestamp()),
+                                                           message.getDeviceId(),
+                                                           property,
+                                                           entry.getT2().getValue())));
+                            })
+                            .map(data -> Tuples.of(devicePropertyMetricId(productId), data)))));
+        all.add(policy.createDeviceMessageLog(productId, message, (msg, entity) -> entity.setContent(msg.toJson())));
+        return Flux.merge(all);
+    }
+
+    /**
+     * 转换设备消息的性能测试,对比优化前后每条消息的转换耗时,使用-Dbenchmark=true执行
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmarkConvert() {
+        List<ReportPropertyMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            messages.add(createMessage(i));
+        }
+        DeviceDataRows rows = new DeviceDataRows();
+        //转换结果的数量相同
+        assertEquals(legacyConvert(messages.get(0)).count().block(),
+                     policy.convertMessageToTimeSeriesData(messages.get(0)).count().block());
+
+        long legacyCost = 0, rowsCost = 0;
+        int rounds = 10, warmup = 3;
+        for (int round = 0; round < rounds; round++) {
+            long time = System.nanoTime();
+            for (ReportPropertyMessage message : messages) {
+                legacyConvert(message).collectList().block();
+            }
+            long legacy = (System.nanoTime() - time) / messages.size();
+
+            time = System.nanoTime();
+            for (ReportPropertyMessage message : messages) {
+                policy.convertMessageToTimeSeriesData(message, rows).block();
+                rows.clear();
+            }
+            long current = (System.nanoTime() - time) / messages.size();
+            if (round >= warmup) {
+                legacyCost += legacy;
+                rowsCost += current;
+            }
+        }
+        legacyCost /= rounds - warmup;
+        rowsCost /= rounds - warmup;
+        log.info("convert device message: legacy {}ns/msg, rows {}ns/msg", legacyCost, rowsCost);
+        assertTrue(rowsCost < legacyCost, "rows " + rowsCost + "ns/msg >= legacy " + legacyCost + "ns/msg");
+    }
+}
@@ -6,6 +6,7 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import lombok.Getter;
 import lombok.Setter;
+import org.hswebframework.web.authorization.annotation.QueryAction;
 import org.hswebframework.web.authorization.annotation.Resource;
 import org.hswebframework.web.authorization.annotation.ResourceAction;
 import org.hswebframework.web.exception.NotFoundException;
@@ -13,6 +14,7 @@ import org.jetlinks.community.notify.DefaultNotifyType;
 import org.jetlinks.community.notify.NotifierManager;
 import org.jetlinks.community.notify.NotifyType;
 import org.jetlinks.community.notify.manager.entity.NotifyTemplateEntity;
+import org.jetlinks.community.notify.rule.NotifyDispatcher;
 import org.jetlinks.community.notify.template.TemplateManager;
 import org.jetlinks.core.Values;
 import org.springframework.web.bind.annotation.*;
@@ -34,9 +36,28 @@ public class NotifierController {
 
     private final TemplateManager templateManager;
 
-    public NotifierController(NotifierManager notifierManager, TemplateManager templateManager) {
+    private final NotifyDispatcher dispatcher;
+
+    public NotifierController(NotifierManager notifierManager,
+                              TemplateManager templateManager,
+                              NotifyDispatcher dispatcher) {
         this.notifierManager = notifierManager;
         this.templateManager = templateManager;
+        this.dispatcher = dispatcher;
+    }
+
+    @GetMapping("/dispatch/failed/_count")
+    @QueryAction
+    @Operation(summary = "获取规则引擎中发送失败的通知数量")
+    public Mono<Integer> getFailedCount() {
+        return Mono.fromSupplier(dispatcher::getFailedSize);
+    }
+
+    @PostMapping("/dispatch/failed/_retry")
+    @ResourceAction(id = "send", name = "发送通知")
+    @Operation(summary = "重新发送规则引擎中发送失败的通知", description = "返回重新放入发送队列的通知数量")
+    public Mono<Integer> retryFailed() {
+        return Mono.fromSupplier(dispatcher::retryFailed);
     }
 
     /**
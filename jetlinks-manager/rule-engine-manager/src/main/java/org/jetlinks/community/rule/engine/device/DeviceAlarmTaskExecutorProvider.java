@@ -37,6 +37,7 @@ import javax.annotation.Nonnull;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 @Slf4j
 @AllArgsConstructor
@@ -59,6 +60,9 @@ public class DeviceAlarmTaskExecutorProvider implements TaskExecutorProvider {
 
     static class DeviceAlarmTaskExecutor extends AbstractTaskExecutor {
 
+        //防抖时最大跟踪的设备数量
+        static final int SHAKE_LIMIT_MAX_KEYS = Integer.getInteger("jetlinks.alarm.shake-limit.max-keys", 500_000);
+
         /**
          * 默认要查询的列
          */
@@ -253,17 +257,19 @@ public class DeviceAlarmTaskExecutorProvider implements TaskExecutorProvider {
             ShakeLimit shakeLimit;
             if ((shakeLimit = rule.getShakeLimit()) != null) {
 
+                //规则已经指定了固定的设备,所有数据使用同一个计数器
+                //规则配置在设备产品上,则按设备ID分别计数
+                String fixedDeviceId = rule.getDeviceId();
+                Function<Map<String, Object>, String> keySelector = StringUtils.hasText(fixedDeviceId)
+                    ? map -> fixedDeviceId
+                    : map -> String.valueOf(map.get("deviceId"));
+
                 resultFlux = shakeLimit.transfer(
                     resultFlux,
-                    (duration, flux) ->
-                        StringUtils.hasText(rule.getDeviceId())
-                            //规则已经指定了固定的设备,直接开启时间窗口就行
-                            ? flux.window(duration, scheduler)
-                            //规则配置在设备产品上,则按设备ID分组后再开窗口
-                            //设备越多,消耗的内存越大
-                            : flux
-                            .groupBy(map -> String.valueOf(map.get("deviceId")), Integer.MAX_VALUE)
-                            .flatMap(group -> group.window(duration, scheduler), Integer.MAX_VALUE),
+                    rule.getId(),
+                    keySelector,
+                    SHAKE_LIMIT_MAX_KEYS,
+                    scheduler,
                     (alarm, total) -> alarm.put("totalAlarms", total)
                 );
             }
@@ -4,15 +4,19 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.util.StringUtils;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
 import reactor.util.function.Tuples;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * 抖动限制
@@ -100,4 +104,61 @@ public class ShakeLimit implements Serializable {
                     return tp2.getT2();
                 }));
     }
-}
\ No newline at end of file
+
+    /**
+     * 将流转换为支持抖动限制的流,按key分别进行计数.
+     * <p>
+     * 与{@link ShakeLimit#transfer(Flux, BiFunction, BiConsumer)}不同,不会为每个key创建分组和窗口,
+     * 而是使用时间轮和计数器实现,内存占用只与当前处于时间窗口内的key数量有关,并且最多跟踪maxKeys个key.
+     * <p>
+     * 注意: 每个key的时间窗口从该key的第一条数据开始计时,而不是使用连续的固定窗口,
+     * 例如: 窗口为10秒时,第0秒和第12秒的数据在固定窗口中分别属于两个窗口,在这里也属于两个窗口;
+     * 但第8秒和第12秒的数据在固定窗口中属于两个窗口,在这里属于同一个窗口.
+     *
+     * @param source        数据源
+     * @param name          名称,用于监控指标
+     * @param keySelector   分组key,如: 设备ID
+     * @param maxKeys       最大跟踪key数量
+     * @param scheduler     调度器
+     * @param totalConsumer 总数接收器
+     * @param <T>           数据类型
+     * @return 新流
+     */
+    public <T> Flux<T> transfer(Flux<T> source,
+                                String name,
+                                Function<T, String> keySelector,
+                                int maxKeys,
+                                Scheduler scheduler,
+                                BiConsumer<T, Long> totalConsumer) {
+        if (!enabled || time <= 0) {
+            return source;
+        }
+        return Flux.create(sink -> {
+            ShakeLimitDebouncer<T> debouncer = new ShakeLimitDebouncer<>(
+                name,
+                Duration.ofSeconds(getTime()).toMillis(),
+                getThreshold(),
+                isAlarmFirst(),
+                maxKeys,
+                totalConsumer);
+
+            Disposable ticker = scheduler
+                .schedulePeriodically(() -> debouncer.tick(sink::next),
+                                      debouncer.getTickMillis(),
+                                      debouncer.getTickMillis(),
+                                      TimeUnit.MILLISECONDS);
+            Disposable subscriber = source
+                .subscribe(data -> debouncer.accept(keySelector.apply(data), data, sink::next),
+                           sink::error,
+                           () -> {
+                               debouncer.flush(sink::next);
+                               sink.complete();
+                           });
+            sink.onDispose(() -> {
+                ticker.dispose();
+                subscriber.dispose();
+                debouncer.dispose();
+            });
+        });
+    }
+}
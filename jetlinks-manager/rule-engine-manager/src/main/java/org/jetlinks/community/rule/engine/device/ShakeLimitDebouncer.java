@@ -0,0 +1,227 @@
+package org.jetlinks.community.rule.engine.device;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * 基于时间轮的防抖计数器,每个key只记录窗口结束时间,次数以及最后一条数据,
+ * 窗口结束后立即移除,内存占用只与当前处于窗口中的key数量有关.
+ * <p>
+ * 在时间窗口内满足阈值次数时触发,可选择第一次或者最后一次触发.
+ * 与{@link ShakeLimit#transfer(reactor.core.publisher.Flux, java.util.function.BiFunction, java.util.function.BiConsumer)}
+ * 使用的固定窗口({@code window(duration)})不同,每个key的窗口从该key的第一条数据开始计时,
+ * 窗口结束后下一条数据才开始新的窗口,因此窗口边界是按key对齐的而不是固定的时间点.
+ * 当跟踪的key数量达到上限时,将提前结束最早即将结束的窗口.
+ *
+ * @param <T> 数据类型
+ * @author zhouhao
+ * @since 1.20
+ */
+@Slf4j
+class ShakeLimitDebouncer<T> implements Disposable {
+
+    private final long windowMillis;
+
+    private final long tickMillis;
+
+    private final int threshold;
+
+    private final boolean alarmFirst;
+
+    private final int maxKeys;
+
+    private final BiConsumer<T, Long> totalConsumer;
+
+    private final Map<String, Counter<T>> counters = new HashMap<>();
+
+    //时间轮,每个槽存放在对应时间结束窗口的计数器
+    private final ArrayDeque<Counter<T>>[] wheel;
+
+    //相同名称(规则ID)的防抖器共用一个监控指标,规则重新加载时新旧防抖器可能同时存在
+    private static final Map<String, Set<ShakeLimitDebouncer<?>>> INSTANCES = new ConcurrentHashMap<>();
+
+    private final String name;
+
+    private long currentTick;
+
+    @SuppressWarnings("unchecked")
+    ShakeLimitDebouncer(String name,
+                        long windowMillis,
+                        int threshold,
+                        boolean alarmFirst,
+                        int maxKeys,
+                        BiConsumer<T, Long> totalConsumer) {
+        this.windowMillis = windowMillis;
+        this.tickMillis = Math.max(100, Math.min(1000, windowMillis));
+        this.threshold = Math.max(1, threshold);
+        this.alarmFirst = alarmFirst;
+        this.maxKeys = maxKeys;
+        this.totalConsumer = totalConsumer;
+        this.wheel = new ArrayDeque[(int) (windowMillis / tickMillis) + 2];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        this.name = name;
+        INSTANCES
+            .computeIfAbsent(name, ShakeLimitDebouncer::registerGauge)
+            .add(this);
+    }
+
+    //每个名称只注册一次监控指标,值为所有同名防抖器跟踪的key数量之和
+    private static Set<ShakeLimitDebouncer<?>> registerGauge(String name) {
+        Set<ShakeLimitDebouncer<?>> instances = ConcurrentHashMap.newKeySet();
+        Gauge
+            .builder("jetlinks.alarm.shake_limit.keys",
+                     instances,
+                     set -> set.stream().mapToInt(ShakeLimitDebouncer::size).sum())
+            .description("tracked shake limit keys")
+            .tag("name", name)
+            .register(Metrics.globalRegistry);
+        return instances;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    synchronized int size() {
+        return counters.size();
+    }
+
+    /**
+     * 接收数据,满足条件时通过output输出
+     *
+     * @param key    分组key,如: 设备ID
+     * @param data   数据
+     * @param output 输出
+     */
+    synchronized void accept(String key, T data, Consumer<T> output) {
+        long now = System.currentTimeMillis();
+        Counter<T> counter = counters.get(key);
+        if (counter == null) {
+            if (counters.size() >= maxKeys) {
+                evictOne(output);
+            }
+            counter = new Counter<>(key, now + windowMillis);
+            counters.put(key, counter);
+            wheel[(int) (((counter.windowEnd + tickMillis - 1) / tickMillis) % wheel.length)].add(counter);
+        }
+        counter.count++;
+        if (alarmFirst) {
+            if (counter.count == threshold) {
+                totalConsumer.accept(data, counter.count);
+                output.accept(data);
+            }
+        } else if (counter.count >= threshold) {
+            counter.last = data;
+        }
+    }
+
+    /**
+     * 推进时间轮,关闭已经结束的窗口
+     *
+     * @param output 输出
+     */
+    synchronized void tick(Consumer<T> output) {
+        long now = System.currentTimeMillis();
+        long targetTick = now / tickMillis;
+        //最多转一圈
+        long from = Math.max(currentTick, targetTick - wheel.length + 1);
+        for (long tick = from; tick <= targetTick; tick++) {
+            ArrayDeque<Counter<T>> slot = wheel[(int) (tick % wheel.length)];
+            int size = slot.size();
+            for (int i = 0; i < size; i++) {
+                Counter<T> counter = slot.poll();
+                if (counter == null) {
+                    break;
+                }
+                if (counter.closed) {
+                    continue;
+                }
+                if (counter.windowEnd <= now) {
+                    close(counter, output);
+                } else {
+                    //还未到期,放回继续等待
+                    slot.add(counter);
+                }
+            }
+        }
+        currentTick = targetTick;
+    }
+
+    /**
+     * 关闭所有窗口,通常在数据源结束时调用
+     *
+     * @param output 输出
+     */
+    synchronized void flush(Consumer<T> output) {
+        for (ArrayDeque<Counter<T>> slot : wheel) {
+            Counter<T> counter;
+            while ((counter = slot.poll()) != null) {
+                if (!counter.closed) {
+                    close(counter, output);
+                }
+            }
+        }
+    }
+
+    private void evictOne(Consumer<T> output) {
+        for (int i = 0; i < wheel.length; i++) {
+            ArrayDeque<Counter<T>> slot = wheel[(int) ((currentTick + i) % wheel.length)];
+            Counter<T> counter;
+            while ((counter = slot.poll()) != null) {
+                if (!counter.closed) {
+                    log.debug("shake limit keys exceed {}, close window [{}] in advance", maxKeys, counter.key);
+                    close(counter, output);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void close(Counter<T> counter, Consumer<T> output) {
+        counter.closed = true;
+        counters.remove(counter.key);
+        if (!alarmFirst && counter.last != null) {
+            totalConsumer.accept(counter.last, counter.count);
+            output.accept(counter.last);
+        }
+        counter.last = null;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        Set<ShakeLimitDebouncer<?>> instances = INSTANCES.get(name);
+        if (instances != null) {
+            instances.remove(this);
+        }
+        counters.clear();
+        for (ArrayDeque<Counter<T>> slot : wheel) {
+            slot.clear();
+        }
+    }
+
+    private static class Counter<T> {
+        private final String key;
+        private final long windowEnd;
+        private long count;
+        private T last;
+        private boolean closed;
+
+        private Counter(String key, long windowEnd) {
+            this.key = key;
+            this.windowEnd = windowEnd;
+        }
+    }
+}
@@ -1,32 +1,63 @@
 package org.jetlinks.community.rule.engine.service;
 
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.hswebframework.web.bean.FastBeanCopier;
 import org.hswebframework.web.crud.service.GenericReactiveCrudService;
+import org.jetlinks.community.buffer.BufferProperties;
+import org.jetlinks.community.buffer.BufferSettings;
+import org.jetlinks.community.buffer.PersistenceBuffer;
 import org.jetlinks.community.gateway.annotation.Subscribe;
 import org.jetlinks.community.rule.engine.entity.DeviceAlarmHistoryEntity;
-import org.jetlinks.core.utils.FluxUtils;
+import org.jetlinks.core.utils.Reactors;
+import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Service;
-import reactor.core.publisher.EmitterProcessor;
-import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.Duration;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
+@Slf4j
+@ConfigurationProperties(prefix = "rule.engine.alarm.history")
 public class DeviceAlarmHistoryService extends GenericReactiveCrudService<DeviceAlarmHistoryEntity, String> {
 
+    @Getter
+    @Setter
+    private AlarmHistoryBufferProperties buffer = new AlarmHistoryBufferProperties();
 
-    EmitterProcessor<DeviceAlarmHistoryEntity> processor = EmitterProcessor.create(false);
-    FluxSink<DeviceAlarmHistoryEntity> sink = processor.sink(FluxSink.OverflowStrategy.BUFFER);
+    private PersistenceBuffer<DeviceAlarmHistoryEntity> writer;
+
+    //因缓冲区已满而丢弃的告警记录数量
+    private final AtomicLong dropped = new AtomicLong();
 
     @PostConstruct
     public void init() {
-        FluxUtils.bufferRate(processor, 500, 200, Duration.ofSeconds(2))
-            .flatMap(list -> this.insertBatch(Mono.just(list)))
-            .subscribe();
+        //告警记录先写入本地文件队列,再批量写入数据库,重启或者数据库缓慢时不会丢失记录
+        writer = new PersistenceBuffer<>(
+            BufferSettings.create("alarm-history.queue", buffer),
+            DeviceAlarmHistoryEntity::new,
+            this::doSaveBuffer)
+            .name("device-alarm-history");
+
+        writer.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writer.dispose();
+    }
+
+    private Mono<Boolean> doSaveBuffer(Flux<DeviceAlarmHistoryEntity> flux) {
+        return this
+            .insertBatch(flux.collectList())
+            .then(Reactors.ALWAYS_FALSE);
     }
 
     @Subscribe("/rule-engine/device/alarm/**")
@@ -36,8 +67,51 @@ public class DeviceAlarmHistoryService extends GenericReactiveCrudService<Device
             entity.setAlarmTime(new Date((Long) message.get("timestamp")));
         }
         entity.setAlarmData(message);
-        return Mono
-            .fromRunnable(() -> sink.next(entity));
+
+        //缓冲区已满
+        if (writer.size() >= buffer.getMaxQueueSize()) {
+            return handleOverflow(entity);
+        }
+        return Mono.fromRunnable(() -> writer.write(entity));
+    }
+
+    private Mono<Void> handleOverflow(DeviceAlarmHistoryEntity entity) {
+        if (buffer.getOverflow() == Overflow.drop) {
+            long total = dropped.incrementAndGet();
+            if (total == 1 || total % 1000 == 0) {
+                log.warn("device alarm history buffer is full(size:{}),{} records dropped", writer.size(), total);
+            }
+            return Mono.empty();
+        }
+        //直接写入数据库,写入完成前不再处理新的告警,从而减缓告警产生的速度
+        return this
+            .insert(Mono.just(entity))
+            .then();
+    }
+
+    public enum Overflow {
+        //丢弃新的告警记录
+        drop,
+        //直接写入数据库
+        direct
+    }
+
+    @Getter
+    @Setter
+    public static class AlarmHistoryBufferProperties extends BufferProperties {
+
+        //缓冲队列中最大的记录数量,超过后按overflow进行处理
+        private int maxQueueSize = 1_000_000;
+
+        //缓冲队列已满时的处理方式
+        private Overflow overflow = Overflow.direct;
+
+        public AlarmHistoryBufferProperties() {
+            setFilePath("./data/alarm-history-buffer");
+            setSize(500);
+            setTimeout(Duration.ofSeconds(2));
+            setParallelism(1);
+        }
     }
 
 }
@@ -66,6 +66,7 @@ public class JetLinksConfiguration {
     }
 
     @Bean
+    @ConfigurationProperties(prefix = "jetlinks.protocol.startup")
     public LazyInitManagementProtocolSupports managementProtocolSupports(ProtocolSupportManager supportManager,
                                                                          ProtocolSupportLoader loader,
                                                                          ClusterManager clusterManager) {
@@ -11,6 +11,7 @@ import org.jetlinks.supports.protocol.management.ProtocolSupportDefinition;
 import org.jetlinks.supports.protocol.management.ProtocolSupportLoader;
 import org.jetlinks.supports.protocol.management.ProtocolSupportManager;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.core.annotation.Order;
 import reactor.core.publisher.Mono;
 
 import java.time.Duration;
@@ -18,9 +19,17 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
+/**
+ * 启动时加载并预热协议.
+ * <p>
+ * 协议在其他{@link CommandLineRunner}之前并行加载,加载完成后才会启动设备网关,
+ * 开启{@link #isWarmup()}时在注册协议前提前初始化协议的编解码器,减少第一批设备接入时的延迟.
+ * 预热使用单独的超时时间{@link #getWarmupTimeout()},超时后直接注册协议,不会占满启动时加载协议的超时时间.
+ */
 @Slf4j
 @Getter
 @Setter
+@Order(0)
 public class LazyInitManagementProtocolSupports extends StaticProtocolSupports implements CommandLineRunner {
 
     private ProtocolSupportManager manager;
@@ -34,6 +43,12 @@ public class LazyInitManagementProtocolSupports extends StaticProtocolSupports i
 
     private Duration loadTimeOut = Duration.ofSeconds(30);
 
+    //是否在注册协议前预热协议
+    private boolean warmup = true;
+
+    //预热协议的超时时间,应小于加载协议的超时时间
+    private Duration warmupTimeout = Duration.ofSeconds(5);
+
     public void init() {
 
         clusterManager.<ProtocolSupportDefinition>getTopic("_protocol_changed")
@@ -67,6 +82,7 @@ public class LazyInitManagementProtocolSupports extends StaticProtocolSupports i
 
         return loader
             .load(definition)
+            .flatMap(support -> definition.getState() == 1 ? warmup(support) : Mono.<ProtocolSupport>just(support))
             .doOnNext(e -> {
                 log.debug("{} protocol[{}] success: {}", operation, definition.getId(), e);
                 configProtocolIdMapping.put(definition.getId(), e.getId());
@@ -80,6 +96,30 @@ public class LazyInitManagementProtocolSupports extends StaticProtocolSupports i
 
     }
 
+    //初始化协议支持的所有编解码器,提前加载相关的类
+    private Mono<ProtocolSupport> warmup(ProtocolSupport support) {
+        if (!warmup) {
+            return Mono.just(support);
+        }
+        long startWith = System.currentTimeMillis();
+        return support
+            .getSupportedTransport()
+            .flatMap(transport -> support
+                .getMessageCodec(transport)
+                .then(support.getConfigMetadata(transport))
+                .then())
+            .then()
+            .timeout(warmupTimeout)
+            .doOnSuccess(ignore -> log.debug("warmup protocol[{}] in {}ms",
+                                             support.getId(),
+                                             System.currentTimeMillis() - startWith))
+            .onErrorResume(err -> {
+                log.warn("warmup protocol[{}] error", support.getId(), err);
+                return Mono.empty();
+            })
+            .thenReturn(support);
+    }
+
     @Override
     public void run(String... args) {
         init();
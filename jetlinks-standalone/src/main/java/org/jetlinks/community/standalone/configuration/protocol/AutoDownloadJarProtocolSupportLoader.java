@@ -2,6 +2,7 @@ package org.jetlinks.community.standalone.configuration.protocol;
 
 import lombok.Generated;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.hswebframework.web.bean.FastBeanCopier;
 import org.jetlinks.core.ProtocolSupport;
@@ -17,13 +18,20 @@ import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
 import javax.annotation.PreDestroy;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
@@ -37,6 +45,7 @@ import static java.nio.file.StandardOpenOption.*;
  *     1. 下载的协议包报错在./data/protocols目录下，可通过启动参数-Djetlinks.protocol.temp.path进行配置
  *     2. 文件名规则: 协议ID+"_"+md5(文件地址)
  *     3. 如果文件不存在则下载协议
+ *     4. 下载后记录文件的sha256,重启后校验通过才复用本地文件. 可在协议配置中设置sha256来校验下载的文件
  * </pre>
  *
  * @author zhouhao
@@ -95,38 +104,20 @@ public class AutoDownloadJarProtocolSupportLoader extends JarProtocolSupportLoad
         //远程文件则先下载再加载
         if (StringUtils.hasText(location) && location.startsWith("http")) {
             String urlMd5 = DigestUtils.md5Hex(location);
-            //地址没变则直接加载本地文件
+            String sha256 = (String) config.getOrDefault("sha256", null);
+            //地址没变并且文件校验通过则直接加载本地文件
             File file = new File(tempPath, (newDef.getId() + "_" + urlMd5) + ".jar");
-            if (file.exists()) {
-                //设置文件地址文本地文件
-                config.put("location", file.getAbsolutePath());
-                return super
-                    .load(newDef)
-                    .subscribeOn(Schedulers.boundedElastic())
-                    //加载失败则删除文件,防止文件内容错误时,一直无法加载
-                    .doOnError(err -> file.delete());
-            }
-            return webClient
-                .get()
-                .uri(location)
-                .retrieve()
-                .bodyToFlux(DataBuffer.class)
-                .as(dataStream -> {
+            return getCachedFile(file, sha256)
+                .switchIfEmpty(Mono.defer(() -> {
                     log.debug("download protocol file {} to {}", location, file.getAbsolutePath());
-                    //写出文件
-                    return DataBufferUtils
-                        .write(dataStream, file.toPath(), CREATE, WRITE)
-                        .thenReturn(file.getAbsolutePath());
-                })
-                //使用弹性线程池来写出文件
-                .subscribeOn(Schedulers.boundedElastic())
-                //设置本地文件路径
-                .doOnNext(path -> config.put("location", path))
-                .then(super.load(newDef))
-                .timeout(loadTimeout, Mono.error(() -> new TimeoutException("获取协议文件失败:" + location)))
-                //失败时删除文件
-                .doOnError(err -> file.delete())
-                ;
+                    return download(file, sha256, webClient
+                        .get()
+                        .uri(location)
+                        .retrieve()
+                        .bodyToFlux(DataBuffer.class));
+                }))
+                .flatMap(_file -> load(newDef, _file))
+                .timeout(loadTimeout, Mono.error(() -> new TimeoutException("获取协议文件失败:" + location)));
         }
 
         //使用文件管理器获取文件
@@ -135,29 +126,98 @@ public class AutoDownloadJarProtocolSupportLoader extends JarProtocolSupportLoad
             return Mono.error(new IllegalArgumentException("location or fileId can not be empty"));
         }
         return loadFromFileManager(newDef.getId(), fileId)
-            .flatMap(file -> {
-                config.put("location", file.getAbsolutePath());
-                return super
-                    .load(newDef)
-                    .subscribeOn(Schedulers.boundedElastic())
-                    //加载失败则删除文件,防止文件内容错误时,一直无法加载
-                    .doOnError(err -> file.delete());
-            });
+            .flatMap(file -> load(newDef, file));
 
     }
 
+    private Mono<? extends ProtocolSupport> load(ProtocolSupportDefinition definition, File file) {
+        //设置文件地址为本地文件
+        definition.getConfiguration().put("location", file.getAbsolutePath());
+        return super
+            .load(definition)
+            .subscribeOn(Schedulers.boundedElastic())
+            //加载失败则删除文件,防止文件内容错误时,一直无法加载
+            .doOnError(err -> deleteFile(file));
+    }
+
     private Mono<File> loadFromFileManager(String protocolId, String fileId) {
-        Path path = Paths.get(tempPath.getPath(), (protocolId + "_" + fileId) + ".jar");
+        File file = Paths.get(tempPath.getPath(), (protocolId + "_" + fileId) + ".jar").toFile();
+
+        return fileManager
+            .getFile(fileId)
+            .map(info -> info.getSha256() == null ? "" : info.getSha256())
+            .defaultIfEmpty("")
+            .flatMap(sha256 -> getCachedFile(file, sha256)
+                .switchIfEmpty(Mono.defer(() -> download(file, sha256, fileManager.read(fileId)))));
+    }
 
-        File file = path.toFile();
-        if (file.exists()) {
-            return Mono.just(file);
-        }
+    /**
+     * 获取本地缓存的协议包,文件sha256与期望值或者下载时记录的值不一致时删除文件.
+     *
+     * @param file   协议包文件
+     * @param sha256 期望的sha256,为空时使用下载时记录的值
+     * @return 校验通过的文件, 文件不存在或者校验失败时返回{@link Mono#empty()}
+     */
+    private Mono<File> getCachedFile(File file, String sha256) {
+        return Mono
+            .fromCallable(() -> {
+                if (!file.exists()) {
+                    return null;
+                }
+                String expect = StringUtils.hasText(sha256) ? sha256 : readDigest(file);
+                if (StringUtils.hasText(expect) && expect.equalsIgnoreCase(sha256Hex(file))) {
+                    return file;
+                }
+                log.warn("protocol file {} digest mismatch, download again", file.getAbsolutePath());
+                deleteFile(file);
+                return null;
+            })
+            .subscribeOn(Schedulers.boundedElastic());
+    }
 
+    //先下载到临时文件,校验通过后再替换,防止下载中断时留下不完整的文件
+    private Mono<File> download(File file, String sha256, Flux<DataBuffer> source) {
+        Path temp = Paths.get(file.getPath() + "." + System.nanoTime() + ".tmp");
+        MessageDigest digest = DigestUtils.getSha256Digest();
         return DataBufferUtils
-            .write(fileManager.read(fileId),
-                   path, CREATE_NEW, TRUNCATE_EXISTING, WRITE)
-            .thenReturn(file);
+            .write(source.doOnNext(buffer -> digest.update(buffer.asByteBuffer())),
+                   temp, CREATE, WRITE, TRUNCATE_EXISTING)
+            .then(Mono.fromCallable(() -> {
+                String actual = Hex.encodeHexString(digest.digest());
+                if (StringUtils.hasText(sha256) && !sha256.equalsIgnoreCase(actual)) {
+                    throw new IllegalStateException("protocol file sha256 mismatch,expect " + sha256 + " but " + actual);
+                }
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                //记录文件摘要,重启后用于校验文件
+                Files.write(getDigestFile(file).toPath(), actual.getBytes(StandardCharsets.UTF_8));
+                return file;
+            }))
+            //使用弹性线程池来写出文件
+            .subscribeOn(Schedulers.boundedElastic())
+            .doFinally(ignore -> temp.toFile().delete());
+    }
+
+    private static String sha256Hex(File file) throws IOException {
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            return DigestUtils.sha256Hex(stream);
+        }
+    }
+
+    private static String readDigest(File file) throws IOException {
+        File digestFile = getDigestFile(file);
+        if (!digestFile.exists()) {
+            return null;
+        }
+        return new String(Files.readAllBytes(digestFile.toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    private static File getDigestFile(File file) {
+        return new File(file.getPath() + ".sha256");
+    }
+
+    private static void deleteFile(File file) {
+        file.delete();
+        getDigestFile(file).delete();
     }
 
 }